@@ -0,0 +1,378 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.util.Log;
+
+/**
+ * A content-addressed store of file blobs, shared by all subscriptions.
+ * Blobs are keyed by the SHA-1 hash of their contents, whatever hash algorithm a version manifest
+ * declares for verification (see {@link ContentHash}); a key must be collision resistant, as
+ * content files with the same key share a single blob, and a 64 bit hash such as xxHash64 isn't.
+ * Subscription content files are hard links into the store, so a file shipped by several
+ * subscriptions (e.g. a shared CSS file or font) is only written to disk once.
+ * Blobs are never modified once written; content files must always be replaced (i.e.
+ * by writing a new blob and linking it into place) rather than written to in place.
+ * Hard links need API level 21 (see {@link FileLinks}). On earlier versions the store isn't
+ * used: content files are written directly, each via a temporary file moved into place.
+ * @author juliangoacher
+ */
+public class ContentBlobStore {
+
+    static final String Tag = ContentBlobStore.class.getSimpleName();
+
+    /** The size of the buffer used when copying blob data. */
+    static final int CopyBufferSize = 16 * 1024;
+
+    /** The directory containing blob files. */
+    private File blobDir;
+    /**
+     * A lock coordinating writers with blob pruning. Writers hold the read lock between adding
+     * a blob and linking it into place, so that a newly added blob can't be pruned before it
+     * is referenced.
+     */
+    private ReadWriteLock pruneLock = new ReentrantReadWriteLock();
+
+    public ContentBlobStore(File blobDir) {
+        this.blobDir = blobDir;
+        if( !(blobDir.exists() || blobDir.mkdirs()) ) {
+            Log.e( Tag, String.format("Unable to create blob directory: %s", blobDir.getAbsolutePath() ) );
+        }
+    }
+
+    /**
+     * Create a message digest suitable for hashing blob contents.
+     * Message digests aren't thread safe, so each writer should create its own.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e) {
+            // Really shouldn't happen.
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * Get the file holding the blob with the specified hash.
+     * Blobs are sharded into sub-directories named after the first two characters of the hash.
+     */
+    public File getBlobFile(String hash) {
+        return new File( new File( blobDir, hash.substring( 0, 2 ) ), hash );
+    }
+
+    /**
+     * Test whether a blob with the specified hash is in the store.
+     */
+    public boolean hasBlob(String hash) {
+        return getBlobFile( hash ).exists();
+    }
+
+    /**
+     * Add a blob to the store.
+     * Nothing is written if a blob with the same contents is already in the store.
+     * @param data      A buffer containing the blob data.
+     * @param length    The number of bytes of blob data in the buffer.
+     * @param md        A message digest used to hash the blob.
+     * @return The blob's hash.
+     */
+    private String putBytes(byte[] data, int length, MessageDigest md) throws IOException {
+        md.reset();
+        md.update( data, 0, length );
+        String hash = toHex( md.digest() );
+        File blobFile = getBlobFile( hash );
+        if( !blobFile.exists() ) {
+            File tempFile = newTempFile();
+            OutputStream out = new FileOutputStream( tempFile );
+            try {
+                out.write( data, 0, length );
+            }
+            finally {
+                out.close();
+            }
+            commitBlob( tempFile, blobFile );
+        }
+        return hash;
+    }
+
+    /**
+     * Add a blob to the store by reading its contents from an input stream.
+     * Used for blobs too large to buffer in memory. The data is streamed into a temporary
+     * file which is discarded if the blob is already in the store, unless replace is true.
+     * @param in        A stream of the blob data. The stream isn't closed by this method.
+     * @param buffer    A buffer to use when copying the data.
+     * @param md        A message digest used to hash the blob.
+     * @param replace   If true then any blob already in the store is replaced.
+     * @return The blob's hash.
+     */
+    private String putStream(InputStream in, byte[] buffer, MessageDigest md, boolean replace) throws IOException {
+        md.reset();
+        File tempFile = newTempFile();
+        OutputStream out = new FileOutputStream( tempFile );
+        try {
+            int read;
+            while( (read = in.read( buffer )) != -1 ) {
+                md.update( buffer, 0, read );
+                out.write( buffer, 0, read );
+            }
+        }
+        catch(IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+        String hash = toHex( md.digest() );
+        File blobFile = getBlobFile( hash );
+        if( blobFile.exists() && !replace ) {
+            // Blob already in the store, discard the copy just written.
+            tempFile.delete();
+        }
+        else {
+            commitBlob( tempFile, blobFile );
+        }
+        return hash;
+    }
+
+    /**
+     * Link a blob into place at a target path, replacing any file already at that path.
+     * A hard link is used where possible; if the file system doesn't support links between
+     * the two locations then the blob is copied.
+     * The replacement is atomic: the link is created under a temporary name and then moved
+     * over the target, so readers see either the old or the new file, but never a partial file.
+     */
+    private void linkBlob(String hash, File target) throws IOException {
+        File blobFile = getBlobFile( hash );
+        File parentDir = target.getParentFile();
+        if( !(parentDir.exists() || parentDir.mkdirs() || parentDir.exists()) ) {
+            throw new IOException( String.format("Unable to create directory %s", parentDir ) );
+        }
+        File tempFile = new File( parentDir, String.format(".%s.link", target.getName() ) );
+        tempFile.delete();
+        if( !FileLinks.link( blobFile, tempFile ) ) {
+            Log.w( Tag, String.format("Unable to link %s, copying instead", blobFile ) );
+            copyFile( blobFile, tempFile );
+        }
+        moveIntoPlace( tempFile, target );
+    }
+
+    /**
+     * Write a content file directly, without adding it to the store. Used when links aren't
+     * supported. The file is written under a temporary name and then moved over the target.
+     * @param target    The content file to write.
+     * @param data      A buffer containing the file contents; or null, to read from in.
+     * @param length    The number of bytes of file data in the buffer.
+     * @param in        A stream of the file contents, if data is null.
+     * @param buffer    A buffer to use when copying from in.
+     */
+    private void writeDirect(File target, byte[] data, int length, InputStream in, byte[] buffer) throws IOException {
+        File parentDir = target.getParentFile();
+        if( !(parentDir.exists() || parentDir.mkdirs() || parentDir.exists()) ) {
+            throw new IOException( String.format("Unable to create directory %s", parentDir ) );
+        }
+        File tempFile = new File( parentDir, String.format(".%s.write", target.getName() ) );
+        OutputStream out = new FileOutputStream( tempFile );
+        try {
+            if( data != null ) {
+                out.write( data, 0, length );
+            }
+            else {
+                int read;
+                while( (read = in.read( buffer )) != -1 ) {
+                    out.write( buffer, 0, read );
+                }
+            }
+        }
+        catch(IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+        moveIntoPlace( tempFile, target );
+    }
+
+    /**
+     * Move a temporary file over its target.
+     */
+    private void moveIntoPlace(File tempFile, File target) throws IOException {
+        if( !tempFile.renameTo( target ) ) {
+            tempFile.delete();
+            throw new IOException( String.format("Failed to move file into place at %s", target ) );
+        }
+    }
+
+    /**
+     * Write a content file via the blob store.
+     * @param target    The content file to write.
+     * @param data      A buffer containing the file contents.
+     * @param length    The number of bytes of file data in the buffer.
+     * @param md        A message digest used to hash the blob.
+     */
+    public void writeFile(File target, byte[] data, int length, MessageDigest md) throws IOException {
+        if( !FileLinks.Supported ) {
+            writeDirect( target, data, length, null, null );
+            return;
+        }
+        pruneLock.readLock().lock();
+        try {
+            linkBlob( putBytes( data, length, md ), target );
+        }
+        finally {
+            pruneLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write a content file via the blob store, reading its contents from an input stream.
+     * @param target    The content file to write.
+     * @param in        A stream of the file contents. The stream isn't closed by this method.
+     * @param buffer    A buffer to use when copying the data.
+     * @param md        A message digest used to hash the blob.
+     */
+    public void writeFile(File target, InputStream in, byte[] buffer, MessageDigest md) throws IOException {
+        writeFile( target, in, buffer, md, false );
+    }
+
+    /**
+     * Write a content file via the blob store, reading its contents from an input stream.
+     * @param target    The content file to write.
+     * @param in        A stream of the file contents. The stream isn't closed by this method.
+     * @param buffer    A buffer to use when copying the data.
+     * @param md        A message digest used to hash the blob.
+     * @param replaceBlob If true then the file's blob is replaced, even if already in the store.
+     *                  Used when repairing a corrupted content file: the file is a link to its
+     *                  blob, so the blob is corrupted too, but is still stored under the hash of
+     *                  its correct contents. Other content files linked to the corrupted blob
+     *                  keep the corrupted data until they are also repaired.
+     */
+    public void writeFile(File target, InputStream in, byte[] buffer, MessageDigest md, boolean replaceBlob)
+            throws IOException {
+        if( !FileLinks.Supported ) {
+            writeDirect( target, null, 0, in, buffer );
+            return;
+        }
+        pruneLock.readLock().lock();
+        try {
+            linkBlob( putStream( in, buffer, md, replaceBlob ), target );
+        }
+        finally {
+            pruneLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove blobs which are no longer referenced by any content file.
+     * A blob is unreferenced when its link count has dropped to one, i.e. only the
+     * store's own link remains. Nothing is pruned if links aren't supported, as the store is then
+     * unused.
+     * @return The number of blobs removed.
+     */
+    public int prune() {
+        if( !FileLinks.Supported ) {
+            return 0;
+        }
+        pruneLock.writeLock().lock();
+        try {
+            return pruneUnreferenced();
+        }
+        finally {
+            pruneLock.writeLock().unlock();
+        }
+    }
+
+    private int pruneUnreferenced() {
+        int removed = 0;
+        File[] shards = blobDir.listFiles();
+        if( shards == null ) {
+            return removed;
+        }
+        for( File shard : shards ) {
+            File[] blobFiles = shard.listFiles();
+            if( blobFiles == null ) {
+                continue;
+            }
+            for( File blobFile : blobFiles ) {
+                long linkCount = FileLinks.linkCount( blobFile );
+                if( linkCount == -1 ) {
+                    Log.w( Tag, String.format("Unable to stat blob %s", blobFile ) );
+                }
+                else if( linkCount < 2 && blobFile.delete() ) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Move a fully written temporary file into place as a blob.
+     */
+    private void commitBlob(File tempFile, File blobFile) throws IOException {
+        // Blobs are shared, so guard against them being written to through a content file link.
+        tempFile.setReadOnly();
+        File shardDir = blobFile.getParentFile();
+        if( !(shardDir.exists() || shardDir.mkdirs() || shardDir.exists()) ) {
+            tempFile.delete();
+            throw new IOException( String.format("Unable to create blob directory %s", shardDir ) );
+        }
+        if( !tempFile.renameTo( blobFile ) ) {
+            tempFile.delete();
+            // Another writer may have committed the same blob concurrently.
+            if( !blobFile.exists() ) {
+                throw new IOException( String.format("Failed to write blob %s", blobFile ) );
+            }
+        }
+    }
+
+    /**
+     * Create a new, uniquely named temporary file in the blob directory.
+     */
+    private File newTempFile() throws IOException {
+        return File.createTempFile("blob", ".tmp", blobDir );
+    }
+
+    /**
+     * Copy a file.
+     */
+    static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream( from );
+        try {
+            OutputStream out = new FileOutputStream( to );
+            try {
+                byte[] buffer = new byte[CopyBufferSize];
+                int read;
+                while( (read = in.read( buffer )) != -1 ) {
+                    out.write( buffer, 0, read );
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return a byte array as a hex encoded string.
+     */
+    static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for( int i = 0; i < digest.length; i++ ) {
+            hex.append( Integer.toString( ( digest[i] & 0xff ) + 0x100, 16 ).substring( 1 ) );
+        }
+        return hex.toString();
+    }
+}
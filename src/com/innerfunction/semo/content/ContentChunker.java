@@ -0,0 +1,299 @@
+package com.innerfunction.semo.content;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A class for updating content files using content-defined chunking.
+ * Files are split into variable sized chunks at boundaries determined by the file's content, so
+ * an edit to a file only changes the chunks around the edit; the remaining chunks are the same as
+ * in any other version of the file. The server publishes the list of chunks in the new version of
+ * a file, and the client assembles the new version from the chunks it already has in its local
+ * copy, downloading only the missing chunks using HTTP range requests. Unlike a patch this works
+ * whatever version the local copy is.
+ * Chunk boundaries are found using a gear rolling hash, which must be calculated identically by
+ * the server:
+ * <ul>
+ *   <li>The gear table is 256 ints, generated by the splitmix64 generator seeded with
+ *       {@link #GearSeed}; each entry is the upper 32 bits of the generator's next value.</li>
+ *   <li>For each byte b of the file, hash = (hash &lt;&lt; 1) + gear[b] (32 bit arithmetic).</li>
+ *   <li>A chunk ends after the current byte if the chunk is at least {@link #MinChunkSize} bytes
+ *       long and (hash &amp; {@link #BoundaryMask}) == 0, or if the chunk is {@link #MaxChunkSize}
+ *       bytes long. The hash is reset to zero at the start of each chunk.</li>
+ * </ul>
+ * Chunks are identified by the hash of their contents, using the hash algorithm declared by the
+ * version manifest (see {@link ContentHash}; MD5 by default). In a version manifest, each chunked
+ * file is described as:
+ * <pre>
+ *   { "file": path, "after": hash of the file, "url": (optional) file URL, "chunks": [ [ hash, size ], ... ] }
+ * </pre>
+ * If no URL is given then the file is requested from the content manager's repair URL.
+ * @author juliangoacher
+ *
+ */
+public class ContentChunker {
+
+    static final String Tag = ContentChunker.class.getSimpleName();
+
+    /** The minimum chunk size. */
+    static final int MinChunkSize = 2 * 1024;
+    /** The maximum chunk size. */
+    static final int MaxChunkSize = 64 * 1024;
+    /** The hash mask used to detect chunk boundaries; 13 bits, giving an average chunk size of about 8KB. */
+    static final int BoundaryMask = 0xfff80000;
+    /** The seed used to generate the gear table. */
+    static final long GearSeed = 0x53454d4f43444331L;
+    /** The gear table. */
+    static final int[] Gear = new int[256];
+
+    static {
+        // splitmix64
+        long state = GearSeed;
+        for( int i = 0; i < Gear.length; i++ ) {
+            state += 0x9e3779b97f4a7c15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            z = z ^ (z >>> 31);
+            Gear[i] = (int)(z >>> 32);
+        }
+    }
+
+    /** The connect timeout for range requests, in ms. */
+    static final int ConnectTimeout = 15000;
+    /** The read timeout for range requests, in ms. */
+    static final int ReadTimeout = 30000;
+
+    /** A local chunk; the position of a chunk in the local copy of a file. */
+    static class Chunk {
+        long offset;
+        int size;
+    }
+
+    /** The blob store updated files are written to. */
+    private ContentBlobStore blobStore;
+    /** A hash for identifying chunks. */
+    private ContentHash chunkHash;
+    /** A hash for verifying whole files. */
+    private ContentHash fileHash;
+    /** A message digest for calculating hashes of blob store content. */
+    private MessageDigest blobMD = ContentBlobStore.newDigest();
+    /** A buffer for reading file data. */
+    private byte[] buffer = new byte[MaxChunkSize];
+    /** The number of bytes downloaded by range requests. */
+    private long bytesDownloaded;
+
+    public ContentChunker(ContentBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Get the total number of bytes downloaded by range requests.
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /**
+     * Update a content file from its chunk list.
+     * @param targetFile    The file to update. Needn't exist.
+     * @param url           The URL of the new version of the file.
+     * @param chunked       The file's chunk description, as read from the version manifest; its
+     *                      "hash" field names the hash algorithm.
+     * @return true if the file was updated; false if it was already up to date.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean updateFile(File targetFile, String url, Map<String,Object> chunked) throws IOException {
+        String after = (String)chunked.get("after");
+        List<List<Object>> chunkList = (List<List<Object>>)chunked.get("chunks");
+        if( after == null || chunkList == null ) {
+            throw new IOException( String.format("Bad chunk list for %s", targetFile ) );
+        }
+        String algorithm = (String)chunked.get("hash");
+        chunkHash = ContentHash.getInstance( algorithm, chunkHash );
+        fileHash = ContentHash.getInstance( algorithm, fileHash );
+        int count = chunkList.size();
+        String[] hashes = new String[count];
+        long[] offsets = new long[count + 1];
+        for( int i = 0; i < count; i++ ) {
+            List<Object> chunk = chunkList.get( i );
+            hashes[i] = (String)chunk.get( 0 );
+            long size = ((Number)chunk.get( 1 )).longValue();
+            if( size < 1 || size > MaxChunkSize ) {
+                throw new IOException( String.format("Bad chunk size for %s", targetFile ) );
+            }
+            offsets[i + 1] = offsets[i] + size;
+        }
+        // Index the chunks in the local copy of the file.
+        Map<String,Chunk> localChunks = new HashMap<String,Chunk>();
+        if( targetFile.exists() ) {
+            String localHash = indexChunks( targetFile, localChunks );
+            if( localHash.equals( after ) ) {
+                return false;
+            }
+        }
+        // Assemble the new version of the file in a temporary file.
+        File dir = targetFile.getParentFile();
+        if( !(dir.exists() || dir.mkdirs()) ) {
+            throw new IOException( String.format("Unable to create directory %s", dir ) );
+        }
+        File tempFile = File.createTempFile(".chunk", ".temp", dir );
+        try {
+            RandomAccessFile local = localChunks.isEmpty() ? null : new RandomAccessFile( targetFile, "r");
+            OutputStream out = new FileOutputStream( tempFile );
+            fileHash.reset();
+            try {
+                int i = 0;
+                while( i < count ) {
+                    int size = (int)(offsets[i + 1] - offsets[i]);
+                    Chunk chunk = localChunks.get( hashes[i] );
+                    if( chunk != null && chunk.size == size ) {
+                        // Copy the chunk from the local copy.
+                        local.seek( chunk.offset );
+                        local.readFully( buffer, 0, size );
+                        fileHash.update( buffer, 0, size );
+                        out.write( buffer, 0, size );
+                        i++;
+                    }
+                    else {
+                        // Download this and any following missing chunks with a single range request.
+                        int end = i + 1;
+                        while( end < count && !localChunks.containsKey( hashes[end] ) ) {
+                            end++;
+                        }
+                        downloadChunks( url, hashes, offsets, i, end, out );
+                        i = end;
+                    }
+                }
+            }
+            finally {
+                out.close();
+                if( local != null ) {
+                    local.close();
+                }
+            }
+            String hash = fileHash.digest();
+            if( !hash.equals( after ) ) {
+                throw new IOException( String.format("Bad hash %s for chunked file %s", hash, targetFile ) );
+            }
+            InputStream in = new FileInputStream( tempFile );
+            try {
+                blobStore.writeFile( targetFile, in, buffer, blobMD );
+            }
+            finally {
+                in.close();
+            }
+        }
+        finally {
+            tempFile.delete();
+        }
+        return true;
+    }
+
+    /**
+     * Download a run of chunks using a range request, and write them to an output stream.
+     * Each chunk is verified against its hash.
+     * @param start The index of the first chunk to download.
+     * @param end   The index after the last chunk to download.
+     */
+    private void downloadChunks(String url, String[] hashes, long[] offsets, int start, int end, OutputStream out)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL( url ).openConnection();
+        try {
+            connection.setConnectTimeout( ConnectTimeout );
+            connection.setReadTimeout( ReadTimeout );
+            connection.setRequestProperty("Range", String.format("bytes=%d-%d", offsets[start], offsets[end] - 1 ) );
+            int responseCode = connection.getResponseCode();
+            if( responseCode != HttpURLConnection.HTTP_PARTIAL ) {
+                throw new IOException( String.format("HTTP %d for range request to %s", responseCode, url ) );
+            }
+            InputStream in = new BufferedInputStream( connection.getInputStream() );
+            try {
+                for( int i = start; i < end; i++ ) {
+                    int size = (int)(offsets[i + 1] - offsets[i]);
+                    if( ContentExtractor.readFully( in, buffer, size ) != size ) {
+                        throw new IOException( String.format("Unexpected end of range response from %s", url ) );
+                    }
+                    chunkHash.reset();
+                    chunkHash.update( buffer, 0, size );
+                    if( !chunkHash.digest().equals( hashes[i] ) ) {
+                        throw new IOException( String.format("Bad chunk hash at offset %d from %s", offsets[i], url ) );
+                    }
+                    fileHash.update( buffer, 0, size );
+                    out.write( buffer, 0, size );
+                    bytesDownloaded += size;
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+        Log.d( Tag, String.format("Downloaded %d chunks from %s", end - start, url ) );
+    }
+
+    /**
+     * Split a local file into chunks and index them by hash.
+     * @param file      The file to chunk.
+     * @param chunks    A map to add the file's chunks to.
+     * @return The hash of the whole file.
+     */
+    private String indexChunks(File file, Map<String,Chunk> chunks) throws IOException {
+        fileHash.reset();
+        chunkHash.reset();
+        InputStream in = new FileInputStream( file );
+        try {
+            int hash = 0;
+            long position = 0;
+            long chunkStart = 0;
+            int read;
+            while( (read = in.read( buffer )) != -1 ) {
+                fileHash.update( buffer, 0, read );
+                int segmentStart = 0;
+                for( int i = 0; i < read; i++ ) {
+                    hash = (hash << 1) + Gear[buffer[i] & 0xff];
+                    position++;
+                    long size = position - chunkStart;
+                    if( (size >= MinChunkSize && (hash & BoundaryMask) == 0) || size == MaxChunkSize ) {
+                        chunkHash.update( buffer, segmentStart, i + 1 - segmentStart );
+                        addChunk( chunks, chunkStart, (int)size );
+                        segmentStart = i + 1;
+                        chunkStart = position;
+                        hash = 0;
+                    }
+                }
+                chunkHash.update( buffer, segmentStart, read - segmentStart );
+            }
+            if( position > chunkStart ) {
+                addChunk( chunks, chunkStart, (int)(position - chunkStart) );
+            }
+        }
+        finally {
+            in.close();
+        }
+        return fileHash.digest();
+    }
+
+    private void addChunk(Map<String,Chunk> chunks, long offset, int size) {
+        Chunk chunk = new Chunk();
+        chunk.offset = offset;
+        chunk.size = size;
+        chunks.put( chunkHash.digest(), chunk );
+    }
+}
@@ -0,0 +1,269 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+/**
+ * A class for extracting the contents of a content package (normally a zip file) into a subscription's
+ * content directory.
+ * Files are written via the content blob store, so any file already present in the store (e.g.
+ * because another subscription ships the same file) is linked into place rather than written again.
+ * Entries whose CRC and size (as recorded in the zip's central directory or pack index) match the
+ * file already in the content directory are skipped entirely.
+ * Entries are listed from the package index and then inflated in parallel by a pool of
+ * worker threads, each of which claims a disjoint set of entries. The result is the same as
+ * extracting the entries one by one.
+ * Completed entries are recorded in an unzip checkpoint, so that an interrupted extraction can
+ * resume from where it stopped.
+ * @author juliangoacher
+ *
+ */
+public class ContentExtractor {
+
+    static final String Tag = ContentExtractor.class.getSimpleName();
+
+    /**
+     * The maximum size of a package entry which is buffered in memory before being written.
+     * Larger entries are streamed through a temporary file.
+     */
+    static final int MaxBufferedEntrySize = 256 * 1024;
+    /** The minimum size of a worker's buffer. */
+    static final int MinBufferSize = 16 * 1024;
+    /** The default limit on the memory used for buffers by all workers. */
+    static final int DefaultMemoryLimit = 2 * 1024 * 1024;
+
+    /** The blob store content files are written to. */
+    private ContentBlobStore blobStore;
+    /** The number of worker threads used to extract entries. */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    /** The limit on the memory used for buffers by all workers, in bytes. */
+    private int memoryLimit = DefaultMemoryLimit;
+
+    public ContentExtractor(ContentBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Set the number of worker threads used to extract entries.
+     * A value of 1 or less extracts all entries on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set the limit on the memory used by all workers for buffering entry data.
+     * Each worker gets an equal share of the limit; entries larger than a worker's share are
+     * streamed through a temporary file instead of being buffered.
+     */
+    public void setMemoryLimit(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Extract a content package's contents, overwriting and possibly replacing any pre-existing files.
+     * @param zipFile   The package file to extract. Zip files and semo packs are supported.
+     * @param targetDir The directory to extract the package contents to.
+     * @param index     A CRC index of the files in the target directory.
+     * @param checkpoint    A checkpoint recording the entries completed by this and any previous,
+     *                      interrupted, extraction of the same package file.
+     * @return A list of the absolute paths of all extracted files, in package entry order. Files left
+     * unchanged because they already matched the package entry, or completed by a previous extraction,
+     * aren't included.
+     */
+    public List<String> extract(File zipFile, File targetDir, final ContentIndex index, final UnzipCheckpoint checkpoint)
+            throws IOException {
+        final String targetPath = targetDir.getCanonicalPath() + File.separator;
+        // Open the package; the package format is detected from the file contents.
+        final ContentPackage pkg = ContentPackage.open( zipFile );
+        try {
+            // Read the list of file entries from the package index; create any directory entries
+            // as they are found.
+            final List<ContentPackage.Entry> entries = new ArrayList<ContentPackage.Entry>();
+            for( ContentPackage.Entry entry : pkg.getEntries() ) {
+                File targetFile = getTargetFile( entry, targetDir, targetPath );
+                if( entry.isDirectory() ) {
+                    if( !(targetFile.exists() || targetFile.mkdirs()) ) {
+                        throw new IOException( String.format("Unable to create directory %s", targetFile ) );
+                    }
+                }
+                else {
+                    entries.add( entry );
+                }
+            }
+            // Results are stored by entry index, so that the result order matches the serial order.
+            final String[] results = new String[entries.size()];
+            int workerCount = Math.max( 1, Math.min( parallelism, entries.size() ) );
+            final int bufferSize = Math.max( MinBufferSize, Math.min( MaxBufferedEntrySize, memoryLimit / workerCount ) );
+            if( workerCount == 1 ) {
+                Worker worker = new Worker( pkg, targetDir, targetPath, index, checkpoint, bufferSize );
+                for( int i = 0; i < results.length; i++ ) {
+                    results[i] = worker.extractEntry( entries.get( i ), i );
+                }
+            }
+            else {
+                // Each worker repeatedly claims the next unclaimed entry, so the entry sets extracted
+                // by each worker are disjoint.
+                final File dir = targetDir;
+                final AtomicInteger nextEntry = new AtomicInteger( 0 );
+                final AtomicReference<IOException> error = new AtomicReference<IOException>();
+                final CountDownLatch done = new CountDownLatch( workerCount );
+                ExecutorService pool = Executors.newFixedThreadPool( workerCount );
+                try {
+                    for( int w = 0; w < workerCount; w++ ) {
+                        pool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    Worker worker = new Worker( pkg, dir, targetPath, index, checkpoint, bufferSize );
+                                    int i;
+                                    while( error.get() == null && (i = nextEntry.getAndIncrement()) < results.length ) {
+                                        results[i] = worker.extractEntry( entries.get( i ), i );
+                                    }
+                                }
+                                catch(IOException e) {
+                                    error.compareAndSet( null, e );
+                                }
+                                catch(RuntimeException e) {
+                                    // IOException(Throwable) needs API level 9.
+                                    IOException ioe = new IOException( String.format("Failed to extract content: %s", e ) );
+                                    ioe.initCause( e );
+                                    error.compareAndSet( null, ioe );
+                                }
+                                finally {
+                                    done.countDown();
+                                }
+                            }
+                        });
+                    }
+                    done.await();
+                }
+                catch(InterruptedException e) {
+                    throw new IOException("Interrupted whilst extracting content");
+                }
+                finally {
+                    pool.shutdownNow();
+                }
+                if( error.get() != null ) {
+                    throw error.get();
+                }
+            }
+            List<String> extractedFiles = new ArrayList<String>();
+            for( String result : results ) {
+                if( result != null ) {
+                    extractedFiles.add( result );
+                }
+            }
+            return extractedFiles;
+        }
+        finally {
+            pkg.close();
+            // Record progress made before any failure.
+            try {
+                checkpoint.flush();
+            }
+            catch(IOException e) {
+                Log.w( Tag, "Failed to write unzip checkpoint", e );
+            }
+        }
+    }
+
+    /**
+     * Get the file a package entry extracts to.
+     */
+    static File getTargetFile(ContentPackage.Entry entry, File targetDir, String targetPath) throws IOException {
+        File targetFile = new File( targetDir, entry.getName() );
+        // Don't allow entries to write outside of the target directory.
+        if( !targetFile.getCanonicalPath().startsWith( targetPath ) ) {
+            throw new IOException( String.format("Bad package entry name: %s", entry.getName() ) );
+        }
+        return targetFile;
+    }
+
+    /**
+     * Read a stream's contents into a buffer.
+     * @return The number of bytes read.
+     */
+    static int readFully(InputStream in, byte[] buffer, int size) throws IOException {
+        int offset = 0;
+        int read;
+        while( offset < size && (read = in.read( buffer, offset, size - offset )) != -1 ) {
+            offset += read;
+        }
+        return offset;
+    }
+
+    /**
+     * An entry extractor. Holds the per-thread state used to extract entries.
+     */
+    class Worker {
+
+        private ContentPackage pkg;
+        private File targetDir;
+        private String targetPath;
+        private ContentIndex index;
+        private UnzipCheckpoint checkpoint;
+        private MessageDigest md = ContentBlobStore.newDigest();
+        private byte[] buffer;
+
+        Worker(ContentPackage pkg, File targetDir, String targetPath, ContentIndex index, UnzipCheckpoint checkpoint, int bufferSize) {
+            this.pkg = pkg;
+            this.targetDir = targetDir;
+            this.targetPath = targetPath;
+            this.index = index;
+            this.checkpoint = checkpoint;
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * Extract a single package entry.
+         * @param entry         The entry to extract.
+         * @param entryIndex    The entry's position in the list of file entries.
+         * @return The absolute path of the extracted file, or null if the entry was skipped.
+         */
+        String extractEntry(ContentPackage.Entry entry, int entryIndex) throws IOException {
+            // Skip the entry if completed by a previous extraction.
+            if( checkpoint.isComplete( entryIndex ) ) {
+                return null;
+            }
+            File targetFile = getTargetFile( entry, targetDir, targetPath );
+            // Skip the entry if the existing file is the same size and has the same CRC.
+            long crc = entry.getCrc();
+            if( crc != -1 && targetFile.length() == entry.getSize()
+             && index.getCRC( entry.getName(), targetFile, buffer ) == crc ) {
+                checkpoint.complete( entryIndex );
+                return null;
+            }
+            InputStream in = pkg.openEntry( entry );
+            try {
+                long size = entry.getSize();
+                if( size > -1 && size <= buffer.length ) {
+                    // Read small entries fully into memory, so that nothing is written to disk
+                    // if the file is already in the blob store.
+                    int length = readFully( in, buffer, (int)size );
+                    blobStore.writeFile( targetFile, buffer, length, md );
+                }
+                else {
+                    blobStore.writeFile( targetFile, in, buffer, md );
+                }
+            }
+            finally {
+                in.close();
+            }
+            index.put( entry.getName(), targetFile, crc );
+            checkpoint.complete( entryIndex );
+            return targetFile.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.innerfunction.semo.content;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A hash used to verify content file contents.
+ * A version manifest may declare the algorithm used for the file hashes it contains (e.g. the
+ * before and after states of patched files) in its top-level "hash" field; manifests without the
+ * field use MD5. The supported algorithms are:
+ * <ul>
+ *   <li>{@link #MD5} - the default.</li>
+ *   <li>{@link #SHA256} - for when a cryptographic hash is required.</li>
+ *   <li>{@link #XXH64} - xxHash64 with a seed of zero; not cryptographic, but several times faster
+ *       than MD5, so preferable for large updates. Hex encoded as a big-endian 64 bit value, as
+ *       output by the xxhsum tool.</li>
+ * </ul>
+ * The declared algorithm is only used to verify files; blobs in the {@link ContentBlobStore} are
+ * still keyed by SHA-1, so the blob store's hashing cost isn't reduced by choosing a faster
+ * algorithm.
+ * Hashes are hex encoded. Instances aren't thread safe, and are reusable; hashing doesn't
+ * allocate memory, other than for the digest string.
+ * @author juliangoacher
+ *
+ */
+public abstract class ContentHash {
+
+    /** The MD5 hash algorithm. */
+    public static final String MD5 = "md5";
+    /** The SHA-256 hash algorithm. */
+    public static final String SHA256 = "sha256";
+    /** The xxHash64 hash algorithm. */
+    public static final String XXH64 = "xxh64";
+    /** The algorithm used when none is declared. */
+    public static final String DefaultAlgorithm = MD5;
+
+    /** The hash algorithm. */
+    private String algorithm;
+
+    ContentHash(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Get the hash algorithm.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Reset the hash, discarding any data added to it.
+     */
+    public abstract void reset();
+
+    /**
+     * Add data to the hash.
+     */
+    public abstract void update(byte[] data, int offset, int length);
+
+    /**
+     * Add data to the hash.
+     */
+    public void update(byte[] data) {
+        update( data, 0, data.length );
+    }
+
+    /**
+     * Complete the hash and reset it.
+     * @return The hash of the data added since the last reset, hex encoded.
+     */
+    public abstract String digest();
+
+    /**
+     * Test whether a hash algorithm is supported.
+     * @param algorithm The algorithm name; null for the default algorithm.
+     */
+    public static boolean isSupported(String algorithm) {
+        return algorithm == null || MD5.equals( algorithm ) || SHA256.equals( algorithm ) || XXH64.equals( algorithm );
+    }
+
+    /**
+     * Create a hash.
+     * @param algorithm The algorithm name; null for the default algorithm.
+     * @throws IOException If the algorithm isn't supported.
+     */
+    public static ContentHash getInstance(String algorithm) throws IOException {
+        if( algorithm == null ) {
+            algorithm = DefaultAlgorithm;
+        }
+        if( XXH64.equals( algorithm ) ) {
+            return new XXHash64();
+        }
+        try {
+            if( MD5.equals( algorithm ) ) {
+                return new Digest( algorithm, MessageDigest.getInstance("MD5") );
+            }
+            if( SHA256.equals( algorithm ) ) {
+                return new Digest( algorithm, MessageDigest.getInstance("SHA-256") );
+            }
+        }
+        catch(NoSuchAlgorithmException e) {
+            // Really shouldn't happen.
+            IOException ioe = new IOException( String.format("Hash algorithm %s not available", algorithm ) );
+            ioe.initCause( e );
+            throw ioe;
+        }
+        throw new IOException( String.format("Unsupported hash algorithm: %s", algorithm ) );
+    }
+
+    /**
+     * Get a reset hash for an algorithm, reusing an existing hash if it uses the same algorithm.
+     * @param algorithm The algorithm name; null for the default algorithm.
+     * @param hash      An existing hash; may be null.
+     * @throws IOException If the algorithm isn't supported.
+     */
+    public static ContentHash getInstance(String algorithm, ContentHash hash) throws IOException {
+        if( algorithm == null ) {
+            algorithm = DefaultAlgorithm;
+        }
+        if( hash != null && hash.algorithm.equals( algorithm ) ) {
+            hash.reset();
+            return hash;
+        }
+        return getInstance( algorithm );
+    }
+
+    /** A hash computed using a platform message digest. */
+    static class Digest extends ContentHash {
+
+        private MessageDigest md;
+
+        Digest(String algorithm, MessageDigest md) {
+            super( algorithm );
+            this.md = md;
+        }
+
+        @Override
+        public void reset() {
+            md.reset();
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            md.update( data, offset, length );
+        }
+
+        @Override
+        public String digest() {
+            return ContentBlobStore.toHex( md.digest() );
+        }
+    }
+
+    /** A pure Java implementation of xxHash64. */
+    static class XXHash64 extends ContentHash {
+
+        static final long Prime1 = 0x9e3779b185ebca87L;
+        static final long Prime2 = 0xc2b2ae3d27d4eb4fL;
+        static final long Prime3 = 0x165667b19e3779f9L;
+        static final long Prime4 = 0x85ebca77c2b2ae63L;
+        static final long Prime5 = 0x27d4eb2f165667c5L;
+
+        /** The accumulators. */
+        private long v1, v2, v3, v4;
+        /** The total number of bytes hashed. */
+        private long totalLength;
+        /** Bytes not yet added to the accumulators, i.e. an incomplete stripe. */
+        private byte[] stripe = new byte[32];
+        /** The number of bytes in the stripe buffer. */
+        private int stripeLength;
+        /** A buffer for hex encoding the digest. */
+        private char[] hex = new char[16];
+
+        XXHash64() {
+            super( XXH64 );
+            reset();
+        }
+
+        @Override
+        public void reset() {
+            v1 = Prime1 + Prime2;
+            v2 = Prime2;
+            v3 = 0;
+            v4 = -Prime1;
+            totalLength = 0;
+            stripeLength = 0;
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            totalLength += length;
+            int end = offset + length;
+            // Complete any buffered stripe.
+            if( stripeLength > 0 ) {
+                int count = Math.min( 32 - stripeLength, length );
+                System.arraycopy( data, offset, stripe, stripeLength, count );
+                stripeLength += count;
+                offset += count;
+                if( stripeLength < 32 ) {
+                    return;
+                }
+                v1 = round( v1, readLong( stripe, 0 ) );
+                v2 = round( v2, readLong( stripe, 8 ) );
+                v3 = round( v3, readLong( stripe, 16 ) );
+                v4 = round( v4, readLong( stripe, 24 ) );
+                stripeLength = 0;
+            }
+            // Process whole stripes in place.
+            while( end - offset >= 32 ) {
+                v1 = round( v1, readLong( data, offset ) );
+                v2 = round( v2, readLong( data, offset + 8 ) );
+                v3 = round( v3, readLong( data, offset + 16 ) );
+                v4 = round( v4, readLong( data, offset + 24 ) );
+                offset += 32;
+            }
+            // Buffer the remainder.
+            System.arraycopy( data, offset, stripe, 0, end - offset );
+            stripeLength = end - offset;
+        }
+
+        @Override
+        public String digest() {
+            long h;
+            if( totalLength >= 32 ) {
+                h = Long.rotateLeft( v1, 1 ) + Long.rotateLeft( v2, 7 ) + Long.rotateLeft( v3, 12 ) + Long.rotateLeft( v4, 18 );
+                h = mergeRound( h, v1 );
+                h = mergeRound( h, v2 );
+                h = mergeRound( h, v3 );
+                h = mergeRound( h, v4 );
+            }
+            else {
+                h = Prime5;
+            }
+            h += totalLength;
+            int i = 0;
+            while( i + 8 <= stripeLength ) {
+                h ^= round( 0, readLong( stripe, i ) );
+                h = Long.rotateLeft( h, 27 ) * Prime1 + Prime4;
+                i += 8;
+            }
+            if( i + 4 <= stripeLength ) {
+                h ^= (readInt( stripe, i ) & 0xffffffffL) * Prime1;
+                h = Long.rotateLeft( h, 23 ) * Prime2 + Prime3;
+                i += 4;
+            }
+            while( i < stripeLength ) {
+                h ^= (stripe[i] & 0xff) * Prime5;
+                h = Long.rotateLeft( h, 11 ) * Prime1;
+                i++;
+            }
+            h ^= h >>> 33;
+            h *= Prime2;
+            h ^= h >>> 29;
+            h *= Prime3;
+            h ^= h >>> 32;
+            reset();
+            for( int j = 15; j >= 0; j-- ) {
+                hex[j] = Character.forDigit( (int)(h & 0xf), 16 );
+                h >>>= 4;
+            }
+            return new String( hex );
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * Prime2;
+            acc = Long.rotateLeft( acc, 31 );
+            return acc * Prime1;
+        }
+
+        private static long mergeRound(long acc, long value) {
+            acc ^= round( 0, value );
+            return acc * Prime1 + Prime4;
+        }
+
+        /** Read a little-endian long. */
+        private static long readLong(byte[] data, int offset) {
+            return (readInt( data, offset ) & 0xffffffffL) | ((long)readInt( data, offset + 4 ) << 32);
+        }
+
+        /** Read a little-endian int. */
+        private static int readInt(byte[] data, int offset) {
+            return (data[offset] & 0xff)
+                 | (data[offset + 1] & 0xff) << 8
+                 | (data[offset + 2] & 0xff) << 16
+                 | (data[offset + 3] & 0xff) << 24;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.innerfunction.semo.content;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A cached index of the CRC32 checksums of a subscription's content files.
+ * Allows the CRC of an existing content file to be compared with the CRC recorded in a zip
+ * file's central directory without reading the file. A cached CRC is only used whilst the
+ * file's size, modification time and inode number are unchanged since it was recorded; because
+ * content files are always replaced rather than written in place, a replaced file always has
+ * a new inode. Inode numbers are only available from API level 21 (see {@link FileLinks}); on
+ * earlier versions only the size and modification time are compared.
+ * @author juliangoacher
+ *
+ */
+public class ContentIndex {
+
+    static final String Tag = ContentIndex.class.getSimpleName();
+
+    /** A version number written at the start of the index file. */
+    static final int FormatVersion = 2;
+
+    /** An index record. Also used for the current state of a file, without a CRC. */
+    static class Record {
+        long size;
+        long mtime;
+        long inode;
+        long crc;
+    }
+
+    /** The file the index is stored in. */
+    private File indexFile;
+    /** Index records, keyed by content path. */
+    private Map<String,Record> records = new HashMap<String,Record>();
+    /** Flag indicating whether the index has changed since it was loaded. */
+    private boolean modified;
+
+    public ContentIndex(File indexFile) {
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Load the index from its file.
+     * A missing or unreadable index file results in an empty index.
+     */
+    private void load() {
+        if( !indexFile.exists() ) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ) ) );
+            try {
+                if( in.readInt() != FormatVersion ) {
+                    return;
+                }
+                int count = in.readInt();
+                for( int i = 0; i < count; i++ ) {
+                    String path = in.readUTF();
+                    Record record = new Record();
+                    record.size = in.readLong();
+                    record.mtime = in.readLong();
+                    record.inode = in.readLong();
+                    record.crc = in.readLong();
+                    records.put( path, record );
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch(IOException e) {
+            Log.w( Tag, String.format("Failed to read content index %s", indexFile ), e );
+            records.clear();
+        }
+    }
+
+    /**
+     * Save the index to its file, if it has been modified.
+     */
+    public synchronized void save() throws IOException {
+        if( !modified ) {
+            return;
+        }
+        File indexDir = indexFile.getParentFile();
+        if( !(indexDir.exists() || indexDir.mkdirs()) ) {
+            throw new IOException( String.format("Unable to create directory %s", indexDir ) );
+        }
+        File tempFile = new File( indexDir, indexFile.getName()+".temp");
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ) ) );
+        try {
+            out.writeInt( FormatVersion );
+            out.writeInt( records.size() );
+            for( Map.Entry<String,Record> entry : records.entrySet() ) {
+                Record record = entry.getValue();
+                out.writeUTF( entry.getKey() );
+                out.writeLong( record.size );
+                out.writeLong( record.mtime );
+                out.writeLong( record.inode );
+                out.writeLong( record.crc );
+            }
+        }
+        finally {
+            out.close();
+        }
+        if( !tempFile.renameTo( indexFile ) ) {
+            throw new IOException( String.format("Failed to move content index into place at %s", indexFile ) );
+        }
+        modified = false;
+    }
+
+    /**
+     * Get the CRC32 checksum of a content file.
+     * Uses the cached value if the file is unchanged since it was indexed; otherwise reads the
+     * file and indexes the result.
+     * @param path      The file's path relative to the content directory.
+     * @param file      The content file.
+     * @param buffer    A buffer to use when reading the file.
+     * @return The file's CRC, or -1 if the file doesn't exist.
+     */
+    public long getCRC(String path, File file, byte[] buffer) throws IOException {
+        Record stat = stat( file );
+        if( stat == null ) {
+            removeRecord( path );
+            return -1;
+        }
+        Record record = getRecord( path );
+        if( matches( record, stat ) ) {
+            return record.crc;
+        }
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream( file );
+        try {
+            int read;
+            while( (read = in.read( buffer )) != -1 ) {
+                crc.update( buffer, 0, read );
+            }
+        }
+        finally {
+            in.close();
+        }
+        putRecord( path, stat, crc.getValue() );
+        return crc.getValue();
+    }
+
+    /**
+     * Record the CRC of a newly written content file.
+     * @param path  The file's path relative to the content directory.
+     * @param file  The content file.
+     * @param crc   The file's CRC.
+     */
+    public void put(String path, File file, long crc) {
+        Record stat = stat( file );
+        if( stat != null ) {
+            putRecord( path, stat, crc );
+        }
+    }
+
+    /**
+     * Get the CRC recorded for a content file, without reading the file.
+     * @param path  The file's path relative to the content directory.
+     * @param file  The content file.
+     * @return The recorded CRC, or -1 if there is no record or the file has changed since it was recorded.
+     */
+    public long getRecordedCRC(String path, File file) {
+        Record stat = stat( file );
+        Record record = getRecord( path );
+        if( stat != null && matches( record, stat ) ) {
+            return record.crc;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the paths of all indexed files, in sorted order.
+     */
+    public synchronized List<String> getPaths() {
+        List<String> paths = new ArrayList<String>( records.keySet() );
+        Collections.sort( paths );
+        return paths;
+    }
+
+    private synchronized Record getRecord(String path) {
+        return records.get( path );
+    }
+
+    private synchronized void putRecord(String path, Record stat, long crc) {
+        Record record = new Record();
+        record.size = stat.size;
+        record.mtime = stat.mtime;
+        record.inode = stat.inode;
+        record.crc = crc;
+        records.put( path, record );
+        modified = true;
+    }
+
+    private synchronized void removeRecord(String path) {
+        if( records.remove( path ) != null ) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Test whether a record matches a file's current state.
+     */
+    private static boolean matches(Record record, Record stat) {
+        return record != null && record.size == stat.size && record.mtime == stat.mtime && record.inode == stat.inode;
+    }
+
+    /**
+     * Get a file's current state.
+     * @return The file's size, modification time and inode number (-1 if not available), or null
+     * if the file doesn't exist.
+     */
+    private static Record stat(File file) {
+        if( !file.isFile() ) {
+            return null;
+        }
+        Record stat = new Record();
+        stat.size = file.length();
+        stat.mtime = file.lastModified();
+        stat.inode = FileLinks.inode( file );
+        return stat;
+    }
+}
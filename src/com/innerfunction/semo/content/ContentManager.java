@@ -1,6 +1,8 @@
 package com.innerfunction.semo.content;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -31,14 +33,56 @@ public class ContentManager {
      * The directory containing downloaded content files.
      */
     private File downloadDir;
+    /**
+     * The directory containing snapshots of subscription content.
+     */
+    private File snapshotDir;
+    /**
+     * The directory containing subscription content updates being unpacked.
+     */
+    private File stagingDir;
+    /**
+     * A content-addressed store of content files, shared by all subscriptions.
+     */
+    private ContentBlobStore blobStore;
+    /**
+     * Reader/writer locks on subscription content, shared with other processes.
+     */
+    private SubscriptionLocks locks;
     /**
      * Local content settings.
      */
     private Locals localSettings;
+    /**
+     * A file holding the persistent state of all subscriptions.
+     */
+    private ContentStateFile stateFile;
+    /**
+     * A model used to choose between delta and full content updates.
+     */
+    private UpdateCostModel costModel;
     /**
      * The server URL content updates are downloaded from.
      */
     private String subscriptionURL;
+    /**
+     * A URL template for downloading individual content files, used to repair files which
+     * fail validation. Accepts subs, version and file (the file path) as values.
+     */
+    private String repairURL;
+    /**
+     * The number of threads used to extract content zip files.
+     */
+    private int unzipParallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * The limit on memory used for buffering content when extracting zip files, in bytes.
+     */
+    private int unzipMemoryLimit = ContentExtractor.DefaultMemoryLimit;
+    /**
+     * Whether a subscription's initial content zip is used in place as the base layer of its
+     * content view, rather than being unzipped. See {@link ContentOverlay}.
+     */
+    private boolean overlayInitialContent = false;
     /**
      * Array of processes that operate on unpacked content.
      */
@@ -47,6 +91,10 @@ public class ContentManager {
      * A map of content subscriptions, keyed by subscription name.
      */
     private Map<String,Subscription> subscriptions = new HashMap<String,Subscription>();
+    /**
+     * A background process for verifying subscription content. Created when first started.
+     */
+    private ContentScrubber scrubber;
     
     public ContentManager(Context androidContext) {
         // Setup content directories.
@@ -59,13 +107,58 @@ public class ContentManager {
         if( !(downloadDir.exists() || downloadDir.mkdirs()) ) {
             Log.e( Tag, String.format("Unable to create download directory: %s", downloadDir.getAbsolutePath() ) );
         }
+        snapshotDir = new File( cacheDir, "snapshots");
+        if( !(snapshotDir.exists() || snapshotDir.mkdirs()) ) {
+            Log.e( Tag, String.format("Unable to create snapshot directory: %s", snapshotDir.getAbsolutePath() ) );
+        }
+        stagingDir = new File( cacheDir, "staging");
+        if( !(stagingDir.exists() || stagingDir.mkdirs()) ) {
+            Log.e( Tag, String.format("Unable to create staging directory: %s", stagingDir.getAbsolutePath() ) );
+        }
+        blobStore = new ContentBlobStore( new File( cacheDir, "blobs") );
+        locks = new SubscriptionLocks( new File( cacheDir, "locks") );
         localSettings = new Locals("semo.subs");
+        // Read the state of all subscriptions.
+        stateFile = new ContentStateFile( new File( cacheDir, "subs.state") );
+        costModel = new UpdateCostModel( stateFile );
     }
     
     public void setSubscriptionURL(String url) {
         subscriptionURL = url;
     }
     
+    public void setRepairURL(String url) {
+        repairURL = url;
+    }
+    
+    public String getRepairURL() {
+        return repairURL;
+    }
+    
+    public void setUnzipParallelism(int parallelism) {
+        unzipParallelism = parallelism;
+    }
+    
+    public int getUnzipParallelism() {
+        return unzipParallelism;
+    }
+    
+    public void setUnzipMemoryLimit(int limit) {
+        unzipMemoryLimit = limit;
+    }
+    
+    public int getUnzipMemoryLimit() {
+        return unzipMemoryLimit;
+    }
+    
+    public void setOverlayInitialContent(boolean overlay) {
+        overlayInitialContent = overlay;
+    }
+    
+    public boolean isOverlayInitialContent() {
+        return overlayInitialContent;
+    }
+    
     public void setSubscriptions(Map<String,Subscription> subs) {
         for( String name : subs.keySet() ) {
             Subscription sub = subs.get( name );
@@ -74,6 +167,10 @@ public class ContentManager {
         subscriptions.putAll( subs );
     }
     
+    public Collection<Subscription> getSubscriptions() {
+        return subscriptions.values();
+    }
+    
     public void setContentUnpackListeners(List<ContentUnpackListener> listeners) {
         contentUnpackListeners = listeners;
     }
@@ -108,6 +205,14 @@ public class ContentManager {
         return localSettings;
     }
     
+    public ContentStateFile getStateFile() {
+        return stateFile;
+    }
+    
+    public UpdateCostModel getCostModel() {
+        return costModel;
+    }
+    
     public File getContentDir() {
         return contentDir;
     }
@@ -116,6 +221,10 @@ public class ContentManager {
         return downloadDir;
     }
     
+    public ContentBlobStore getBlobStore() {
+        return blobStore;
+    }
+    
     public String getSubscriptionURL() {
         return subscriptionURL;
     }
@@ -167,16 +276,150 @@ public class ContentManager {
         }, listener);
     }
 
+    /**
+     * Start the background content scrubber.
+     * The scrubber incrementally verifies subscription content files and repairs any corrupted
+     * files found. See {@link ContentScrubber}.
+     */
+    public synchronized ContentScrubber startScrubber() {
+        if( scrubber == null ) {
+            scrubber = new ContentScrubber( this );
+        }
+        scrubber.start();
+        return scrubber;
+    }
+    
+    /**
+     * Stop the background content scrubber.
+     */
+    public synchronized void stopScrubber() {
+        if( scrubber != null ) {
+            scrubber.stop();
+        }
+    }
+
+    /**
+     * Snapshot a subscription's current content as its last known-good version.
+     * Called after each successful update. See {@link ContentSnapshot}.
+     * Snapshots are only taken when hard links are supported (see {@link FileLinks}); otherwise
+     * a snapshot means copying all content after every update, and a reset falls back to the
+     * base layer or to a full content download instead.
+     */
+    public void snapshotSubscriptionContent(Subscription subs) {
+        SubscriptionState.Transaction state = subs.getState().begin();
+        String version = state.getString("version");
+        try {
+            // Invalidate the previous snapshot before replacing it.
+            state.remove("snapshotVersion");
+            state.commit();
+            if( !FileLinks.Supported ) {
+                return;
+            }
+            getSnapshot( subs ).take( subs.getContentDir() );
+            state.setString("snapshotVersion", version );
+            state.commit();
+        }
+        catch(IOException e) {
+            Log.w( Tag, String.format("Failed to snapshot content for %s", subs.getName() ), e );
+        }
+    }
+
+    /**
+     * Reset a subscription's content to its last known-good version.
+     * If the subscription has a snapshot then its content is restored from the snapshot. This
+     * needs no network access and costs one file link per content file; a refresh after the reset
+     * then only downloads the updates since the snapshot's version. Otherwise, if the
+     * subscription's initial content was installed as a base layer (see {@link ContentOverlay})
+     * then the content directory is cleared, leaving only the base layer's version. Otherwise
+     * the content version is cleared, so that the next refresh requests full content; the current
+     * content is left in place until the full content is unpacked over it.
+     * Any interrupted unpack state, and any partly unpacked update, is discarded.
+     */
     public void resetSubscriptionContent(Subscription subs) {
-        
+        String name = subs.getName();
+        SubscriptionState.Transaction state = subs.getState().begin();
+        File subContentDir = subs.getContentDir();
+        ContentSnapshot snapshot = getSnapshot( subs );
+        String snapshotVersion = state.getString("snapshotVersion");
+        String baseVersion = state.getString("baseVersion");
+        String version = null;
+        lockSubscription( name, true );
+        try {
+            // Discard any partly unpacked update.
+            ContentSnapshot.removeDir( getStagingDir( subs ) );
+            if( snapshotVersion != null && snapshot.exists() ) {
+                snapshot.restore( subContentDir );
+                version = snapshotVersion;
+            }
+            else if( baseVersion != null ) {
+                ContentSnapshot.removeDir( subContentDir );
+                if( !subContentDir.mkdirs() ) {
+                    throw new IOException( String.format("Unable to create content directory %s", subContentDir ) );
+                }
+                version = baseVersion;
+            }
+        }
+        catch(IOException e) {
+            Log.e( Tag, String.format("Failed to reset content for %s", name ), e );
+            version = null;
+        }
+        finally {
+            state.remove("version","patchIndex","chunkIndex","repairPatches","postUnpackIndex","unpackStatus","sourceZip");
+            if( version != null ) {
+                state.setString("version", version );
+            }
+            state.commit();
+            lockSubscription( name, false );
+        }
+        Log.i( Tag, String.format("Reset content for %s to version %s", name, version ) );
+    }
+
+    /**
+     * Get a subscription's content snapshot.
+     */
+    private ContentSnapshot getSnapshot(Subscription subs) {
+        return new ContentSnapshot( new File( snapshotDir, subs.getName() ) );
+    }
+
+    /**
+     * Get the directory a subscription's content updates are unpacked in before being committed.
+     * The directory is on the same file system as the subscription's content directory.
+     */
+    File getStagingDir(Subscription subs) {
+        return new File( stagingDir, subs.getName() );
     }
     
     /**
-     * Lock or unlock a named subscription.
-     * @param name
-     * @param locked
+     * Lock or unlock a named subscription's content for reading.
+     * Content files should be read with the lock held, so that they aren't read while an update
+     * is being committed; a reader sees either all of the previous content version or all of the
+     * new one. Updates are downloaded and unpacked alongside the current content, so readers only
+     * wait while a completed update is moved into place. Locks are shared across processes.
+     * A thread holding the read lock mustn't update the subscription.
+     * @param name      The subscription name.
+     * @param locked    true to acquire the read lock; false to release it.
+     */
+    public void lockSubscriptionForReading(String name, boolean locked) {
+        if( locked ) {
+            locks.lockRead( name );
+        }
+        else {
+            locks.unlockRead( name );
+        }
+    }
+    
+    /**
+     * Lock or unlock a named subscription's content for writing.
+     * The write lock excludes all readers and writers of the subscription, in all processes.
+     * @param name      The subscription name.
+     * @param locked    true to acquire the write lock; false to release it.
      */
     protected void lockSubscription(String name, boolean locked) {
-        
+        if( locked ) {
+            locks.lockWrite( name );
+        }
+        else {
+            locks.unlockWrite( name );
+        }
     }
 }
@@ -0,0 +1,254 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.util.Log;
+
+/**
+ * A layered view of a subscription's content.
+ * The view has a read-only base layer - a zip file of initial content bundled with the app - and
+ * an upper layer - the subscription's content directory. Base files are read straight from the
+ * zip archive, so initial content is available without being unzipped; content updates are
+ * written to the upper layer, so only files which are updated are ever written to disk.
+ * A file in the upper layer hides the file at the same path in the base layer. A base file is
+ * deleted by creating a whiteout: an empty marker file in the upper layer, named after the
+ * deleted file with the {@link #WhiteoutPrefix} prefix, which hides the base file.
+ * Without a base layer, the view is simply the content directory.
+ * Content should be read through the view whenever a subscription may have a base layer.
+ * Views are thread safe.
+ * @author juliangoacher
+ *
+ */
+public class ContentOverlay {
+
+    static final String Tag = ContentOverlay.class.getSimpleName();
+
+    /** The file name prefix of whiteout files. */
+    public static final String WhiteoutPrefix = ".wh.";
+
+    /** The upper layer; the subscription content directory. */
+    private File upperDir;
+    /** The base layer's zip file; null if the view has no base layer. */
+    private File baseFile;
+    /** The base layer's zip archive. Opened when first needed. */
+    private ZipFile baseZip;
+
+    /**
+     * Create a content view.
+     * @param upperDir  The upper layer directory.
+     * @param baseFile  A zip file of base content; may be null.
+     */
+    public ContentOverlay(File upperDir, File baseFile) {
+        this.upperDir = upperDir;
+        this.baseFile = baseFile;
+    }
+
+    /**
+     * Get the upper layer directory.
+     */
+    public File getUpperDir() {
+        return upperDir;
+    }
+
+    /**
+     * Get the base layer's zip file.
+     * @return The zip file, or null if the view has no base layer.
+     */
+    public File getBaseFile() {
+        return baseFile;
+    }
+
+    /**
+     * Get the upper layer file at a path. The file needn't exist.
+     * @param path  A content path, relative to the content directory.
+     */
+    public File getUpperFile(String path) {
+        return new File( upperDir, path );
+    }
+
+    /**
+     * Test whether a content file exists in the view.
+     * @param path  A content path, relative to the content directory.
+     */
+    public boolean exists(String path) throws IOException {
+        return getUpperFile( path ).isFile() || getBaseEntry( path ) != null;
+    }
+
+    /**
+     * Test whether a content file is read from the base layer.
+     * @param path  A content path, relative to the content directory.
+     */
+    public boolean isBaseFile(String path) throws IOException {
+        return !getUpperFile( path ).isFile() && getBaseEntry( path ) != null;
+    }
+
+    /**
+     * Get the length of a content file.
+     * @param path  A content path, relative to the content directory.
+     * @return The file's length, or -1 if the file doesn't exist.
+     */
+    public long length(String path) throws IOException {
+        File file = getUpperFile( path );
+        if( file.isFile() ) {
+            return file.length();
+        }
+        ZipEntry entry = getBaseEntry( path );
+        return entry != null ? entry.getSize() : -1;
+    }
+
+    /**
+     * Open a content file for reading.
+     * @param path  A content path, relative to the content directory.
+     * @throws FileNotFoundException If the file doesn't exist in the view.
+     */
+    public InputStream open(String path) throws IOException {
+        File file = getUpperFile( path );
+        if( file.isFile() ) {
+            return new FileInputStream( file );
+        }
+        ZipEntry entry = getBaseEntry( path );
+        if( entry == null ) {
+            throw new FileNotFoundException( String.format("Content file not found: %s", path ) );
+        }
+        return getBaseZip().getInputStream( entry );
+    }
+
+    /**
+     * Read a content file's contents.
+     * @param path  A content path, relative to the content directory.
+     * @throws FileNotFoundException If the file doesn't exist in the view.
+     */
+    public byte[] readFile(String path) throws IOException {
+        long length = length( path );
+        if( length > Integer.MAX_VALUE ) {
+            throw new IOException( String.format("Content file too large: %s", path ) );
+        }
+        InputStream in = open( path );
+        try {
+            byte[] data = new byte[(int)length];
+            if( ContentExtractor.readFully( in, data, data.length ) != data.length ) {
+                throw new IOException( String.format("Unexpected end of content file %s", path ) );
+            }
+            return data;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete a content file from the view.
+     * The file is deleted from the upper layer; if the base layer contains the file then it is
+     * hidden by a whiteout. Deleting a file which doesn't exist has no effect.
+     * @param path  A content path, relative to the content directory.
+     */
+    public void delete(String path) throws IOException {
+        File file = getUpperFile( path );
+        if( !file.delete() && file.exists() ) {
+            throw new IOException( String.format("Unable to delete file %s", file ) );
+        }
+        if( getBaseEntry( path ) != null ) {
+            File whiteout = getWhiteout( path );
+            File dir = whiteout.getParentFile();
+            if( !(dir.exists() || dir.mkdirs()) ) {
+                throw new IOException( String.format("Unable to create directory %s", dir ) );
+            }
+            if( !(whiteout.createNewFile() || whiteout.exists()) ) {
+                throw new IOException( String.format("Unable to create whiteout %s", whiteout ) );
+            }
+        }
+    }
+
+    /**
+     * List the contents of a directory in the view.
+     * @param path  A directory path, relative to the content directory; the empty string for the
+     *              content directory itself.
+     * @return The names of the files and sub-directories in the directory, in sorted order.
+     */
+    public List<String> list(String path) throws IOException {
+        TreeSet<String> names = new TreeSet<String>();
+        File dir = path.length() == 0 ? upperDir : getUpperFile( path );
+        String[] upperNames = dir.list();
+        if( upperNames != null ) {
+            for( String name : upperNames ) {
+                if( !name.startsWith( WhiteoutPrefix ) ) {
+                    names.add( name );
+                }
+            }
+        }
+        ZipFile zip = getBaseZip();
+        if( zip != null ) {
+            String prefix = path.length() == 0 || path.endsWith("/") ? path : path+"/";
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while( entries.hasMoreElements() ) {
+                String entryName = entries.nextElement().getName();
+                if( entryName.length() > prefix.length() && entryName.startsWith( prefix ) ) {
+                    int end = entryName.indexOf('/', prefix.length() );
+                    String name = end == -1 ? entryName.substring( prefix.length() )
+                                            : entryName.substring( prefix.length(), end );
+                    if( !names.contains( name ) && !getWhiteout( prefix+name ).exists() ) {
+                        names.add( name );
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableList( new ArrayList<String>( names ) );
+    }
+
+    /**
+     * Close the base layer's zip archive.
+     * The archive is reopened if the view is used again.
+     */
+    public synchronized void close() {
+        if( baseZip != null ) {
+            try {
+                baseZip.close();
+            }
+            catch(IOException e) {
+                Log.w( Tag, String.format("Failed to close %s", baseFile ), e );
+            }
+            baseZip = null;
+        }
+    }
+
+    /**
+     * Get the base layer's entry for a file, if the file isn't hidden by a whiteout.
+     */
+    private ZipEntry getBaseEntry(String path) throws IOException {
+        ZipFile zip = getBaseZip();
+        if( zip == null ) {
+            return null;
+        }
+        ZipEntry entry = zip.getEntry( path );
+        if( entry == null || entry.isDirectory() || getWhiteout( path ).exists() ) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Get the whiteout file for a content path.
+     */
+    private File getWhiteout(String path) {
+        File file = getUpperFile( path );
+        return new File( file.getParentFile(), WhiteoutPrefix+file.getName() );
+    }
+
+    private synchronized ZipFile getBaseZip() throws IOException {
+        if( baseZip == null && baseFile != null ) {
+            baseZip = new ZipFile( baseFile );
+        }
+        return baseZip;
+    }
+}
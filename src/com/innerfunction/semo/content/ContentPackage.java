@@ -0,0 +1,104 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A downloaded or bundled content package.
+ * Provides random access to the package's entries, independently of the package format.
+ * Two formats are supported: standard zip files (deflate compressed), and semo packs (LZ4
+ * compressed, see {@link LZ4ContentPackage}). The format of a package file is detected from
+ * its leading magic number.
+ * Implementations must allow different entries to be read concurrently from different threads.
+ * @author juliangoacher
+ *
+ */
+public abstract class ContentPackage {
+
+    /** The magic number at the start of a zip file. */
+    static final byte[] ZipMagic = new byte[]{ 'P', 'K', 3, 4 };
+
+    /** A package entry. */
+    public static class Entry {
+        /** The entry's path within the package. */
+        String name;
+        /** Flag indicating whether the entry is a directory. */
+        boolean directory;
+        /** The entry's uncompressed size, or -1 if not known. */
+        long size;
+        /** The CRC32 of the entry's uncompressed data, or -1 if not known. */
+        long crc;
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+    }
+
+    /**
+     * Get the package's entries, in package order.
+     */
+    public abstract List<Entry> getEntries();
+
+    /**
+     * Open an input stream on an entry's uncompressed data.
+     */
+    public abstract InputStream openEntry(Entry entry) throws IOException;
+
+    /**
+     * Close the package.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Open a content package file.
+     * The package format is detected from the file's magic number.
+     */
+    public static ContentPackage open(File file) throws IOException {
+        byte[] magic = new byte[LZ4ContentPackage.Magic.length];
+        InputStream in = new FileInputStream( file );
+        try {
+            ContentExtractor.readFully( in, magic, magic.length );
+        }
+        finally {
+            in.close();
+        }
+        if( Arrays.equals( magic, LZ4ContentPackage.Magic ) ) {
+            return new LZ4ContentPackage( file );
+        }
+        if( startsWith( magic, ZipMagic ) ) {
+            return new ZipContentPackage( file );
+        }
+        throw new IOException( String.format("Unrecognized content package format: %s", file ) );
+    }
+
+    /**
+     * Test whether a byte array starts with a prefix.
+     */
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if( data.length < prefix.length ) {
+            return false;
+        }
+        for( int i = 0; i < prefix.length; i++ ) {
+            if( data[i] != prefix[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,252 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.innerfunction.util.StringTemplate;
+
+/**
+ * A class for repairing individual content files.
+ * When a content file fails validation (e.g. because a patch can't be applied to it) then
+ * instead of discarding all of a subscription's content and downloading a full content package,
+ * the file alone is downloaded from a per-file endpoint. The endpoint is configured on the content
+ * manager as a URL template, see {@link ContentManager#setRepairURL(String)}.
+ * Downloads are synchronous, so repairs should only be performed on a background thread.
+ * @author juliangoacher
+ *
+ */
+public class ContentRepairer {
+
+    static final String Tag = ContentRepairer.class.getSimpleName();
+
+    /** The connect timeout for file requests, in ms. */
+    static final int ConnectTimeout = 15000;
+    /** The read timeout for file requests, in ms. */
+    static final int ReadTimeout = 30000;
+
+    /** The content manager. */
+    private ContentManager manager;
+    /** The blob store repaired files are written to. */
+    private ContentBlobStore blobStore;
+    /** A hash for verifying downloaded files; replaced when a different algorithm is needed. */
+    private ContentHash contentHash;
+    /** A message digest for calculating hashes of blob store content. */
+    private MessageDigest blobMD = ContentBlobStore.newDigest();
+    /** A buffer for copying file data. */
+    private byte[] buffer = new byte[ContentBlobStore.CopyBufferSize];
+
+    public ContentRepairer(ContentManager manager) {
+        this.manager = manager;
+        this.blobStore = manager.getBlobStore();
+    }
+
+    /**
+     * Test whether file repairs are possible, i.e. whether a repair URL is configured.
+     */
+    public boolean canRepair() {
+        return manager.getRepairURL() != null;
+    }
+
+    /**
+     * Repair a content file by downloading it from the repair endpoint.
+     * The downloaded file is only moved into place if it matches the expected hash.
+     * @param sub       The subscription the file belongs to.
+     * @param contentDir The directory to write the file to; either the subscription's content
+     *                  directory, or the staging directory of an update being unpacked.
+     * @param version   The content version to download the file for.
+     * @param path      The file's path, relative to the content directory.
+     * @param algorithm The hash algorithm, as declared by the version manifest; null for the default.
+     * @param hash      The expected hash of the file's contents, hex encoded.
+     * @return true if the file was repaired.
+     */
+    public boolean repairFile(Subscription sub, File contentDir, String version, String path, String algorithm,
+            String hash) {
+        return repairFile( sub, contentDir, version, path, algorithm, hash, -1, null );
+    }
+
+    /**
+     * Repair a file in a subscription's live content by downloading it from the repair endpoint.
+     * The downloaded file is only moved into place if it matches the expected CRC, and if the
+     * subscription's content is still at the specified version with no unpack in progress; an
+     * unpack may have replaced the content whilst the file was downloading. The repaired file is
+     * then recorded in the content index.
+     * @param sub       The subscription the file belongs to.
+     * @param index     The index of the subscription's content.
+     * @param version   The content version to download the file for.
+     * @param path      The file's path, relative to the subscription's content directory.
+     * @param crc       The expected CRC32 of the file's contents.
+     * @return true if the file was repaired.
+     */
+    public boolean repairFile(Subscription sub, ContentIndex index, String version, String path, long crc) {
+        return repairFile( sub, sub.getContentDir(), version, path, null, null, crc, index );
+    }
+
+    private synchronized boolean repairFile(Subscription sub, File contentDir, String version, String path,
+            String algorithm, String hash, long crc, ContentIndex index) {
+        if( !canRepair() ) {
+            return false;
+        }
+        File targetFile = new File( contentDir, path );
+        File tempFile = null;
+        try {
+            // Use a unique temp file name, as the unpacker and the scrubber may both repair files.
+            tempFile = File.createTempFile("repair", ".temp", new File( contentDir, ".semo") );
+            String url = getFileURL( sub, version, path );
+            CRC32 fileCRC = new CRC32();
+            ContentHash fileHash = null;
+            if( hash != null ) {
+                contentHash = ContentHash.getInstance( algorithm, contentHash );
+                fileHash = contentHash;
+            }
+            download( url, tempFile, fileCRC, fileHash );
+            if( fileHash != null ) {
+                String digest = fileHash.digest();
+                if( !digest.equals( hash ) ) {
+                    Log.w( Tag, String.format("Repair of %s failed; bad hash %s from %s", path, digest, url ) );
+                    return false;
+                }
+            }
+            if( crc != -1 && fileCRC.getValue() != crc ) {
+                Log.w( Tag, String.format("Repair of %s failed; bad CRC %d from %s", path, fileCRC.getValue(), url ) );
+                return false;
+            }
+            // Files written to the live content directory (rather than an update's staging directory)
+            // are written under the subscription's write lock, so readers don't see the change part
+            // way through. The lock is only held once the file has been downloaded and verified.
+            boolean live = contentDir.equals( sub.getContentDir() );
+            if( live ) {
+                manager.lockSubscription( sub.getName(), true );
+            }
+            try {
+                if( index != null && !isCurrent( sub, version ) ) {
+                    Log.i( Tag, String.format("Content of %s changed during repair of %s; repair dropped", sub.getName(), path ) );
+                    return false;
+                }
+                InputStream in = new FileInputStream( tempFile );
+                try {
+                    // The target may be corrupted through its blob, so replace the blob too.
+                    blobStore.writeFile( targetFile, in, buffer, blobMD, true );
+                }
+                finally {
+                    in.close();
+                }
+                if( index != null ) {
+                    index.put( path, targetFile, crc );
+                    try {
+                        index.save();
+                    }
+                    catch(IOException e) {
+                        Log.w( Tag, String.format("Failed to save content index after repair of %s", path ), e );
+                    }
+                }
+            }
+            finally {
+                if( live ) {
+                    manager.lockSubscription( sub.getName(), false );
+                }
+            }
+            Log.i( Tag, String.format("Repaired %s/%s", sub.getName(), path ) );
+            return true;
+        }
+        catch(IOException e) {
+            Log.w( Tag, String.format("Repair of %s failed", path ), e );
+            return false;
+        }
+        finally {
+            if( tempFile != null ) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Test whether a subscription's content is at a specified version, with no unpack in progress.
+     */
+    private boolean isCurrent(Subscription sub, String version) {
+        SubscriptionState state = sub.getState();
+        return version.equals( state.getString("version") ) && state.getString("unpackStatus") == null;
+    }
+
+    /**
+     * Get the URL of a content file on the repair endpoint.
+     * @param sub       The subscription the file belongs to.
+     * @param version   The content version.
+     * @param path      The file's path, relative to the subscription's content directory.
+     * @return The file URL, or null if no repair URL is configured.
+     */
+    public String getFileURL(Subscription sub, String version, String path) throws IOException {
+        String repairURL = manager.getRepairURL();
+        if( repairURL == null ) {
+            return null;
+        }
+        Map<String,Object> context = new HashMap<String,Object>();
+        context.put("subs", sub.getName() );
+        context.put("version", version );
+        context.put("file", encodePath( path ) );
+        return StringTemplate.render( repairURL, context );
+    }
+
+    /**
+     * Download a URL to a file.
+     * @param crc   Updated with the downloaded data.
+     * @param hash  Updated with the downloaded data; may be null.
+     */
+    private void download(String url, File file, CRC32 crc, ContentHash hash) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL( url ).openConnection();
+        try {
+            connection.setConnectTimeout( ConnectTimeout );
+            connection.setReadTimeout( ReadTimeout );
+            int responseCode = connection.getResponseCode();
+            if( responseCode != HttpURLConnection.HTTP_OK ) {
+                throw new IOException( String.format("HTTP %d from %s", responseCode, url ) );
+            }
+            InputStream in = connection.getInputStream();
+            OutputStream out = new FileOutputStream( file );
+            try {
+                int read;
+                while( (read = in.read( buffer )) != -1 ) {
+                    if( hash != null ) {
+                        hash.update( buffer, 0, read );
+                    }
+                    crc.update( buffer, 0, read );
+                    out.write( buffer, 0, read );
+                }
+            }
+            finally {
+                out.close();
+                in.close();
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * URL encode each segment of a content file path.
+     */
+    private static String encodePath(String path) throws IOException {
+        StringBuilder encoded = new StringBuilder();
+        for( String segment : path.split("/") ) {
+            if( encoded.length() > 0 ) {
+                encoded.append('/');
+            }
+            // URLEncoder encodes spaces as '+', which is only valid in query strings.
+            encoded.append( URLEncoder.encode( segment, "UTF-8").replace("+", "%20") );
+        }
+        return encoded.toString();
+    }
+}
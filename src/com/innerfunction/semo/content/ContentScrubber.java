@@ -0,0 +1,251 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A background process which incrementally verifies subscription content.
+ * Each content file is read and its CRC compared with the CRC recorded in the subscription's
+ * content index when the file was written; files which no longer match have been corrupted on
+ * disk, and are repaired using a {@link ContentRepairer}. This finds corrupted files before an
+ * update needs to patch them, rather than when the patch fails.
+ * Only files whose index record is still current (i.e. the file hasn't been replaced since it was
+ * indexed) can be verified; other files are skipped. Subscriptions with an unpack in progress are
+ * skipped until the unpack completes.
+ * The scrubber runs on a single low priority thread, and works in short time slices; after each
+ * slice it sleeps for long enough to keep within its CPU and I/O budgets. The CPU budget is
+ * measured as the fraction of elapsed time spent working. Each subscription's progress is
+ * checkpointed in its state, so that a pass interrupted by the app stopping resumes from the last
+ * checkpointed file.
+ * @author juliangoacher
+ *
+ */
+public class ContentScrubber implements Runnable {
+
+    static final String Tag = ContentScrubber.class.getSimpleName();
+
+    /** The default fraction of time spent working. */
+    static final float DefaultCPUBudget = 0.05f;
+    /** The default limit on file data read, in bytes per second. */
+    static final int DefaultIOBudget = 256 * 1024;
+    /** The default time between full verification passes of a subscription's content, in ms. */
+    static final long DefaultScrubInterval = 24 * 60 * 60 * 1000;
+    /** The length of a work slice, in ms. */
+    static final long SliceTime = 20;
+    /** The minimum time between progress checkpoints, in ms. */
+    static final long CheckpointInterval = 10000;
+    /** The time between checks for subscriptions due a verification pass, in ms. */
+    static final long IdleTime = 60 * 60 * 1000;
+
+    /** The content manager. */
+    private ContentManager manager;
+    /** An object for repairing corrupted files. */
+    private ContentRepairer repairer;
+    /** The fraction of time spent working. */
+    private volatile float cpuBudget = DefaultCPUBudget;
+    /** The limit on file data read, in bytes per second. */
+    private volatile int ioBudget = DefaultIOBudget;
+    /** The time between full verification passes of a subscription's content, in ms. */
+    private volatile long scrubInterval = DefaultScrubInterval;
+    /** The scrubber thread; null when not running. */
+    private Thread thread;
+    /** A buffer for reading file data. */
+    private byte[] buffer = new byte[ContentBlobStore.CopyBufferSize];
+    /** The start time of the current work slice, in ns. */
+    private long sliceStart;
+    /** The number of bytes read in the current work slice. */
+    private long sliceBytes;
+
+    public ContentScrubber(ContentManager manager) {
+        this.manager = manager;
+        this.repairer = new ContentRepairer( manager );
+    }
+
+    /**
+     * Set the fraction of time the scrubber spends working, e.g. 0.05 for 5%.
+     */
+    public void setCPUBudget(float budget) {
+        cpuBudget = Math.min( 1f, Math.max( 0.001f, budget ) );
+    }
+
+    /**
+     * Set the limit on the rate at which the scrubber reads file data, in bytes per second.
+     */
+    public void setIOBudget(int budget) {
+        ioBudget = Math.max( 1, budget );
+    }
+
+    /**
+     * Set the time between full verification passes of a subscription's content, in ms.
+     */
+    public void setScrubInterval(long interval) {
+        scrubInterval = interval;
+    }
+
+    /**
+     * Start the scrubber thread, if not already running.
+     */
+    public synchronized void start() {
+        if( thread == null ) {
+            thread = new Thread( this, Tag );
+            thread.setDaemon( true );
+            thread.setPriority( Thread.MIN_PRIORITY );
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the scrubber thread.
+     * Progress since the last checkpoint is lost.
+     */
+    public synchronized void stop() {
+        if( thread != null ) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private synchronized boolean isRunning() {
+        return thread == Thread.currentThread();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while( isRunning() ) {
+                List<Subscription> subs = new ArrayList<Subscription>( manager.getSubscriptions() );
+                for( Subscription sub : subs ) {
+                    try {
+                        if( isDue( sub ) ) {
+                            scrub( sub );
+                        }
+                    }
+                    catch(RuntimeException e) {
+                        // Log and carry on with the other subscriptions; the failed subscription is
+                        // retried on the next pass.
+                        Log.e( Tag, String.format("Failed to verify %s", sub.getName() ), e );
+                    }
+                }
+                Thread.sleep( IdleTime );
+            }
+        }
+        catch(InterruptedException e) {
+            // Scrubber stopped.
+        }
+    }
+
+    /**
+     * Test whether a subscription is due a verification pass.
+     */
+    private boolean isDue(Subscription sub) {
+        SubscriptionState state = sub.getState();
+        if( state == null || state.getString("version") == null || state.getString("unpackStatus") != null ) {
+            // Subscription not yet set up, has no content, or has an unpack in progress.
+            return false;
+        }
+        long lastScrub = state.getLong("scrubTime", 0 );
+        return System.currentTimeMillis() - lastScrub >= scrubInterval || state.getString("scrubPath") != null;
+    }
+
+    /**
+     * Verify a subscription's content, starting after the last checkpointed file.
+     */
+    private void scrub(Subscription sub) throws InterruptedException {
+        SubscriptionState.Transaction state = sub.getState().begin();
+        String version = state.getString("version");
+        File contentDir = sub.getContentDir();
+        ContentIndex index = new ContentIndex( new File( contentDir, ContentUnpacker.ContentIndexFileName ) );
+        List<String> paths = index.getPaths();
+        // Resume from the file after the last checkpointed file.
+        int start = 0;
+        String scrubPath = state.getString("scrubPath");
+        if( scrubPath != null ) {
+            int i = Collections.binarySearch( paths, scrubPath );
+            start = i < 0 ? -(i + 1) : i + 1;
+        }
+        Log.d( Tag, String.format("Verifying %s from file %d of %d", sub.getName(), start, paths.size() ) );
+        long lastCheckpoint = System.currentTimeMillis();
+        sliceStart = System.nanoTime();
+        sliceBytes = 0;
+        for( int i = start; i < paths.size(); i++ ) {
+            if( !isRunning() ) {
+                throw new InterruptedException();
+            }
+            // Stop if an unpack has started, as it may replace files being verified. The next pass
+            // starts from the beginning, as the content is changing.
+            if( state.getString("unpackStatus") != null || !version.equals( state.getString("version") ) ) {
+                state.remove("scrubPath");
+                state.commit();
+                return;
+            }
+            String path = paths.get( i );
+            File file = new File( contentDir, path );
+            long crc = index.getRecordedCRC( path, file );
+            if( crc != -1 ) {
+                try {
+                    if( crc != readCRC( file ) ) {
+                        Log.w( Tag, String.format("Corrupt content file %s/%s", sub.getName(), path ) );
+                        if( !repairer.repairFile( sub, index, version, path, crc ) ) {
+                            Log.w( Tag, String.format("Unable to repair %s/%s", sub.getName(), path ) );
+                        }
+                    }
+                }
+                catch(IOException e) {
+                    Log.w( Tag, String.format("Failed to verify %s/%s", sub.getName(), path ), e );
+                }
+            }
+            state.setString("scrubPath", path );
+            if( System.currentTimeMillis() - lastCheckpoint > CheckpointInterval ) {
+                state.commit();
+                lastCheckpoint = System.currentTimeMillis();
+            }
+        }
+        // Pass complete.
+        state.remove("scrubPath");
+        state.setString("scrubTime", Long.toString( System.currentTimeMillis() ) );
+        state.commit();
+    }
+
+    /**
+     * Read a file and calculate its CRC, throttling reads to keep within the scrubber's budgets.
+     */
+    private long readCRC(File file) throws IOException, InterruptedException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream( file );
+        try {
+            int read;
+            while( (read = in.read( buffer )) != -1 ) {
+                crc.update( buffer, 0, read );
+                sliceBytes += read;
+                throttle();
+            }
+        }
+        finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Sleep at the end of a work slice, for long enough to keep within the CPU and I/O budgets.
+     */
+    private void throttle() throws InterruptedException {
+        long elapsed = (System.nanoTime() - sliceStart) / 1000000;
+        if( elapsed < SliceTime ) {
+            return;
+        }
+        long cpuSleep = (long)(elapsed * (1 - cpuBudget) / cpuBudget);
+        long ioSleep = sliceBytes * 1000 / ioBudget - elapsed;
+        Thread.sleep( Math.max( 0, Math.max( cpuSleep, ioSleep ) ) );
+        sliceStart = System.nanoTime();
+        sliceBytes = 0;
+    }
+}
@@ -0,0 +1,188 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * A snapshot of a subscription's content directory, used to quickly restore the subscription's
+ * content to its last known-good version.
+ * A snapshot is a copy of the content directory's tree in which each file is a hard link to the
+ * content file; because content files are always replaced rather than written in place (see
+ * {@link ContentBlobStore}) a snapshot's files keep their contents when the content is later
+ * updated. Taking or restoring a snapshot therefore costs one link per file and no file data is
+ * copied, unless links aren't supported - by the file system, or before API level 21 (see
+ * {@link FileLinks}) - in which case files are copied instead. Because of that cost, the content
+ * manager only takes snapshots when links are supported.
+ * Each snapshot replaces the previous one atomically. Transient unpack state under the content
+ * directory's .semo directory isn't included, other than the content manifest.
+ * Whiteouts of files in a base layer of initial content (see {@link ContentOverlay}) are included,
+ * so a restored snapshot has the same view of the base layer.
+ * @author juliangoacher
+ *
+ */
+public class ContentSnapshot {
+
+    static final String Tag = ContentSnapshot.class.getSimpleName();
+
+    /** The name of the content directory's internal directory. */
+    static final String SemoDirName = ".semo";
+    /** The name of the content manifest, the only file in the internal directory snapshotted. */
+    static final String ManifestFileName = "manifest.json";
+
+    /** The snapshot directory. */
+    private File snapshotDir;
+
+    /**
+     * Create a snapshot.
+     * @param snapshotDir   The directory the snapshot is stored in.
+     */
+    public ContentSnapshot(File snapshotDir) {
+        this.snapshotDir = snapshotDir;
+    }
+
+    /**
+     * Test whether the snapshot has been taken.
+     */
+    public boolean exists() {
+        return snapshotDir.isDirectory();
+    }
+
+    /**
+     * Take a snapshot of a content directory, replacing any previous snapshot.
+     * @param contentDir    The content directory.
+     */
+    public void take(File contentDir) throws IOException {
+        File tempDir = new File( snapshotDir.getParentFile(), snapshotDir.getName()+".temp");
+        removeDir( tempDir );
+        linkTree( contentDir, tempDir, true );
+        removeDir( replaceDir( tempDir, snapshotDir ) );
+    }
+
+    /**
+     * Restore a content directory from the snapshot.
+     * The restored directory is built alongside the content directory and then moved into place,
+     * so the content directory's files are replaced all at once.
+     * @param contentDir    The content directory.
+     */
+    public void restore(File contentDir) throws IOException {
+        if( !exists() ) {
+            throw new IOException( String.format("Snapshot %s not found", snapshotDir ) );
+        }
+        File tempDir = new File( contentDir.getParentFile(), contentDir.getName()+".restore");
+        removeDir( tempDir );
+        linkTree( snapshotDir, tempDir, false );
+        removeDir( replaceDir( tempDir, contentDir ) );
+    }
+
+    /**
+     * Delete the snapshot.
+     */
+    public void delete() throws IOException {
+        removeDir( snapshotDir );
+    }
+
+    /**
+     * Replace a directory with a copy of another directory's tree, in which each file is linked to
+     * its original. The copy is built alongside the directory and then moved into place.
+     * @param fromDir       The directory to copy.
+     * @param toDir         The directory to replace.
+     */
+    static void linkDir(File fromDir, File toDir) throws IOException {
+        File tempDir = new File( toDir.getParentFile(), toDir.getName()+".temp");
+        removeDir( tempDir );
+        linkTree( fromDir, tempDir, false );
+        removeDir( replaceDir( tempDir, toDir ) );
+    }
+
+    /**
+     * Recreate a directory tree, linking each file in the tree to its original.
+     * @param fromDir       The directory to link from.
+     * @param toDir         The directory to create.
+     * @param content       If true then the tree is a content directory, and transient files in
+     *                      its internal directory are skipped.
+     */
+    private static void linkTree(File fromDir, File toDir, boolean content) throws IOException {
+        if( !(toDir.exists() || toDir.mkdirs()) ) {
+            throw new IOException( String.format("Unable to create directory %s", toDir ) );
+        }
+        File[] files = fromDir.listFiles();
+        if( files == null ) {
+            return;
+        }
+        for( File file : files ) {
+            File toFile = new File( toDir, file.getName() );
+            if( file.isDirectory() ) {
+                if( content && SemoDirName.equals( file.getName() ) ) {
+                    File manifestFile = new File( file, ManifestFileName );
+                    if( manifestFile.exists() ) {
+                        if( !(toFile.exists() || toFile.mkdirs()) ) {
+                            throw new IOException( String.format("Unable to create directory %s", toFile ) );
+                        }
+                        linkFile( manifestFile, new File( toFile, ManifestFileName ) );
+                    }
+                }
+                else {
+                    linkTree( file, toFile, false );
+                }
+            }
+            else {
+                linkFile( file, toFile );
+            }
+        }
+    }
+
+    /**
+     * Link a file to a new path, copying the file if it can't be linked.
+     */
+    private static void linkFile(File from, File to) throws IOException {
+        if( !FileLinks.link( from, to ) ) {
+            if( FileLinks.Supported ) {
+                Log.w( Tag, String.format("Unable to link %s, copying instead", from ) );
+            }
+            ContentBlobStore.copyFile( from, to );
+        }
+    }
+
+    /**
+     * Replace a directory with another, by moving the old directory aside before moving the new
+     * directory into its place. Only two renames are done, so the replacement is quick however
+     * large the directories are; the old directory is left for the caller to remove.
+     * @return The old directory's new location. The directory won't exist if there was no old
+     * directory.
+     */
+    static File replaceDir(File newDir, File dir) throws IOException {
+        File oldDir = new File( dir.getParentFile(), dir.getName()+".old");
+        removeDir( oldDir );
+        if( dir.exists() && !dir.renameTo( oldDir ) ) {
+            throw new IOException( String.format("Unable to move %s aside", dir ) );
+        }
+        if( !newDir.renameTo( dir ) ) {
+            // Put the old directory back.
+            oldDir.renameTo( dir );
+            throw new IOException( String.format("Unable to move %s into place", newDir ) );
+        }
+        return oldDir;
+    }
+
+    /**
+     * Delete a directory and its contents.
+     */
+    static void removeDir(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if( files != null ) {
+            for( File file : files ) {
+                if( file.isDirectory() ) {
+                    removeDir( file );
+                }
+                else if( !file.delete() && file.exists() ) {
+                    throw new IOException( String.format("Unable to delete %s", file ) );
+                }
+            }
+        }
+        if( !dir.delete() && dir.exists() ) {
+            throw new IOException( String.format("Unable to delete %s", dir ) );
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package com.innerfunction.semo.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A single memory-mapped file holding the persistent state of all content subscriptions.
+ * Allows the state of every subscription (content version, initialized flag, download and unpack
+ * progress etc.) to be read on startup with a single file mapping, rather than by loading a
+ * separate preference store per subscription.
+ * State is organized as a set of named sections - one per subscription - each containing a map
+ * of string values. The complete state is written on each update, into one of two alternating
+ * record slots; each record has a sequence number and a CRC, so a crash during a write leaves the
+ * previous record intact and on load the valid record with the highest sequence number is used.
+ * The file may be shared by several processes (e.g. an app's UI and push service processes).
+ * Updates are made under an exclusive lock on the file, and the current record is re-read before
+ * each update is applied, so that each process's updates are made to the latest state. Reads
+ * check the shared mapping for a newer record written by another process. The file is never
+ * replaced, as other processes would keep their mappings of the replaced file; instead it is
+ * initialized and grown in place.
+ * The file layout is:
+ * <pre>
+ *   magic      8 bytes; "SEMOSTAT"
+ *   slotSize   int; the size of each record slot
+ *   (padding)  4 bytes
+ *   slot 0     slotSize bytes
+ *   slot 1     slotSize bytes
+ * </pre>
+ * Each slot contains a record: a long sequence number, an int data length, an int CRC32 of the
+ * sequence number, length and data, followed by the data. The data starts with an int format
+ * marker, followed by an int section count; then for each section its name, an int value count
+ * and its keys and values. Strings are written as an int length followed by UTF-8 bytes, so
+ * values aren't limited to the 64KB of DataOutput.writeUTF(). Records written before the format
+ * marker was introduced start directly with the (non-negative) section count, and use writeUTF()
+ * strings; these are still read.
+ * If the file can't be opened then the state is held in memory only, and each update throws
+ * an IOException after being applied in memory.
+ * @author juliangoacher
+ *
+ */
+public class ContentStateFile {
+
+    static final String Tag = ContentStateFile.class.getSimpleName();
+
+    /** The state file's magic number. */
+    static final byte[] Magic = new byte[]{ 'S', 'E', 'M', 'O', 'S', 'T', 'A', 'T' };
+    /** The size of the file header. */
+    static final int HeaderSize = 16;
+    /** The size of a record header. */
+    static final int RecordHeaderSize = 16;
+    /** The format marker at the start of record data. */
+    static final int RecordFormat = -1;
+    /** The initial size of a record slot. */
+    static final int InitialSlotSize = 16 * 1024;
+
+    /** The state file. */
+    private File file;
+    /** The open state file; kept open for locking. */
+    private RandomAccessFile raf;
+    /** The state file's channel. */
+    private FileChannel channel;
+    /** The mapped file contents. */
+    private MappedByteBuffer buffer;
+    /** The size of each record slot. */
+    private int slotSize;
+    /** The sequence number of the current record. */
+    private long sequence;
+    /** The slot containing the current record. */
+    private int currentSlot;
+    /** The state, keyed by section name. */
+    private Map<String,Map<String,String>> sections = new HashMap<String,Map<String,String>>();
+
+    public ContentStateFile(File file) {
+        this.file = file;
+        try {
+            open();
+        }
+        catch(IOException e) {
+            Log.e( Tag, String.format("Failed to read state file %s", file ), e );
+            close();
+            sections.clear();
+        }
+    }
+
+    /**
+     * Close the file after a failed open, leaving the state in memory only.
+     */
+    private void close() {
+        buffer = null;
+        channel = null;
+        if( raf != null ) {
+            try {
+                raf.close();
+            }
+            catch(IOException e) {
+                Log.w( Tag, String.format("Failed to close state file %s", file ), e );
+            }
+            raf = null;
+        }
+    }
+
+    /**
+     * Test whether the state contains a named section.
+     */
+    public synchronized boolean hasSection(String name) {
+        refresh();
+        return sections.containsKey( name );
+    }
+
+    /**
+     * Get a state value.
+     * @param section   The section name.
+     * @param key       The value's key.
+     * @return The value, or null if not found.
+     */
+    public synchronized String get(String section, String key) {
+        refresh();
+        Map<String,String> values = sections.get( section );
+        return values == null ? null : values.get( key );
+    }
+
+    /**
+     * Update the state and write it to the file.
+     * The changes are applied to the latest state in the file, which may include updates made
+     * by other processes. If the write fails then the in-memory state is still updated.
+     * @param section   The section name. The section is created if it doesn't exist.
+     * @param changes   A map of changes to apply; a null value removes the value from the section.
+     */
+    public synchronized void update(String section, Map<String,String> changes) throws IOException {
+        if( channel == null ) {
+            apply( section, changes );
+            throw new IOException( String.format("State file %s not open", file ) );
+        }
+        FileLock lock = channel.lock();
+        try {
+            reload();
+            apply( section, changes );
+            write();
+        }
+        catch(IOException e) {
+            apply( section, changes );
+            throw e;
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Apply changes to the in-memory state.
+     */
+    private void apply(String section, Map<String,String> changes) {
+        Map<String,String> values = sections.get( section );
+        if( values == null ) {
+            values = new HashMap<String,String>();
+            sections.put( section, values );
+        }
+        for( Map.Entry<String,String> change : changes.entrySet() ) {
+            if( change.getValue() == null ) {
+                values.remove( change.getKey() );
+            }
+            else {
+                values.put( change.getKey(), change.getValue() );
+            }
+        }
+    }
+
+    /**
+     * Open and map the state file and read the current record, initializing the file if it is
+     * new or unreadable.
+     */
+    private void open() throws IOException {
+        File dir = file.getParentFile();
+        if( !(dir.exists() || dir.mkdirs()) ) {
+            throw new IOException( String.format("Unable to create directory %s", dir ) );
+        }
+        raf = new RandomAccessFile( file, "rw");
+        channel = raf.getChannel();
+        FileLock lock = channel.lock();
+        try {
+            if( readHeader() ) {
+                reload();
+            }
+            else {
+                if( channel.size() > 0 ) {
+                    Log.w( Tag, String.format("Bad state file %s, discarding", file ) );
+                }
+                initialize();
+            }
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Map the file and read its header.
+     * @return false if the file doesn't have a valid header.
+     */
+    private boolean readHeader() throws IOException {
+        if( channel.size() < HeaderSize ) {
+            return false;
+        }
+        map();
+        byte[] magic = new byte[Magic.length];
+        buffer.position( 0 );
+        buffer.get( magic );
+        int headerSlotSize = buffer.getInt();
+        if( !Arrays.equals( magic, Magic ) || headerSlotSize < RecordHeaderSize || buffer.capacity() < HeaderSize + 2 * headerSlotSize ) {
+            return false;
+        }
+        slotSize = headerSlotSize;
+        return true;
+    }
+
+    /**
+     * Test whether another process has changed the file since the current record was read.
+     */
+    private boolean isChanged() {
+        if( buffer.getInt( Magic.length ) != slotSize ) {
+            return true;
+        }
+        return buffer.getLong( HeaderSize ) > sequence || buffer.getLong( HeaderSize + slotSize ) > sequence;
+    }
+
+    /**
+     * Read a newer record written by another process, if there is one.
+     * Called without the file lock; a record being written has an invalid CRC, and is ignored.
+     */
+    private void refresh() {
+        if( buffer == null || !isChanged() ) {
+            return;
+        }
+        try {
+            reload();
+        }
+        catch(IOException e) {
+            Log.w( Tag, String.format("Failed to refresh state from %s", file ), e );
+        }
+    }
+
+    /**
+     * Read the valid record with the highest sequence number, if newer than the current record.
+     */
+    private void reload() throws IOException {
+        // The file is remapped if another process has grown it.
+        if( buffer.getInt( Magic.length ) != slotSize && !readHeader() ) {
+            throw new IOException( String.format("Bad state file header in %s", file ) );
+        }
+        byte[] data = null;
+        long dataSequence = sequence;
+        for( int slot = 0; slot < 2; slot++ ) {
+            int offset = HeaderSize + slot * slotSize;
+            long slotSequence = buffer.getLong( offset );
+            int length = buffer.getInt( offset + 8 );
+            int crc = buffer.getInt( offset + 12 );
+            if( length < 0 || length > slotSize - RecordHeaderSize ) {
+                continue;
+            }
+            if( slotSequence == sequence && sequence > 0 ) {
+                // The current record; if valid, then track its slot.
+                currentSlot = slot;
+                continue;
+            }
+            if( slotSequence <= dataSequence ) {
+                continue;
+            }
+            byte[] slotData = new byte[length];
+            buffer.position( offset + RecordHeaderSize );
+            buffer.get( slotData );
+            if( crc == recordCRC( slotSequence, slotData, length ) ) {
+                data = slotData;
+                dataSequence = slotSequence;
+                currentSlot = slot;
+            }
+        }
+        if( data != null ) {
+            sequence = dataSequence;
+            sections.clear();
+            decode( data );
+        }
+    }
+
+    /**
+     * Write the state into the slot not containing the current record.
+     */
+    private void write() throws IOException {
+        byte[] data = encode();
+        if( data.length > slotSize - RecordHeaderSize ) {
+            grow( data );
+        }
+        else {
+            writeRecord( HeaderSize + (1 - currentSlot) * slotSize, data );
+            currentSlot = 1 - currentSlot;
+        }
+    }
+
+    /**
+     * Grow the record slots, in place, to fit the state.
+     * The slot size is at least doubled, so the new slot 1 starts beyond the end of the old slots;
+     * the new record is written there before the header is updated with the new slot size. If
+     * interrupted before the header is updated then the file is unchanged, other than its length.
+     * @param data  The encoded state.
+     */
+    private void grow(byte[] data) throws IOException {
+        int newSlotSize = slotSize * 2;
+        while( data.length > newSlotSize - RecordHeaderSize ) {
+            newSlotSize *= 2;
+        }
+        raf.setLength( HeaderSize + 2 * newSlotSize );
+        map();
+        writeRecord( HeaderSize + newSlotSize, data );
+        buffer.putInt( Magic.length, newSlotSize );
+        buffer.force();
+        slotSize = newSlotSize;
+        currentSlot = 1;
+    }
+
+    /**
+     * Initialize the file, in place, and write the current state to it.
+     */
+    private void initialize() throws IOException {
+        raf.setLength( HeaderSize + 2 * InitialSlotSize );
+        map();
+        buffer.position( 0 );
+        buffer.put( Magic );
+        buffer.putInt( InitialSlotSize );
+        buffer.putInt( 0 );
+        slotSize = InitialSlotSize;
+        // Invalidate both slots.
+        buffer.putLong( HeaderSize, 0 );
+        buffer.putInt( HeaderSize + 8, -1 );
+        buffer.putLong( HeaderSize + slotSize, 0 );
+        buffer.putInt( HeaderSize + slotSize + 8, -1 );
+        writeRecord( HeaderSize, encode() );
+        currentSlot = 0;
+    }
+
+    /**
+     * Write a record.
+     * @param offset    The offset of the record's slot.
+     * @param data      The encoded state.
+     */
+    private void writeRecord(int offset, byte[] data) {
+        long newSequence = sequence + 1;
+        buffer.position( offset + RecordHeaderSize );
+        buffer.put( data );
+        buffer.putLong( offset, newSequence );
+        buffer.putInt( offset + 8, data.length );
+        buffer.putInt( offset + 12, recordCRC( newSequence, data, data.length ) );
+        buffer.force();
+        sequence = newSequence;
+    }
+
+    /**
+     * Map the state file into memory.
+     */
+    private void map() throws IOException {
+        buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, channel.size() );
+    }
+
+    /**
+     * Encode the state as a byte array.
+     */
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bout );
+        out.writeInt( RecordFormat );
+        out.writeInt( sections.size() );
+        for( Map.Entry<String,Map<String,String>> section : sections.entrySet() ) {
+            writeString( out, section.getKey() );
+            Map<String,String> values = section.getValue();
+            out.writeInt( values.size() );
+            for( Map.Entry<String,String> value : values.entrySet() ) {
+                writeString( out, value.getKey() );
+                writeString( out, value.getValue() );
+            }
+        }
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Decode state from a byte array.
+     */
+    private void decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+        int sectionCount = in.readInt();
+        // Records without a format marker start with the section count, and use writeUTF() strings.
+        boolean marked = sectionCount == RecordFormat;
+        if( marked ) {
+            sectionCount = in.readInt();
+        }
+        for( int i = 0; i < sectionCount; i++ ) {
+            String name = readString( in, marked );
+            Map<String,String> values = new HashMap<String,String>();
+            int valueCount = in.readInt();
+            for( int j = 0; j < valueCount; j++ ) {
+                String key = readString( in, marked );
+                values.put( key, readString( in, marked ) );
+            }
+            sections.put( name, values );
+        }
+    }
+
+    /**
+     * Write a string as an int length followed by UTF-8 bytes.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    /**
+     * Read a string.
+     * @param lengthPrefixed    If false then the string was written by writeUTF().
+     */
+    private static String readString(DataInputStream in, boolean lengthPrefixed) throws IOException {
+        if( !lengthPrefixed ) {
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        if( length < 0 || length > in.available() ) {
+            throw new IOException( String.format("Bad string length in state record: %d", length ) );
+        }
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        return new String( bytes, "UTF-8");
+    }
+
+    /**
+     * Calculate the CRC of a record.
+     */
+    private static int recordCRC(long sequence, byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        for( int shift = 56; shift >= 0; shift -= 8 ) {
+            crc.update( (int)(sequence >>> shift) );
+        }
+        for( int shift = 24; shift >= 0; shift -= 8 ) {
+            crc.update( length >>> shift );
+        }
+        crc.update( data, 0, length );
+        return (int)crc.getValue();
+    }
+}
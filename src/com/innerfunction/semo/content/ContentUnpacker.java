@@ -1,13 +1,17 @@
 package com.innerfunction.semo.content;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import name.fraser.neil.plaintext.diff_match_patch;
 import name.fraser.neil.plaintext.diff_match_patch.Patch;
@@ -15,7 +19,6 @@ import android.content.Context;
 import android.util.Log;
 
 import com.innerfunction.util.FileIO;
-import com.innerfunction.util.Locals;
 
 /**
  * A class for unpacking downloaded content.
@@ -28,51 +31,110 @@ public class ContentUnpacker {
 
     static final String ContentTextEncoding = "utf-8";
 
+    /** The location of the content CRC index, relative to the content directory. */
+    static final String ContentIndexFileName = ".semo/content.index";
+
+    /** The location of the unzip checkpoint, relative to the content directory. */
+    static final String UnzipCheckpointFileName = ".semo/unzip.checkpoint";
+
+    /** The number of patches applied between commits of patch progress. */
+    static final int PatchCommitInterval = 50;
+
+    /**
+     * The object used to apply patches to file contents. Its settings are immutable and its scratch
+     * storage is per-thread, so one instance is shared by all unpackers.
+     */
+    static final diff_match_patch Patcher = newPatcher();
+
     /** The android context. */
     private Context context;
     /** The content manager. */
     private ContentManager manager;
-    /** A message digest for calculating hashes of text content. */
-    private MessageDigest md;
+    /** A hash for verifying content files; replaced when a different algorithm is needed. */
+    private ContentHash contentHash;
+    /** A message digest for calculating hashes of blob store content. */
+    private MessageDigest blobMD = ContentBlobStore.newDigest();
+    /** The blob store content files are written to. */
+    private ContentBlobStore blobStore;
+    /** An object for extracting content zip files. */
+    private ContentExtractor extractor;
+    /** An object for repairing content files which fail validation. */
+    private ContentRepairer repairer;
+    /** An object for updating chunked content files. */
+    private ContentChunker chunker;
 
     public ContentUnpacker(Context context, ContentManager manager) {
         this.context = context;
         this.manager = manager;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        }
-        catch(NoSuchAlgorithmException e) {
-            // Really shouldn't happen.
-        }
+        this.blobStore = manager.getBlobStore();
+        this.extractor = new ContentExtractor( blobStore );
+        this.repairer = new ContentRepairer( manager );
+        this.chunker = new ContentChunker( blobStore );
     }
     
     @SuppressWarnings("unchecked")
     public List<String> unpackContent(Subscription sub, File sourceZipFile, boolean resume) {
         String subName = sub.getName();
-        Locals subLocals = sub.getLocals();
-        File contentDir = sub.getContentDir();
+        // Unpack progress is committed and rolled back independently of other updates to the state.
+        SubscriptionState.Transaction state = sub.getState().begin();
+        File liveDir = sub.getContentDir();
+        File stagingDir = manager.getStagingDir( sub );
+        ContentOverlay stagingView = null;
         List<String> unpackedFiles = new ArrayList<String>();
+        VersionChain versionChain = null;
         try {
-            // Start by storing the full path of the source zip file.
-            subLocals.setString("sourceZip", sourceZipFile.getAbsolutePath() );
             // Check for an unpack status left over from a previous interrupted process.
-            String unpackStatus = subLocals.getString("unpackStatus");
+            String unpackStatus = state.getString("unpackStatus");
             // In no unpack status found...
             if( unpackStatus == null ) {
                 // If resuming then nothing more to do.
                 if( resume ) {
                     return unpackedFiles;
                 }
-                // Set initial unpack state.
-                unpackStatus = subLocals.setString("unpackStatus", "unzip");
+                // Stage a copy of the current content for the update to be unpacked into. The copy's
+                // files are links to the content files, which are replaced rather than written in
+                // place, so the current content is untouched - and can still be read - until the
+                // update is committed. Without hard links the copy would mean copying all content,
+                // so the update is unpacked in place instead; resumed from its checkpoint if
+                // interrupted.
+                if( FileLinks.Supported ) {
+                    ContentSnapshot.linkDir( liveDir, stagingDir );
+                }
+                // Store the full path of the source zip file and set the initial unpack state.
+                state.setString("sourceZip", sourceZipFile.getAbsolutePath() );
+                unpackStatus = state.setString("unpackStatus", "unzip");
+                state.commit();
             }
+            else if( FileLinks.Supported && !stagingDir.exists() && !("commit".equals( unpackStatus ) || "post-unpack".equals( unpackStatus )) ) {
+                // The staging directory of an interrupted unpack has been lost (e.g. cleared with the
+                // cache); start the unpack again from a new copy of the current content.
+                Log.w( Tag, String.format("Staged content for %s not found, restarting unpack", subName ) );
+                ContentSnapshot.linkDir( liveDir, stagingDir );
+                state.remove("patchIndex","chunkIndex","repairPatches");
+                unpackStatus = state.setString("unpackStatus", "unzip");
+                state.commit();
+            }
+            // Stages before the commit work on the staged content; the commit stage moves the staged
+            // content into place, if not already done by an interrupted commit.
+            File contentDir = stagingDir.exists() && !"post-unpack".equals( unpackStatus ) ? stagingDir : liveDir;
+            stagingView = new ContentOverlay( contentDir, sub.getContentView().getBaseFile() );
             
             if("unzip".equals( unpackStatus ) ) {
-                // Unzip the content zip into the sub's content directory, overwriting
+                // Unzip the content zip into the staged content directory, overwriting
                 // and possibly replacing any pre-existing files.
-                String[] unzippedFiles = FileIO.unzip( sourceZipFile, contentDir );
-                unpackedFiles.addAll( Arrays.asList( unzippedFiles ) );
-                unpackStatus = subLocals.setString("unpackStatus", "patch");
+                // Files are written via the blob store, so files already present in the store aren't
+                // written again; files already matching the zip entry's CRC aren't touched at all.
+                ContentIndex contentIndex = new ContentIndex( new File( contentDir, ContentIndexFileName ) );
+                extractor.setParallelism( manager.getUnzipParallelism() );
+                extractor.setMemoryLimit( manager.getUnzipMemoryLimit() );
+                // If a previous unzip was interrupted then the checkpoint allows it to resume from
+                // the first incomplete entry.
+                UnzipCheckpoint checkpoint = new UnzipCheckpoint( new File( contentDir, UnzipCheckpointFileName ), sourceZipFile );
+                unpackedFiles.addAll( extractor.extract( sourceZipFile, contentDir, contentIndex, checkpoint ) );
+                contentIndex.save();
+                checkpoint.clear();
+                unpackStatus = state.setString("unpackStatus", "patch");
+                state.commit();
             }
             
             // Read the content manifest.
@@ -88,229 +150,430 @@ public class ContentUnpacker {
             if( newVersion == null ) {
                 throw new Exception("Content version not found in manifest");
             }
-            // Read this version's content manifest.
-            File versionManifestFile = new File( semoDir, String.format("%s-manifest.json", newVersion ) );
-            Map<String,Object> versionManifest = (Map<String,Object>)FileIO.readJSON( versionManifestFile, ContentTextEncoding );
+            // Read the list of versions included in the update. An update may include the manifests
+            // of several successive versions, in which case the patches in all manifests are applied
+            // in one pass; otherwise the update includes only the new version's manifest.
+            List<String> versions = (List<String>)manifest.get("versions");
+            if( versions == null || versions.isEmpty() ) {
+                versions = Collections.singletonList( newVersion );
+            }
+            else if( !newVersion.equals( versions.get( versions.size() - 1 ) ) ) {
+                throw new Exception("Last version in manifest version list doesn't match content version");
+            }
+            // Open the version manifests. Manifests can be very large, so patches and deletes are
+            // read from them one at a time as they are processed.
+            // Files in the package are added by the update, so deletes of them from earlier versions
+            // in the chain are discarded.
+            versionChain = new VersionChain( semoDir, versions, getPackagePaths( sourceZipFile ) );
             // TODO: Support declaring content text encoding in manifest
             
             if("patch".equals( unpackStatus ) ) {
                 // Apply patched updates to previous content.
-                // Create a reference to a temporary file for holding patch results.
+                // Create a reference to a temporary file used by interrupted patches from earlier versions.
                 File tempPatchFile = new File( semoDir, "patch.temp");
-                // Read the list of file patches from the version manifest.
-                List<Object> patches = (List<Object>)versionManifest.get("patches");
-                // Set a pointer on the current patch. If a previous patch process was interrupted then this
-                // should resume from that point; else position before the first patch.
-                int patchIndex = subLocals.getInt("patchIndex", -1 );
-                // A map containing info about the current file patch.
-                Map<String,Object> patch;
-                // The target file being patched.
-                File targetFile;
-                // The target file's contents.
-                String targetFileContents;
                 // The object for applying patches to file contents.
-                diff_match_patch patcher = new diff_match_patch();
-                // The total number of patches to apply.
-                int patchCount = patches.size();
-                // If patch pointer is referencing a patch already then a previous patch process must have
-                // been interrupted; so complete that patch before continuing.
-                if( patchIndex > -1 && patchIndex < patchCount ) {
-                    // Get the current patch.
-                    patch = (Map<String,Object>)patches.get( patchIndex );
-                    // Reference the patch target file.
-                    targetFile = new File( contentDir, (String)patch.get("file") );
-                    // If the target file doesn't exist then it must have been deleted before the previous
-                    // patch process was interrupted...
-                    if( !targetFile.exists() ) {
-                        // If the patch temporary file exists then the target file was deleted and the process
-                        // stopped before the the temp file could be moved to replace the target file.
-                        if( tempPatchFile.exists() ) {
-                            // Perform a hash of the temporary patch file's contents.
-                            String patchTempFileContents = FileIO.readString( tempPatchFile, ContentTextEncoding );
-                            CharSequence hash = md5Hash( patchTempFileContents );
-                            // If the hash matches the expected after state then go ahead and complete the patch op.
-                            if( hash.equals( patch.get("after") ) ) {
-                                // Move the temp file - the patch is then completed.
-                                if( !tempPatchFile.renameTo( targetFile ) ) {
-                                    throw new Exception( String.format("Failed to move patch.temp when attempting to recover patch to %s",
-                                            targetFile ) );
-                                }
-                                unpackedFiles.add( targetFile.getAbsolutePath() ); 
-                            }
-                            else {
-                                // Unexpected patch state; can't recover so fatal error.
-                                throw new Exception( String.format("Bad after state when attempring to recover patch to %s", targetFile ) );
-                            }
-                        }
-                        else {
-                            // If no patch target and no patch temp file then something odd has happened, and we can't
-                            // recover so this is a fatal error.
-                            throw new Exception( String.format("Broken patch on %s", targetFile ) );
+                diff_match_patch patcher = Patcher;
+                // Set a pointer on the current patched file. If a previous patch process was interrupted
+                // then this resumes from the last committed index; files patched after that point are
+                // detected by their post-patch hash and skipped.
+                int patchIndex = state.getInt("patchIndex", 0 );
+                int patchCount = versionChain.getPatchedFileCount();
+                // The indices of files which failed validation. These are committed with the patch
+                // index, so that failures before an interruption aren't lost.
+                String repairPatches = state.getString("repairPatches", "");
+                // Measure patch throughput, for choosing between delta and full updates.
+                long patchStartTime = System.currentTimeMillis();
+                long patchedBytes = 0;
+                while( patchIndex < patchCount ) {
+                    String path = versionChain.getPatchedFile( patchIndex );
+                    try {
+                        List<Map<String,Object>> patches = versionChain.getPatches( patchIndex );
+                        if( applyPatches( path, patches, stagingView, tempPatchFile, patcher ) ) {
+                            // Record the patched file.
+                            File patchedFile = new File( contentDir, path );
+                            unpackedFiles.add( patchedFile.getAbsolutePath() );
+                            patchedBytes += patchedFile.length();
                         }
                     }
-                    else {
-                        // Read the patch target's contents.
-                        targetFileContents = FileIO.readString( targetFile, ContentTextEncoding );
-                        // Check the MD5 hash of the file contents.
-                        CharSequence hash = md5Hash( targetFileContents );
-                        // Test whether the hash matches the pre-patch state.
-                        if( hash.equals( patch.get("before") ) ) {
-                            // Patch was interrupted before it could be applied, so apply patches to the target.
-                            LinkedList<Patch> filePatches = patcher.patch_fromText( (String)patch.get("patches") );
-                            targetFileContents = (String)patcher.patch_apply( filePatches, targetFileContents )[0];
-                            // Validate post-patch state using MD5 hash.
-                            hash = md5Hash( targetFileContents );
-                            if( !hash.equals( patch.get("after") ) ) {
-                                // Post-patch state is invalid, so fatal error.
-                                throw new Exception( String.format("Inconsistent post-patch state for %s", targetFile ) );
-                            }
-                            // Write patched content to temporary file.
-                            if( !FileIO.writeString( tempPatchFile, targetFileContents ) ) {
-                                throw new Exception( String.format("Failed to write patch.temp when patching %s", targetFile ) );
-                            }
-                            // Delete the patch target.
-                            if( !targetFile.delete() ) {
-                                throw new Exception( String.format("Failed to remove %s when patching", targetFile ) );
-                            }
-                            // Move the temporary file to the patch target.
-                            if( !tempPatchFile.renameTo( targetFile ) ) {
-                                throw new Exception( String.format("Failed to move patch.temp to %s when patching", targetFile ) );
-                            }
-                            // Record the unpacked file.
-                            unpackedFiles.add( targetFile.getAbsolutePath() );
-                        }
-                        else if( !hash.equals( patch.get("after") ) ) {
-                            // Target file state doesn't match either the pre- or post-patch state, so something odd
-                            // has happened; can't recover from this, so fatal error.
-                            throw new Exception( String.format("Inconsistent post-patch state for %s", targetFile ) );
-                        }
-                        // Else file was fully patched before interruption, nothing more to do.
+                    catch(ContentValidationException e) {
+                        // Continue with the remaining patches; the file is repaired afterwards.
+                        Log.w( Tag, e.getMessage() );
+                        repairPatches = repairPatches.length() == 0 ? Integer.toString( patchIndex )
+                                                                    : repairPatches+","+patchIndex;
+                        state.setString("repairPatches", repairPatches );
+                    }
+                    // Iterate to next patch, periodically committing progress.
+                    patchIndex = state.setInt("patchIndex", patchIndex + 1 );
+                    if( patchIndex % PatchCommitInterval == 0 ) {
+                        state.commit();
                     }
-                    // Update pointer to next patch.
-                    patchIndex = subLocals.setInt("patchIndex", patchIndex + 1 );
-                }
-                else {
-                    // Move patch pointer to first patch on list.
-                    patchIndex = subLocals.setInt("patchIndex", 0 );
                 }
                 
-                // Iterate over all un-applied patches.
-                while( patchIndex < patchCount ) {
-                    // Read the patch object.
-                    patch = (Map<String,Object>)patches.get( patchIndex );
-                    // Check that the patch target exists.
-                    targetFile = new File( contentDir, (String)patch.get("file") );
-                    if( !targetFile.exists() ) {
-                        throw new Exception( String.format("Patch target not found: %s", targetFile ) );
-                    }
-                    // Read the patch target's contents.
-                    targetFileContents = FileIO.readString( targetFile, ContentTextEncoding );
-                    // Validate using MD5 hash that patch content is correct.
-                    CharSequence hash = md5Hash( targetFileContents );
-                    if( !hash.equals( patch.get("before") ) ) {
-                        throw new Exception( String.format("Inconsistent pre-patch state for %s", targetFile ) );
-                    }
-                    // Apply patches to the patch target.
-                    LinkedList<Patch> filePatches = patcher.patch_fromText( (String)patch.get("patches") );
-                    targetFileContents = (String)patcher.patch_apply( filePatches, targetFileContents )[0];
-                    // Validate post-patch state using MD5 hash.
-                    hash = md5Hash( targetFileContents );
-                    if( !hash.equals( patch.get("after") ) ) {
-                        throw new Exception( String.format("Inconsistent post-patch state for %s", targetFile ) );
+                manager.getCostModel().recordPatching( patchedBytes, System.currentTimeMillis() - patchStartTime );
+                unpackStatus = state.setString("unpackStatus", "chunk");
+                state.commit();
+            }
+            
+            if("chunk".equals( unpackStatus ) ) {
+                // Update chunked files by downloading only the chunks missing from the local copy.
+                // If a chunked update fails then the whole file is downloaded instead.
+                int chunkIndex = state.getInt("chunkIndex", 0 );
+                int chunkCount = versionChain.getChunkedFileCount();
+                while( chunkIndex < chunkCount ) {
+                    Map<String,Object> chunked = versionChain.getChunkedFile( chunkIndex );
+                    String path = (String)chunked.get("file");
+                    File targetFile = new File( contentDir, path );
+                    try {
+                        String url = (String)chunked.get("url");
+                        if( url == null ) {
+                            url = repairer.getFileURL( sub, newVersion, path );
+                        }
+                        if( url == null ) {
+                            throw new IOException("No URL for chunked file");
+                        }
+                        if( chunker.updateFile( targetFile, url, chunked ) ) {
+                            unpackedFiles.add( targetFile.getAbsolutePath() );
+                        }
                     }
-                    // Write patched content to temporary file.
-                    if( !FileIO.writeString( tempPatchFile, targetFileContents ) ) {
-                        throw new Exception( String.format("Failed to write patch.temp when patching %s", targetFile ) );
+                    catch(IOException e) {
+                        Log.w( Tag, String.format("Chunked update of %s failed", path ), e );
+                        if( !repairer.repairFile( sub, contentDir, newVersion, path, (String)chunked.get("hash"), (String)chunked.get("after") ) ) {
+                            throw new Exception( String.format("Failed to update chunked file %s", path ) );
+                        }
+                        unpackedFiles.add( targetFile.getAbsolutePath() );
                     }
-                    // Delete the patch target.
-                    if( !targetFile.delete() ) {
-                        throw new Exception( String.format("Failed to remove %s when patching", targetFile ) );
+                    // Chunked files are large, so commit after each one.
+                    chunkIndex = state.setInt("chunkIndex", chunkIndex + 1 );
+                    state.commit();
+                }
+                unpackStatus = state.setString("unpackStatus", "repair");
+                state.commit();
+            }
+            
+            if("repair".equals( unpackStatus ) ) {
+                // Repair any files which failed validation during the patch stage by downloading
+                // the final version of each file. Repairs are idempotent, so an interrupted repair
+                // stage is simply repeated.
+                String repairPatches = state.getString("repairPatches", "");
+                if( repairPatches.length() > 0 ) {
+                    if( !repairer.canRepair() ) {
+                        throw new Exception("Content files failed validation and no repair URL is configured");
                     }
-                    // Move the temporary file to the patch target.
-                    if( !tempPatchFile.renameTo( targetFile ) ) {
-                        throw new Exception( String.format("Failed to move patch.temp to %s when patching", targetFile ) );
+                    for( String index : repairPatches.split(",") ) {
+                        int fileIndex = Integer.parseInt( index );
+                        String path = versionChain.getPatchedFile( fileIndex );
+                        String hashAlgorithm = versionChain.getFinalHashAlgorithm( fileIndex );
+                        if( !repairer.repairFile( sub, contentDir, newVersion, path, hashAlgorithm, versionChain.getFinalHash( fileIndex ) ) ) {
+                            throw new Exception( String.format("Failed to repair %s", path ) );
+                        }
+                        unpackedFiles.add( new File( contentDir, path ).getAbsolutePath() );
                     }
-                    // Record the patched file.
-                    unpackedFiles.add( targetFile.getAbsolutePath() );
-                    // Iterate to next patch.
-                    patchIndex = subLocals.setInt("patchIndex", patchIndex + 1 );
                 }
-                
-                unpackStatus = subLocals.setString("unpackStatus", "clean");
+                unpackStatus = state.setString("unpackStatus", "clean");
+                state.commit();
             }
             
             if("clean".equals( unpackStatus ) ) {
                 
-                subLocals.remove("patchIndex");
+                state.remove("patchIndex","chunkIndex","repairPatches");
                 
-                // Iterate over list of file deletions and delete all files.
-                List<String> deletes = (List<String>)versionManifest.get("deletes");
-                for( String path : deletes ) {
-                    File deleteFile = new File( contentDir, path );
-                    if( !deleteFile.delete() ) {
-                        throw new Exception( String.format("Unable to delete file %s", deleteFile ) );
-                    }
+                // Iterate over list of file deletions and delete all files. Files in the base layer
+                // of initial content are hidden by whiteouts.
+                for( String path : versionChain.getDeletedFiles() ) {
+                    // Files may already have been deleted if a previous clean was interrupted.
+                    stagingView.delete( path );
                     // TODO: Should deleted files be recorded as unpacked?
                 }
                 
-                subLocals.setString("version", newVersion );
-                unpackStatus = subLocals.setString("unpackStatus", "post-unpack");
+                unpackStatus = state.setString("unpackStatus", "commit");
+                state.commit();
+            }
+            
+            if("commit".equals( unpackStatus ) ) {
+                // Move the staged content into place. Readers are only locked out of the content
+                // for the duration of the move. If a previous commit was interrupted after the move,
+                // or the update was unpacked in place, then there is no staging directory and only
+                // the version is updated.
+                if( stagingDir.exists() ) {
+                    File oldDir;
+                    manager.lockSubscription( subName, true );
+                    try {
+                        oldDir = ContentSnapshot.replaceDir( stagingDir, liveDir );
+                    }
+                    finally {
+                        manager.lockSubscription( subName, false );
+                    }
+                    try {
+                        ContentSnapshot.removeDir( oldDir );
+                    }
+                    catch(IOException e) {
+                        Log.w( Tag, String.format("Failed to remove previous content at %s", oldDir ), e );
+                    }
+                }
+                semoDir = new File( liveDir, ".semo");
+                state.setString("version", newVersion );
+                unpackStatus = state.setString("unpackStatus", "post-unpack");
+                state.commit();
+                // Report unpacked files at their committed locations.
+                String stagingPath = stagingDir.getAbsolutePath();
+                for( int i = 0; i < unpackedFiles.size(); i++ ) {
+                    String unpackedFile = unpackedFiles.get( i );
+                    if( unpackedFile.startsWith( stagingPath ) ) {
+                        unpackedFiles.set( i, liveDir.getAbsolutePath()+unpackedFile.substring( stagingPath.length() ) );
+                    }
+                }
             }
             
             if("post-unpack".equals( unpackStatus ) ) {
-                // Notify all post-update listeners registered with the subs manager.
+                // Notify all post-update listeners registered with the subs manager. Listeners are
+                // notified once per update, however many versions the update includes.
                 List<ContentUnpackListener> contentUnpackListeners = manager.getContentUnpackListeners();
-                // Set a pointer on the listener being processed. If a previous post-unpack process
-                // was interrupted then this will pickup from that point.
-                int postUnpackIndex = subLocals.getInt("postUnpackIndex", 0 );
-                int postUnpackCount = contentUnpackListeners.size();
-                while( postUnpackIndex < postUnpackCount ) {
-                    ContentUnpackListener listener = contentUnpackListeners.get( postUnpackIndex );
-                    listener.onContentUnpack( sub );
-                    postUnpackCount = subLocals.setInt("postUnpackIndex", postUnpackIndex + 1 );
+                if( contentUnpackListeners != null ) {
+                    // Set a pointer on the listener being processed. If a previous post-unpack process
+                    // was interrupted then this will pickup from that point.
+                    int postUnpackIndex = state.getInt("postUnpackIndex", 0 );
+                    int postUnpackCount = contentUnpackListeners.size();
+                    while( postUnpackIndex < postUnpackCount ) {
+                        ContentUnpackListener listener = contentUnpackListeners.get( postUnpackIndex );
+                        listener.onContentUnpack( sub );
+                        // Listeners aren't necessarily idempotent, so commit after each one.
+                        postUnpackIndex = state.setInt("postUnpackIndex", postUnpackIndex + 1 );
+                        state.commit();
+                    }
                 }
             }
             
             // Remove process state.
-            subLocals.remove("postUnpackIndex","unpackStatus","sourceZip");
+            state.remove("postUnpackIndex","unpackStatus","sourceZip");
+            state.commit();
             
-            // Delete the version manifest.
-            if( !versionManifestFile.delete() ) {
-                Log.w( Tag, String.format("Failed to delete version manifest at %s", versionManifestFile ) );
+            // Delete the version manifests.
+            versionChain.close();
+            versionChain = null;
+            for( String version : versions ) {
+                File versionManifestFile = new File( semoDir, String.format("%s-manifest.json", version ) );
+                if( !versionManifestFile.delete() ) {
+                    Log.w( Tag, String.format("Failed to delete version manifest at %s", versionManifestFile ) );
+                }
             }
+            
+            // Keep the new content as the last known-good version.
+            manager.snapshotSubscriptionContent( sub );
+            
+            // Remove any blobs no longer referenced by a content file.
+            blobStore.prune();
         }
         catch(Exception e) {
+            Log.e( Tag, String.format("Failed to unpack content for %s", subName ), e );
             unpackedFiles.clear();
-            // TODO: Need to review the implications of doing the following ops, and their impact on whatever
-            // process called this method.
-            // Lock the subscription.
-            manager.lockSubscription( subName, true );
-            // Remove subscription content dir
-            FileIO.removeDir( contentDir, context );
-            // Unpack base content.
+            // Discard any uncommitted state.
+            state.rollback();
+            // Last resort; reset the content to its last known-good version and refresh from there.
+            // If there is no known-good version then the content version is cleared, so the refresh
+            // requests a full content package; the subscription's current content is left in place
+            // and continues to be served until the full package is unpacked over it.
             manager.resetSubscriptionContent( sub );
-            // Unlock subscription.
-            manager.lockSubscription( subName, false );
-            // Request full content update.
             sub.refresh( null );
         }
+        finally {
+            if( stagingView != null ) {
+                stagingView.close();
+            }
+            if( versionChain != null ) {
+                try {
+                    versionChain.close();
+                }
+                catch(IOException e) {
+                    Log.w( Tag, "Failed to close version manifests", e );
+                }
+            }
+        }
         return unpackedFiles;
     }
     
     /**
-     * Return the MD5 hash of a content string as a hex encoded string.
-     * @param contents
-     * @return
+     * Apply a sequence of patches to a file.
+     * The patches are applied to the file's contents in memory, and the file is written once in
+     * its final state; the hashes of intermediate states aren't checked. The patch target's current
+     * state is checked before the patches are applied. If the target is already in the final state
+     * (because the patches were applied before an interrupted process's progress was committed)
+     * then the patches are skipped.
+     * Each patch is either a list of patch hunks, in the "patches" field, or a delta, in the "delta"
+     * field. Hunks carry context and are applied with fuzzy matching. A delta (in the format
+     * produced by diff_match_patch.diff_toDelta) is applied exactly, without context or matching,
+     * and so is only valid against a file in the state it was made from; this is guaranteed by the
+     * check of the target's pre-patch hash, provided any earlier patches in the sequence are also
+     * deltas. A delta that doesn't fit the file's contents fails validation.
+     * A patch may instead be a byte delta, in the "byteDelta" field; see
+     * diff_match_patch.diff_applyByteDelta. This is applied directly to the file's UTF-8 encoded
+     * bytes. The file's contents are only decoded to text if a patch in the sequence needs it, so
+     * a file patched only by byte deltas is never transcoded.
+     * @param path          The path of the file being patched, relative to the content directory.
+     * @param patches       The file's patches in version order, as read from the version manifests.
+     * @param contentView   A view of the subscription content. Patch targets may be read from the
+     *                      base layer; patched files are always written to the content directory.
+     * @param tempPatchFile A temporary file which may contain the result of an interrupted patch.
+     * @param patcher       The object used to apply patches.
+     * @return true if the patches were applied; false if the target was already patched.
+     * @throws ContentValidationException If the target file isn't in the expected state.
      */
-    private CharSequence md5Hash(String contents) {
-        md.reset();
-        md.update( contents.getBytes() );
-        byte[] digest = md.digest();
-        StringBuilder hex = new StringBuilder();
-        for( int i = 0; i < digest.length; i++ ) {
-            hex.append( Integer.toString( ( digest[i] & 0xff ) + 0x100, 16 ).substring( 1 ) );
+    private boolean applyPatches(String path, List<Map<String,Object>> patches, ContentOverlay contentView,
+            File tempPatchFile, diff_match_patch patcher) throws Exception {
+        // The expected states of the file before the first patch and after the last.
+        Object before = patches.get( 0 ).get("before");
+        Object after = patches.get( patches.size() - 1 ).get("after");
+        // The algorithms of the before and after hashes; these differ if the manifests in the
+        // version chain declare different algorithms.
+        String beforeAlgorithm = (String)patches.get( 0 ).get("hash");
+        String afterAlgorithm = (String)patches.get( patches.size() - 1 ).get("hash");
+        // The target file being patched.
+        File targetFile = contentView.getUpperFile( path );
+        // If the target file doesn't exist then it may have been deleted before a previous patch
+        // process was interrupted...
+        if( !contentView.exists( path ) ) {
+            // If the patch temporary file exists then the target file was deleted and the process
+            // stopped before the the temp file could be moved to replace the target file.
+            if( !tempPatchFile.exists() ) {
+                throw new ContentValidationException( path, String.format("Patch target not found: %s", targetFile ) );
+            }
+            // Perform a hash of the temporary patch file's contents.
+            String hash = hash( afterAlgorithm, readContentFile( tempPatchFile ) );
+            // If the hash matches the expected after state then go ahead and complete the patch op.
+            if( !hash.equals( after ) ) {
+                // Unexpected patch state; can't recover by patching, so the file must be repaired.
+                tempPatchFile.delete();
+                throw new ContentValidationException( path, String.format("Bad after state when attempring to recover patch to %s",
+                        targetFile ) );
+            }
+            // Move the temp file - the patch is then completed.
+            if( !tempPatchFile.renameTo( targetFile ) ) {
+                throw new Exception( String.format("Failed to move patch.temp when attempting to recover patch to %s",
+                        targetFile ) );
+            }
+            return true;
+        }
+        // Read the patch target's contents. The contents are held either as encoded bytes or as
+        // decoded text, according to what the last patch needed; the other is null.
+        byte[] targetFileData = contentView.readFile( path );
+        String targetFileContents = null;
+        // Validate using the before hash that patch content is correct.
+        String hash = hash( beforeAlgorithm, targetFileData );
+        if( !hash.equals( before ) ) {
+            if( afterAlgorithm.equals( beforeAlgorithm ) ? hash.equals( after )
+                                                         : hash( afterAlgorithm, targetFileData ).equals( after ) ) {
+                // File was fully patched before interruption, nothing more to do.
+                return false;
+            }
+            throw new ContentValidationException( path, String.format("Inconsistent pre-patch state for %s", targetFile ) );
         }
-        return hex;
+        // Apply each version's patches to the patch target in turn.
+        for( Map<String,Object> patch : patches ) {
+            String byteDelta = (String)patch.get("byteDelta");
+            if( byteDelta != null ) {
+                if( targetFileData == null ) {
+                    targetFileData = targetFileContents.getBytes( ContentTextEncoding );
+                    targetFileContents = null;
+                }
+                try {
+                    targetFileData = patcher.diff_applyByteDelta( targetFileData, byteDelta );
+                }
+                catch(IllegalArgumentException e) {
+                    throw new ContentValidationException( path, String.format("Bad delta for %s: %s", targetFile, e.getMessage() ) );
+                }
+                continue;
+            }
+            if( targetFileContents == null ) {
+                targetFileContents = new String( targetFileData, ContentTextEncoding );
+                targetFileData = null;
+            }
+            String delta = (String)patch.get("delta");
+            if( delta != null ) {
+                try {
+                    targetFileContents = patcher.diff_applyDelta( targetFileContents, delta );
+                }
+                catch(IllegalArgumentException e) {
+                    throw new ContentValidationException( path, String.format("Bad delta for %s: %s", targetFile, e.getMessage() ) );
+                }
+            }
+            else {
+                LinkedList<Patch> filePatches = patcher.patch_fromText( (String)patch.get("patches") );
+                targetFileContents = (String)patcher.patch_apply( filePatches, targetFileContents )[0];
+            }
+        }
+        if( targetFileData == null ) {
+            targetFileData = targetFileContents.getBytes( ContentTextEncoding );
+        }
+        // Validate final state using the after hash.
+        hash = hash( afterAlgorithm, targetFileData );
+        if( !hash.equals( after ) ) {
+            throw new ContentValidationException( path, String.format("Inconsistent post-patch state for %s", targetFile ) );
+        }
+        // Write patched content via the blob store; this atomically replaces the patch target.
+        blobStore.writeFile( targetFile, targetFileData, targetFileData.length, blobMD );
+        return true;
+    }
+    
+    private static diff_match_patch newPatcher() {
+        diff_match_patch.Options options = new diff_match_patch.Options();
+        // Index each file's text so that hunks are located without rescanning large files.
+        options.Patch_LocationIndex = true;
+        return new diff_match_patch( options );
+    }
+
+    /**
+     * Read a content file's encoded contents.
+     */
+    private byte[] readContentFile(File file) throws IOException {
+        long length = file.length();
+        if( length > Integer.MAX_VALUE ) {
+            throw new IOException( String.format("Content file too large: %s", file ) );
+        }
+        byte[] data = new byte[(int)length];
+        InputStream in = new FileInputStream( file );
+        try {
+            if( ContentExtractor.readFully( in, data, data.length ) != data.length ) {
+                throw new IOException( String.format("Unexpected end of content file %s", file ) );
+            }
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+    
+    /**
+     * Get the paths of the files in a content package.
+     * @return The paths, or an empty set if the package no longer exists.
+     */
+    private Set<String> getPackagePaths(File packageFile) throws IOException {
+        Set<String> paths = new HashSet<String>();
+        if( packageFile == null || !packageFile.exists() ) {
+            return paths;
+        }
+        ContentPackage contentPackage = ContentPackage.open( packageFile );
+        try {
+            for( ContentPackage.Entry entry : contentPackage.getEntries() ) {
+                if( !entry.isDirectory() ) {
+                    paths.add( entry.getName() );
+                }
+            }
+        }
+        finally {
+            contentPackage.close();
+        }
+        return paths;
+    }
+    
+    /**
+     * Return the hash of a content file's encoded contents as a hex encoded string.
+     * @param algorithm The hash algorithm, as declared by the version manifest.
+     * @param data      The file's contents.
+     * @return
+     */
+    private String hash(String algorithm, byte[] data) throws IOException {
+        contentHash = ContentHash.getInstance( algorithm, contentHash );
+        contentHash.update( data );
+        return contentHash.digest();
     }
 
 }
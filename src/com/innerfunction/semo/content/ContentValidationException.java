@@ -0,0 +1,25 @@
+package com.innerfunction.semo.content;
+
+/**
+ * An exception indicating that a content file failed validation, e.g. because its contents
+ * don't match the hash expected before or after a patch.
+ * Validation failures can be recovered from by repairing the individual file.
+ * @author juliangoacher
+ *
+ */
+public class ContentValidationException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The path of the file which failed validation, relative to the content directory. */
+    private String path;
+
+    public ContentValidationException(String path, String message) {
+        super( message );
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+}
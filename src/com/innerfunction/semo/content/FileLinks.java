@@ -0,0 +1,81 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+/**
+ * Hard link support for content files.
+ * Hard links are made using android.system.Os, which is only available from API level 21
+ * (Lollipop). The Os API is only referenced from a nested class, which is only loaded on
+ * API level 21 and later; on earlier versions no links are made, and callers fall back to
+ * copying or writing files.
+ * @author juliangoacher
+ *
+ */
+class FileLinks {
+
+    /** Flag indicating whether the platform supports hard links. */
+    static final boolean Supported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+    /**
+     * Create a hard link to a file.
+     * @param from  The file to link to.
+     * @param to    The path of the new link.
+     * @return true if the link was created; false if links aren't supported or the link failed,
+     * e.g. because the two paths are on different file systems.
+     */
+    static boolean link(File from, File to) {
+        return Supported && OsLinks.link( from, to );
+    }
+
+    /**
+     * Get the number of hard links to a file.
+     * @return The link count, or -1 if links aren't supported or the file can't be read.
+     */
+    static long linkCount(File file) {
+        return Supported ? OsLinks.linkCount( file ) : -1;
+    }
+
+    /**
+     * Get a file's inode number.
+     * @return The inode number, or -1 if links aren't supported or the file can't be read.
+     */
+    static long inode(File file) {
+        return Supported ? OsLinks.inode( file ) : -1;
+    }
+
+    /** Calls to the Os API. Only loaded when links are supported. */
+    static class OsLinks {
+
+        static boolean link(File from, File to) {
+            try {
+                Os.link( from.getAbsolutePath(), to.getAbsolutePath() );
+                return true;
+            }
+            catch(ErrnoException e) {
+                return false;
+            }
+        }
+
+        static long linkCount(File file) {
+            try {
+                return Os.stat( file.getAbsolutePath() ).st_nlink;
+            }
+            catch(ErrnoException e) {
+                return -1;
+            }
+        }
+
+        static long inode(File file) {
+            try {
+                return Os.stat( file.getAbsolutePath() ).st_ino;
+            }
+            catch(ErrnoException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.innerfunction.semo.content;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A content package in semo pack format.
+ * A semo pack is a simple tar-like container of LZ4 compressed entries. LZ4 decompresses
+ * several times faster than deflate, which reduces the time spent unpacking content on
+ * low-end devices. A pack can also include a shared dictionary, which is used to prime
+ * the compression of small files (e.g. JSON files) with content common to many files.
+ * The file format is (all numbers are big-endian):
+ * <pre>
+ *   magic      8 bytes; "SEMOPAK1"
+ *   dictSize   int; the size of the shared dictionary, may be zero
+ *   dict       dictSize bytes; the shared dictionary
+ *   count      int; the number of entries
+ *   index      count entry records:
+ *       name       modified UTF-8 string, as written by DataOutput.writeUTF()
+ *       type       byte; 0 = file, 1 = directory
+ *       size       long; the uncompressed size
+ *       crc        int; the CRC32 of the uncompressed data
+ *       offset     long; the position of the entry's first block, from the start of the file
+ *   data       the compressed entry data
+ * </pre>
+ * Each entry's data is a sequence of blocks, each of which decompresses to at most 64KB.
+ * Each block starts with an int header: bit 31 is set if the block data is stored
+ * uncompressed; bit 30 is set if the block was compressed using the shared dictionary;
+ * bits 0-29 give the size of the block data which follows. Compressed blocks are in the
+ * standard LZ4 block format. Blocks are independent of each other, except that any block
+ * may reference the last 64KB of the shared dictionary.
+ * Note that zstd support was considered, but there is no pure Java zstd decoder small enough
+ * to embed; LZ4 gives most of the decompression speed benefit at a fraction of the code size.
+ * @author juliangoacher
+ *
+ */
+public class LZ4ContentPackage extends ContentPackage {
+
+    /** The pack file's magic number. */
+    static final byte[] Magic = new byte[]{ 'S', 'E', 'M', 'O', 'P', 'A', 'K', '1' };
+    /** The maximum uncompressed size of a block. */
+    static final int BlockSize = 64 * 1024;
+    /** The maximum distance a match can reference back from the current position. */
+    static final int WindowSize = 64 * 1024;
+    /** Block header flag indicating that the block is stored uncompressed. */
+    static final int StoredFlag = 1 << 31;
+    /** Block header flag indicating that the block references the shared dictionary. */
+    static final int DictionaryFlag = 1 << 30;
+    /** Block header mask for the block data size. */
+    static final int SizeMask = DictionaryFlag - 1;
+    /** The minimum length of an LZ4 match. */
+    static final int MinMatch = 4;
+
+    /** A file channel for reading the pack file. Positional reads are safe across threads. */
+    private FileChannel channel;
+    /** The pack file. */
+    private RandomAccessFile raf;
+    /** The last window's worth of the shared dictionary; empty if no dictionary. */
+    private byte[] dictionary;
+    /** The pack entries. */
+    private List<Entry> entries = new ArrayList<Entry>();
+
+    /** A pack entry. Records the position of the entry's data. */
+    static class PackEntry extends Entry {
+        long offset;
+    }
+
+    public LZ4ContentPackage(File file) throws IOException {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try {
+            byte[] magic = new byte[Magic.length];
+            in.readFully( magic );
+            if( !Arrays.equals( magic, Magic ) ) {
+                throw new IOException( String.format("Not a semo pack file: %s", file ) );
+            }
+            int dictSize = in.readInt();
+            byte[] dict = new byte[dictSize];
+            in.readFully( dict );
+            // Only the last window's worth of dictionary is reachable by matches.
+            if( dictSize > WindowSize ) {
+                dictionary = new byte[WindowSize];
+                System.arraycopy( dict, dictSize - WindowSize, dictionary, 0, WindowSize );
+            }
+            else {
+                dictionary = dict;
+            }
+            int count = in.readInt();
+            for( int i = 0; i < count; i++ ) {
+                PackEntry entry = new PackEntry();
+                entry.name = in.readUTF();
+                entry.directory = in.readByte() == 1;
+                entry.size = in.readLong();
+                entry.crc = in.readInt() & 0xffffffffL;
+                entry.offset = in.readLong();
+                entries.add( entry );
+            }
+        }
+        finally {
+            in.close();
+        }
+        raf = new RandomAccessFile( file, "r");
+        channel = raf.getChannel();
+    }
+
+    @Override
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public InputStream openEntry(Entry entry) throws IOException {
+        if( !(entry instanceof PackEntry) ) {
+            throw new IOException( String.format("Not a pack entry: %s", entry.name ) );
+        }
+        return new BlockInputStream( ((PackEntry)entry).offset, entry.size );
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * An input stream on an entry's data. Decompresses the entry one block at a time.
+     */
+    class BlockInputStream extends InputStream {
+
+        /** The file position of the next block. */
+        private long position;
+        /** The number of uncompressed bytes not yet decompressed. */
+        private long remaining;
+        /** A buffer for reading compressed block data. */
+        private byte[] src = new byte[BlockSize + BlockSize / 255 + 16];
+        /**
+         * The decompressed data. The dictionary is placed before the block data, so that
+         * dictionary matches can be resolved by copying.
+         */
+        private byte[] dst = new byte[dictionary.length + BlockSize];
+        /** The start of block data in the dst buffer. */
+        private int blockStart = dictionary.length;
+        /** The read position in the dst buffer. */
+        private int readPos;
+        /** The end of the current block's data in the dst buffer. */
+        private int blockEnd;
+        /** A buffer for reading block headers. */
+        private ByteBuffer header = ByteBuffer.allocate( 4 );
+
+        BlockInputStream(long position, long size) {
+            this.position = position;
+            this.remaining = size;
+            System.arraycopy( dictionary, 0, dst, 0, dictionary.length );
+        }
+
+        @Override
+        public int read() throws IOException {
+            if( readPos == blockEnd && !readBlock() ) {
+                return -1;
+            }
+            return dst[readPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if( readPos == blockEnd && !readBlock() ) {
+                return -1;
+            }
+            int count = Math.min( length, blockEnd - readPos );
+            System.arraycopy( dst, readPos, buffer, offset, count );
+            readPos += count;
+            return count;
+        }
+
+        /**
+         * Read and decompress the next block.
+         * @return false if all of the entry's data has been read.
+         */
+        private boolean readBlock() throws IOException {
+            if( remaining == 0 ) {
+                return false;
+            }
+            header.clear();
+            readAt( header, position );
+            int blockHeader = header.getInt( 0 );
+            int blockSize = blockHeader & SizeMask;
+            if( blockSize > src.length ) {
+                throw new IOException("Bad semo pack block size");
+            }
+            readAt( ByteBuffer.wrap( src, 0, blockSize ), position + 4 );
+            position += 4 + blockSize;
+            int outLength = (int)Math.min( remaining, BlockSize );
+            if( (blockHeader & StoredFlag) != 0 ) {
+                if( blockSize != outLength ) {
+                    throw new IOException("Bad semo pack stored block size");
+                }
+                System.arraycopy( src, 0, dst, blockStart, blockSize );
+                blockEnd = blockStart + blockSize;
+            }
+            else {
+                // Blocks not using the dictionary may not reference data before the block start.
+                int prefixStart = (blockHeader & DictionaryFlag) != 0 ? 0 : blockStart;
+                blockEnd = decompress( src, 0, blockSize, dst, prefixStart, blockStart, blockStart + outLength );
+                if( blockEnd != blockStart + outLength ) {
+                    throw new IOException("Bad semo pack block; truncated data");
+                }
+            }
+            readPos = blockStart;
+            remaining -= outLength;
+            return true;
+        }
+
+        /**
+         * Fill a buffer from the pack file, starting at the specified position.
+         */
+        private void readAt(ByteBuffer buffer, long pos) throws IOException {
+            while( buffer.hasRemaining() ) {
+                int read = channel.read( buffer, pos );
+                if( read < 0 ) {
+                    throw new IOException("Unexpected end of semo pack file");
+                }
+                pos += read;
+            }
+        }
+    }
+
+    /**
+     * Decompress a block of LZ4 data.
+     * Any data in the dst buffer between prefixStart and dstStart is treated as a prefix (i.e.
+     * a dictionary) which matches can reference.
+     * @param src       The compressed data.
+     * @param srcStart  The start of the compressed data.
+     * @param srcLength The length of the compressed data.
+     * @param dst       A buffer to write the decompressed data to.
+     * @param prefixStart   The lowest position in the dst buffer which matches can reference.
+     * @param dstStart  The position to start writing decompressed data.
+     * @param dstEnd    The end of the space available for decompressed data.
+     * @return The position after the last decompressed byte.
+     */
+    static int decompress(byte[] src, int srcStart, int srcLength, byte[] dst, int prefixStart, int dstStart, int dstEnd)
+            throws IOException {
+        int sp = srcStart;
+        int srcEnd = srcStart + srcLength;
+        int dp = dstStart;
+        try {
+            while( true ) {
+                int token = src[sp++] & 0xff;
+                // Copy literals.
+                int literalLength = token >>> 4;
+                if( literalLength == 15 ) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        literalLength += b;
+                    }
+                    while( b == 255 );
+                }
+                if( sp + literalLength > srcEnd || dp + literalLength > dstEnd ) {
+                    throw new IOException("Bad LZ4 block; literals out of bounds");
+                }
+                System.arraycopy( src, sp, dst, dp, literalLength );
+                sp += literalLength;
+                dp += literalLength;
+                // The last sequence in a block only contains literals.
+                if( sp == srcEnd ) {
+                    break;
+                }
+                // Copy match.
+                int offset = (src[sp++] & 0xff) | ((src[sp++] & 0xff) << 8);
+                int matchLength = token & 0x0f;
+                if( matchLength == 15 ) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        matchLength += b;
+                    }
+                    while( b == 255 );
+                }
+                matchLength += MinMatch;
+                int mp = dp - offset;
+                if( offset == 0 || mp < prefixStart || dp + matchLength > dstEnd ) {
+                    throw new IOException("Bad LZ4 block; match out of bounds");
+                }
+                if( offset >= matchLength ) {
+                    System.arraycopy( dst, mp, dst, dp, matchLength );
+                    dp += matchLength;
+                }
+                else {
+                    // Overlapping match; copy byte by byte to replicate the repeated sequence.
+                    for( int end = dp + matchLength; dp < end; ) {
+                        dst[dp++] = dst[mp++];
+                    }
+                }
+            }
+        }
+        catch(ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Bad LZ4 block; unexpected end of data");
+        }
+        return dp;
+    }
+}
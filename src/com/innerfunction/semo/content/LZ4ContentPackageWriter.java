@@ -0,0 +1,338 @@
+package com.innerfunction.semo.content;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A writer of content packages in semo pack format.
+ * The reference encoder for the format read by {@link LZ4ContentPackage}; see that class for
+ * the format. Blocks are compressed with a simple greedy LZ4 compressor (one hash table probe
+ * per position), which produces standard LZ4 block data; a block which doesn't compress is
+ * stored uncompressed. If a dictionary is provided then every compressed block is primed with
+ * its last 64KB.
+ * Entries are compressed to a temporary file as they are added, and copied into the pack after
+ * its index when the pack is written.
+ * Not used on the device; provided for building packs, e.g. from a build script, and for tests.
+ * @author juliangoacher
+ *
+ */
+public class LZ4ContentPackageWriter {
+
+    /** The number of bits in a hash table index. */
+    static final int HashBits = 14;
+    /** The number of literals which must end a block, as required by the LZ4 block format. */
+    static final int LastLiterals = 5;
+    /** The minimum distance from a match's start to the end of a block. */
+    static final int MatchStartLimit = 12;
+    /** The maximum offset of a match. */
+    static final int MaxOffset = 0xffff;
+
+    /** The file the pack is written to. */
+    private File packFile;
+    /** The last window's worth of the shared dictionary; empty if no dictionary. */
+    private byte[] dictionary;
+    /** The temporary file holding compressed entry data. */
+    private File dataFile;
+    /** A stream on the temporary data file. */
+    private DataOutputStream data;
+    /** The size of the compressed entry data written so far. */
+    private long dataSize;
+    /** The pack entries. */
+    private List<LZ4ContentPackage.PackEntry> entries = new ArrayList<LZ4ContentPackage.PackEntry>();
+    /** The compressor's hash table; positions in the compression buffer, by hash of the next 4 bytes. */
+    private int[] hashTable = new int[1 << HashBits];
+    /** A buffer containing the dictionary followed by the block being compressed. */
+    private byte[] block;
+    /** A buffer for compressed block data. */
+    private byte[] compressed = new byte[LZ4ContentPackage.BlockSize + LZ4ContentPackage.BlockSize / 255 + 16];
+
+    /**
+     * Create a pack writer.
+     * @param packFile      The file to write the pack to.
+     * @param dictionary    A shared dictionary of content common to many files; may be null.
+     */
+    public LZ4ContentPackageWriter(File packFile, byte[] dictionary) throws IOException {
+        this.packFile = packFile;
+        if( dictionary == null ) {
+            this.dictionary = new byte[0];
+        }
+        else if( dictionary.length > LZ4ContentPackage.WindowSize ) {
+            this.dictionary = new byte[LZ4ContentPackage.WindowSize];
+            System.arraycopy( dictionary, dictionary.length - LZ4ContentPackage.WindowSize, this.dictionary, 0,
+                LZ4ContentPackage.WindowSize );
+        }
+        else {
+            this.dictionary = dictionary;
+        }
+        block = new byte[this.dictionary.length + LZ4ContentPackage.BlockSize];
+        System.arraycopy( this.dictionary, 0, block, 0, this.dictionary.length );
+        dataFile = File.createTempFile("semopack", ".data", packFile.getAbsoluteFile().getParentFile() );
+        data = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( dataFile ) ) );
+    }
+
+    /**
+     * Add a directory entry.
+     * @param name  The directory's path within the package.
+     */
+    public void addDirectory(String name) {
+        LZ4ContentPackage.PackEntry entry = new LZ4ContentPackage.PackEntry();
+        entry.name = name;
+        entry.directory = true;
+        entry.offset = dataSize;
+        entries.add( entry );
+    }
+
+    /**
+     * Add a file entry, compressing its data.
+     * @param name  The file's path within the package.
+     * @param in    A stream of the file's contents. The stream isn't closed by this method.
+     */
+    public void addFile(String name, InputStream in) throws IOException {
+        LZ4ContentPackage.PackEntry entry = new LZ4ContentPackage.PackEntry();
+        entry.name = name;
+        entry.offset = dataSize;
+        CRC32 crc = new CRC32();
+        int blockStart = dictionary.length;
+        int length;
+        while( (length = readBlock( in, blockStart )) > 0 ) {
+            crc.update( block, blockStart, length );
+            entry.size += length;
+            writeBlock( length );
+        }
+        entry.crc = crc.getValue();
+        entries.add( entry );
+    }
+
+    /**
+     * Add a file entry, compressing its data.
+     * @param name  The file's path within the package.
+     * @param file  The file.
+     */
+    public void addFile(String name, File file) throws IOException {
+        InputStream in = new FileInputStream( file );
+        try {
+            addFile( name, in );
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Add all the files and directories under a directory, in path order.
+     * @param dir   The directory.
+     * @param path  The directory's path within the package; empty for the package root.
+     */
+    public void addTree(File dir, String path) throws IOException {
+        File[] files = dir.listFiles();
+        if( files == null ) {
+            throw new IOException( String.format("Unable to list directory %s", dir ) );
+        }
+        Arrays.sort( files );
+        for( File file : files ) {
+            String name = path.length() > 0 ? path+"/"+file.getName() : file.getName();
+            if( file.isDirectory() ) {
+                addDirectory( name+"/");
+                addTree( file, name );
+            }
+            else {
+                addFile( name, file );
+            }
+        }
+    }
+
+    /**
+     * Write the pack file and delete the temporary data file.
+     */
+    public void write() throws IOException {
+        data.close();
+        try {
+            // Write the index with offsets relative to the start of the data, to find its size.
+            byte[] index = writeIndex( 0 );
+            long dataStart = LZ4ContentPackage.Magic.length + 4 + dictionary.length + 4 + index.length;
+            index = writeIndex( dataStart );
+            OutputStream out = new BufferedOutputStream( new FileOutputStream( packFile ) );
+            try {
+                DataOutputStream header = new DataOutputStream( out );
+                header.write( LZ4ContentPackage.Magic );
+                header.writeInt( dictionary.length );
+                header.write( dictionary );
+                header.writeInt( entries.size() );
+                header.write( index );
+                header.flush();
+                InputStream in = new FileInputStream( dataFile );
+                try {
+                    byte[] buffer = new byte[ContentBlobStore.CopyBufferSize];
+                    int read;
+                    while( (read = in.read( buffer )) != -1 ) {
+                        out.write( buffer, 0, read );
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            dataFile.delete();
+        }
+    }
+
+    /**
+     * Encode the entry index.
+     * @param dataStart The position of the entry data in the pack file.
+     */
+    private byte[] writeIndex(long dataStart) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bout );
+        for( LZ4ContentPackage.PackEntry entry : entries ) {
+            out.writeUTF( entry.name );
+            out.writeByte( entry.directory ? 1 : 0 );
+            out.writeLong( entry.size );
+            out.writeInt( (int)entry.crc );
+            out.writeLong( dataStart + entry.offset );
+        }
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Read the next block of a file's data into the block buffer.
+     * @return The number of bytes read; zero at the end of the file.
+     */
+    private int readBlock(InputStream in, int blockStart) throws IOException {
+        int length = 0;
+        int read;
+        while( length < LZ4ContentPackage.BlockSize
+            && (read = in.read( block, blockStart + length, LZ4ContentPackage.BlockSize - length )) != -1 ) {
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Compress and write the block of data in the block buffer.
+     * @param length    The length of the block's data.
+     */
+    private void writeBlock(int length) throws IOException {
+        int blockStart = dictionary.length;
+        int size = compress( block, 0, blockStart, blockStart + length, compressed );
+        int header;
+        if( size < length ) {
+            header = size;
+            if( dictionary.length > 0 ) {
+                header |= LZ4ContentPackage.DictionaryFlag;
+            }
+            data.writeInt( header );
+            data.write( compressed, 0, size );
+        }
+        else {
+            size = length;
+            data.writeInt( size | LZ4ContentPackage.StoredFlag );
+            data.write( block, blockStart, size );
+        }
+        dataSize += 4 + size;
+    }
+
+    /**
+     * Compress data in LZ4 block format.
+     * @param src           A buffer containing a prefix (i.e. a dictionary) followed by the data.
+     * @param prefixStart   The start of the prefix; matches may reference data from here on.
+     * @param start         The start of the data to compress.
+     * @param end           The end of the data to compress.
+     * @param dst           A buffer for the compressed data; must have space for at least
+     *                      (end - start) + (end - start) / 255 + 16 bytes.
+     * @return The length of the compressed data.
+     */
+    int compress(byte[] src, int prefixStart, int start, int end, byte[] dst) {
+        Arrays.fill( hashTable, -1 );
+        for( int p = prefixStart; p + LZ4ContentPackage.MinMatch <= start; p++ ) {
+            hashTable[hash( src, p )] = p;
+        }
+        int dp = 0;
+        int anchor = start;
+        int p = start;
+        int matchLimit = end - LastLiterals;
+        int matchStartLimit = end - MatchStartLimit;
+        while( p < matchStartLimit ) {
+            int h = hash( src, p );
+            int ref = hashTable[h];
+            hashTable[h] = p;
+            if( ref >= prefixStart && p - ref <= MaxOffset && readInt( src, ref ) == readInt( src, p ) ) {
+                int matchLength = LZ4ContentPackage.MinMatch;
+                while( p + matchLength < matchLimit && src[ref + matchLength] == src[p + matchLength] ) {
+                    matchLength++;
+                }
+                dp = writeSequence( src, anchor, p - anchor, p - ref, matchLength, dst, dp );
+                p += matchLength;
+                anchor = p;
+            }
+            else {
+                p++;
+            }
+        }
+        // The last sequence only contains literals.
+        return writeSequence( src, anchor, end - anchor, 0, 0, dst, dp );
+    }
+
+    /**
+     * Write an LZ4 sequence: literals, followed by a match unless the match length is zero.
+     * @return The position after the sequence in the dst buffer.
+     */
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength,
+            byte[] dst, int dp) {
+        int tokenPos = dp++;
+        int token = Math.min( literalLength, 15 ) << 4;
+        if( literalLength >= 15 ) {
+            dp = writeLength( literalLength - 15, dst, dp );
+        }
+        System.arraycopy( src, literalStart, dst, dp, literalLength );
+        dp += literalLength;
+        if( matchLength > 0 ) {
+            dst[dp++] = (byte)offset;
+            dst[dp++] = (byte)(offset >>> 8);
+            int length = matchLength - LZ4ContentPackage.MinMatch;
+            token |= Math.min( length, 15 );
+            if( length >= 15 ) {
+                dp = writeLength( length - 15, dst, dp );
+            }
+        }
+        dst[tokenPos] = (byte)token;
+        return dp;
+    }
+
+    /**
+     * Write the continuation bytes of a literal or match length.
+     */
+    private static int writeLength(int length, byte[] dst, int dp) {
+        while( length >= 255 ) {
+            dst[dp++] = (byte)255;
+            length -= 255;
+        }
+        dst[dp++] = (byte)length;
+        return dp;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8)
+             | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    private static int hash(byte[] data, int offset) {
+        return (readInt( data, offset ) * -1640531535) >>> (32 - HashBits);
+    }
+}
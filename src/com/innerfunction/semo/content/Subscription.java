@@ -1,15 +1,23 @@
 package com.innerfunction.semo.content;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.support.v4.net.ConnectivityManagerCompat;
+import org.json.simple.JSONValue;
+
 import android.util.Log;
 
 import com.innerfunction.uri.FileResource;
@@ -28,6 +36,19 @@ public class Subscription {
 
     static final String Tag = Subscription.class.getSimpleName();
     
+    /**
+     * The states of a subscription refresh.
+     * A refresh checks for an update, downloads it if one is available and then unpacks it; the
+     * refresh returns to idle once complete, whether or not an update was found.
+     */
+    public static enum RefreshState { Idle, Checking, Downloading, Unpacking };
+    
+    /** A placeholder queued for refresh requests made without a listener. */
+    static final ContentListener NoListener = new ContentListener() {
+        @Override
+        public void onContentRefresh() {}
+    };
+    
     /** The subscription name. */
     private String name;
     /** The subscription manager. */
@@ -36,14 +57,27 @@ public class Subscription {
     private Context context;
     /** The subscription's content directory. */
     private File contentDir;
-    /** Local storage vars specific to this subscription. */
+    /** A view of the subscription's content, including any base layer of initial content. */
+    private ContentOverlay contentView;
+    /** Local storage vars specific to this subscription. Created on demand. */
     private Locals subLocals;
+    /** The subscription's persistent state. */
+    private SubscriptionState subsState;
+    /**
+     * The transaction used by the refresh in progress; each refresh begins its own. Other
+     * operations on the state (initialization, unpacking, scrubbing etc.) use their own transactions.
+     */
+    private volatile SubscriptionState.Transaction state;
     /** General local storage vars, common to all subscriptions. */
     private Locals generalLocals;
     /** The feed's content URL. */
     private String contentURL;
     /** The subscription's download file. */
     private File downloadFile;
+    /** The time the current download started, in ms. */
+    private long downloadStartTime;
+    /** The size of the download file when the current download started. */
+    private long downloadStartOffset;
     /** An object responsible for unpacking downloaded content. */
     private ContentUnpacker unpacker;
     /**
@@ -55,16 +89,36 @@ public class Subscription {
     private HTTPUtils.GetFileCallback contentDownloadHandler = new HTTPUtils.GetFileCallback() {
         @Override
         public void receivedFile(File file) {
+            // Measure the download bandwidth.
+            long time = System.currentTimeMillis() - downloadStartTime;
+            manager.getCostModel().recordDownload( file.length() - downloadStartOffset, time );
+            refreshState.set( RefreshState.Unpacking );
             Subscription.this.unpackContent( file, false );
             Subscription.this.finishDownload();
         }
     };
     /**
-     * An array of refresh listeners.
-     * If this is null then it means that no refresh is in progress. If it is non-null then
-     * it will contain one or more listeners. All listeners are notified once a refresh completes.
+     * The state of the subscription's refresh.
+     * Refresh requests may be made from any thread. A refresh is only started by the request
+     * which moves the state from idle; requests made while a refresh is in progress are coalesced
+     * with it. So only one refresh is in progress at a time, without any locking.
+     */
+    private AtomicReference<RefreshState> refreshState = new AtomicReference<RefreshState>( RefreshState.Idle );
+    /**
+     * A queue of listeners waiting for a refresh to complete.
+     * Each listener is removed from the queue as it is notified, so is notified exactly once.
+     */
+    private ConcurrentLinkedQueue<ContentListener> refreshListeners = new ConcurrentLinkedQueue<ContentListener>();
+    /**
+     * Set when a refresh is requested after the refresh in progress has checked for updates; the
+     * subscription then checks again once the refresh completes.
+     */
+    private AtomicBoolean recheckPending = new AtomicBoolean( false );
+    /**
+     * The listener of a pending install of the subscription's initial content. The install is run
+     * as a refresh, so is deferred while another refresh is in progress.
      */
-    private List<ContentListener> refreshListeners;
+    private AtomicReference<ContentListener> initialContentPending = new AtomicReference<ContentListener>();
     
     public Subscription(Context context) {
         this.context = context;
@@ -79,9 +133,20 @@ public class Subscription {
         this.name = name;
         this.manager = manager;
         contentDir = new File( manager.getContentDir(), name );
-        subLocals = new Locals( String.format("semo.subs.%s", name ) );
+        subsState = new SubscriptionState( manager.getStateFile(), name );
+        if( !manager.getStateFile().hasSection( name ) ) {
+            // Migrate state persisted by earlier versions.
+            try {
+                subsState.migrate( getLocals() );
+            }
+            catch(IOException e) {
+                Log.e( Tag, String.format("Failed to migrate state for %s", name ), e );
+            }
+        }
         generalLocals = manager.getLocalSettings();
         unpacker = new ContentUnpacker( context, manager );
+        String baseContent = subsState.getString("baseContent");
+        contentView = new ContentOverlay( contentDir, baseContent != null ? new File( baseContent ) : null );
     }
     
     /**
@@ -102,9 +167,20 @@ public class Subscription {
      * Get the subscription local settings.
      */
     public Locals getLocals() {
+        if( subLocals == null ) {
+            subLocals = new Locals( String.format("semo.subs.%s", name ) );
+        }
         return subLocals;
     }
     
+    /**
+     * Get the subscription's persistent state.
+     * The state is updated through transactions; see {@link SubscriptionState#begin()}.
+     */
+    public SubscriptionState getState() {
+        return subsState;
+    }
+    
     /**
      * Get the subscription's content directory.
      */
@@ -112,11 +188,29 @@ public class Subscription {
         return contentDir;
     }
     
+    /**
+     * Get a view of the subscription's content.
+     * If the subscription's initial content was installed as a base layer (see
+     * {@link ContentManager#setOverlayInitialContent(boolean)}) then content files must be read
+     * through the view, as files not updated since the initial content aren't in the content
+     * directory.
+     */
+    public ContentOverlay getContentView() {
+        return contentView;
+    }
+    
+    /**
+     * Get the state of the subscription's refresh.
+     */
+    public RefreshState getRefreshState() {
+        return refreshState.get();
+    }
+    
     /**
      * Get the current fully downloaded and unpacked content version.
      */
     public String getContentVersion() {
-        return subLocals.getString("version");
+        return subsState.getString("version");
     }
     
     /**
@@ -124,42 +218,38 @@ public class Subscription {
      * or unpacked.
      */
     public void initialize(final ContentListener listener) {
-        if( subLocals.getBoolean("initialized", false ) ) {
-            final String sourceZip = subLocals.getString("sourceZip");
+        if( subsState.getBoolean("initialized", false ) ) {
+            final String sourceZip = subsState.getString("sourceZip");
             if( sourceZip != null ) {
                 // Path to a source zip file found. This indicates a previous unpack process
-                // that was interrupted, so try to resume the operation.
-                BackgroundTaskRunner.run(new BackgroundTaskRunner.Task() {
-                    @Override
-                    public void run() {
-                        unpackContent( new File( sourceZip ), true );
-                        listener.onContentRefresh();
-                    }
-                });
+                // that was interrupted, so try to resume the operation. The resumed unpack is
+                // run as a refresh, so that no other refresh is started while it is in progress;
+                // if a refresh is already in progress then the listener waits for it instead.
+                refreshListeners.offer( listener != null ? listener : NoListener );
+                if( refreshState.compareAndSet( RefreshState.Idle, RefreshState.Unpacking ) ) {
+                    BackgroundTaskRunner.run(new BackgroundTaskRunner.Task() {
+                        @Override
+                        public void run() {
+                            unpackContent( new File( sourceZip ), true );
+                            refreshComplete();
+                        }
+                    });
+                }
             }
             else {
                 // Subscription initialized and fully unpacked, so nothing to do.
-                // Mark content as initialized.
-                subLocals.setBoolean("initialized", true );
                 listener.onContentRefresh();
             }
         }
         else if( initialContent instanceof FileResource ) {
             // Subscription not initialized and initial content is specified; so unpack the content
-            // before attempting a refresh from the server.
-            Log.d( Tag, String.format("Unpacking initial content from %s", initialContent ) );
-            BackgroundTaskRunner.run(new BackgroundTaskRunner.Task() {
-                @Override
-                public void run() {
-                    File zipFile = ((FileResource)initialContent).asFile();
-                    // Unpack the initial content.
-                    Subscription.this.unpackContent( zipFile, false );
-                    // Mark content as initialized.
-                    subLocals.setBoolean("initialized", true );
-                    // Then try a refresh.
-                    Subscription.this.refresh( listener );
-                }
-            });
+            // before attempting a refresh from the server. The unpack is run as a refresh, so that
+            // no other refresh or unpack is in progress at the same time; if a refresh is already
+            // in progress then the unpack is started once it completes.
+            initialContentPending.set( listener != null ? listener : NoListener );
+            if( refreshState.compareAndSet( RefreshState.Idle, RefreshState.Unpacking ) ) {
+                installInitialContent();
+            }
         }
         else {
             // Subscription not initialized and no initial content specified, so request content
@@ -169,7 +259,7 @@ public class Subscription {
                 @Override
                 public void onContentRefresh() {
                     // Mark content as initialized.
-                    subLocals.setBoolean("initialized", true );
+                    markInitialized();
                     // Notify the listener.
                     listener.onContentRefresh();
                 }
@@ -177,6 +267,50 @@ public class Subscription {
         }
     }
     
+    /**
+     * Install the subscription's initial content, and then refresh it from the server.
+     * Called once the refresh state has moved from idle to unpacking; the refresh state moves on
+     * to checking once the content is installed.
+     */
+    private void installInitialContent() {
+        BackgroundTaskRunner.run(new BackgroundTaskRunner.Task() {
+            @Override
+            public void run() {
+                ContentListener listener = initialContentPending.getAndSet( null );
+                if( listener == null ) {
+                    // Already installed by another request.
+                    refreshComplete();
+                    return;
+                }
+                // Content may have been downloaded by a refresh completed whilst the install was
+                // pending, in which case the initial content is out of date.
+                if( getContentVersion() == null ) {
+                    Log.d( Tag, String.format("Unpacking initial content from %s", initialContent ) );
+                    File zipFile = ((FileResource)initialContent).asFile();
+                    // Use the initial content in place if possible; otherwise unpack it.
+                    if( !(manager.isOverlayInitialContent() && installBaseContent( zipFile )) ) {
+                        Subscription.this.unpackContent( zipFile, false );
+                    }
+                }
+                // Mark content as initialized.
+                markInitialized();
+                // Then continue with a refresh, notifying the listener once it completes.
+                refreshListeners.offer( listener );
+                refreshState.set( RefreshState.Checking );
+                startRefresh();
+            }
+        });
+    }
+    
+    /**
+     * Mark the subscription's content as initialized.
+     */
+    private void markInitialized() {
+        SubscriptionState.Transaction tx = subsState.begin();
+        tx.setBoolean("initialized", true );
+        tx.commit();
+    }
+    
     /**
      * Refresh the subscription's content.
      * Checks the general download policy, and attempts to download an update if the policy
@@ -184,27 +318,36 @@ public class Subscription {
      * @param listener A refresh listener; notified once the refresh has fully completed.
      */
     public void refresh(ContentListener listener) {
-        // Add the listener to the list of listeners.
-        if( refreshListeners != null ) {
-            // A non-null listener list means that a refresh is in progress; so add the
-            // new listener to the list and return immediately, the listener will be
-            // notified when the refresh completes.
-            if( listener != null ) {
-                refreshListeners.add( listener );
-            }
-            return;
+        // Queue the listener before trying to start a refresh, so that whichever refresh is in
+        // progress - this request's or another's - will notify it. Requests without a listener
+        // queue a placeholder, so that they are coalesced in the same way.
+        refreshListeners.offer( listener != null ? listener : NoListener );
+        // Start a refresh, unless one is already in progress.
+        if( refreshState.compareAndSet( RefreshState.Idle, RefreshState.Checking ) ) {
+            startRefresh();
         }
-        // Starting a new refresh.
-        refreshListeners = new ArrayList<ContentListener>();
-        if( listener != null ) {
-            refreshListeners.add( listener );
+        else {
+            RefreshState currentState = refreshState.get();
+            if( currentState == RefreshState.Downloading || currentState == RefreshState.Unpacking ) {
+                // The refresh in progress has already checked for updates, so won't see any update
+                // made available since; check again once it completes.
+                recheckPending.set( true );
+            }
         }
+    }
+    
+    /**
+     * Start a refresh. Called once the refresh state has moved from idle to checking.
+     */
+    protected void startRefresh() {
+        state = subsState.begin();
         // Check the download policy.
         String downloadPolicy = generalLocals.getString("downloadPolicy", null );
         Log.i( Tag, String.format("downloadPolicy=%s", downloadPolicy) );
         if( "never".equals( downloadPolicy ) ) {
             // Downloads disabled
             refreshComplete();
+            return;
         }
         // Check connectivity.
         ConnectivityManager cm = (ConnectivityManager)context.getSystemService( Context.CONNECTIVITY_SERVICE );
@@ -213,6 +356,7 @@ public class Subscription {
         if( !connected ) {
             // No network, so can't download.
             Log.d( Tag, "Network not reachable");
+            refreshComplete();
             return;
         }
         // Check network type.
@@ -232,6 +376,9 @@ public class Subscription {
                 // Only download if policy allows it.
                 startDownload();
             }
+            else {
+                refreshComplete();
+            }
         }
     }
     
@@ -241,8 +388,8 @@ public class Subscription {
      * check for updated content.
      */
     protected void startDownload() {
-        contentURL = subLocals.getString("contentURL", null );
-        String downloadFileName = subLocals.getString("filename", null );
+        contentURL = state.getString("contentURL", null );
+        String downloadFileName = state.getString("downloadFile", null );
         if( contentURL != null && downloadFileName != null ) {
             downloadFile = new File( downloadFileName );
             resumeDownload();
@@ -257,17 +404,21 @@ public class Subscription {
      */
     protected void resumeDownload() {
         if( downloadFile.exists() ) {
+            refreshState.set( RefreshState.Downloading );
             long offset = downloadFile.length();
+            downloadStartTime = System.currentTimeMillis();
+            downloadStartOffset = offset;
             try {
                 HTTPUtils.getFile( contentURL, offset, downloadFile, contentDownloadHandler );
             }
             catch(MalformedURLException e) {
                 Log.w( Tag, String.format("Bad content URL: %s", contentURL ));
+                finishDownload();
             }
         }
         else {
             // Download file not found; clean up build and start again.
-            finishDownload();
+            clearDownload();
             checkForUpdates();
         }
     }
@@ -284,7 +435,10 @@ public class Subscription {
         // Feed ID can be specified as a template accepting feed ID and since build build as values.
         Map<String,Object> context = new HashMap<String,Object>();
         context.put("subs", name );
-        context.put("since", subLocals.getString("version") );
+        context.put("since", state.getString("version") );
+        // The preferred update variant, delta or full; servers can use this to decide which to
+        // return. Estimated using the metadata of the previous update.
+        context.put("variant", getPreferredVariant() );
         String url = StringTemplate.render( subsURL, context );
         // Send the HTTP request.
         try {
@@ -292,8 +446,8 @@ public class Subscription {
                 @Override
                 public void receivedJSON(Map<String, Object> json) {
                     String status = "unknown";
-                    if( json != null ) {
-                        json.get("status").toString();
+                    if( json != null && json.get("status") != null ) {
+                        status = json.get("status").toString();
                     }
                     if("error".equals( status ) ) {
                         // Feed error.
@@ -306,7 +460,13 @@ public class Subscription {
                     else if("update-since".equals( status ) || "current-content".equals( status )) {
                         // Read content URL and start update download.
                         String url = json.get("url").toString();
-                        subLocals.setString("status", status );
+                        // If the server offers both a delta and a full update then choose the cheaper.
+                        if("update-since".equals( status ) && json.get("fullURL") != null
+                            && UpdateCostModel.Full.equals( chooseVariant( json ) ) ) {
+                            url = json.get("fullURL").toString();
+                            status = "current-content";
+                        }
+                        state.setString("status", status );
                         Subscription.this.downloadContent( url );
                     }
                     else {
@@ -321,12 +481,64 @@ public class Subscription {
         }
     }
     
+    /**
+     * Choose the cheaper variant of an available update.
+     * Uses update metadata returned by the server: the download size of the delta update
+     * (patchSize), the total size of the content files it patches (patchBytes) and the
+     * download size of the full content package (fullSize).
+     * @param json  The server's update response.
+     * @return The chosen variant; {@link UpdateCostModel#Delta} if the metadata is incomplete.
+     */
+    protected String chooseVariant(Map<String,Object> json) {
+        Object patchSize = json.get("patchSize");
+        Object patchBytes = json.get("patchBytes");
+        Object fullSize = json.get("fullSize");
+        if( !(patchSize instanceof Number && patchBytes instanceof Number && fullSize instanceof Number) ) {
+            return UpdateCostModel.Delta;
+        }
+        // Record the metadata, to estimate the preferred variant of the next update.
+        state.setString("updatePatchSize", patchSize.toString() );
+        state.setString("updatePatchBytes", patchBytes.toString() );
+        state.setString("updateFullSize", fullSize.toString() );
+        return manager.getCostModel().chooseVariant( ((Number)patchSize).longValue(), ((Number)patchBytes).longValue(),
+            ((Number)fullSize).longValue(), isNetworkMetered() );
+    }
+    
+    /**
+     * Get the preferred variant of the next update, using the metadata of the previous update.
+     */
+    protected String getPreferredVariant() {
+        try {
+            String patchSize = state.getString("updatePatchSize");
+            String patchBytes = state.getString("updatePatchBytes");
+            String fullSize = state.getString("updateFullSize");
+            if( patchSize != null && patchBytes != null && fullSize != null ) {
+                return manager.getCostModel().chooseVariant( Long.parseLong( patchSize ), Long.parseLong( patchBytes ),
+                    Long.parseLong( fullSize ), isNetworkMetered() );
+            }
+        }
+        catch(NumberFormatException e) {
+            Log.w( Tag, "Bad update metadata in state");
+        }
+        return UpdateCostModel.Delta;
+    }
+    
+    /**
+     * Test whether the active network is metered.
+     * ConnectivityManager.isActiveNetworkMetered is only available from API level 16; the compat
+     * version falls back to treating networks other than wifi and equivalents as metered.
+     */
+    protected boolean isNetworkMetered() {
+        ConnectivityManager cm = (ConnectivityManager)context.getSystemService( Context.CONNECTIVITY_SERVICE );
+        return ConnectivityManagerCompat.isActiveNetworkMetered( cm );
+    }
+    
     /**
      * Download a content update.
      * @param contentURL    The URL of a zip file containing the update.
      */
     protected void downloadContent(String contentURL) {
-        subLocals.setString("contentURL", contentURL );
+        state.setString("contentURL", contentURL );
         // Delete any previous download file.
         if( downloadFile != null && downloadFile.exists() ) {
             downloadFile.delete();
@@ -334,37 +546,67 @@ public class Subscription {
         // Setup the download file path. This is placed in the app's tmp directory.
         String filename = String.format("%s.zip", name );
         downloadFile = new File( manager.getDownloadDir(), filename );
-        subLocals.setString("downloadFile", downloadFile.getAbsolutePath() );
+        state.setString("downloadFile", downloadFile.getAbsolutePath() );
+        // Commit the download state, so that an interrupted download can be resumed.
+        state.commit();
         // Send download request.
+        refreshState.set( RefreshState.Downloading );
+        downloadStartTime = System.currentTimeMillis();
+        downloadStartOffset = 0;
         try {
             HTTPUtils.getFile( contentURL, 0, downloadFile, contentDownloadHandler );
         }
         catch(MalformedURLException e) {
             Log.w( Tag, String.format("Bad content URL: %s", contentURL ));
+            finishDownload();
         }
     }
     
     /**
-     * Cleanup after a download.
+     * Cleanup after a download, and complete the refresh.
      */
     protected void finishDownload() {
+        clearDownload();
+        refreshComplete();
+    }
+    
+    /**
+     * Delete the download file and clear the download state.
+     */
+    protected void clearDownload() {
         if( downloadFile != null ) {
             downloadFile.delete();
             downloadFile = null;
         }
-        subLocals.remove("url","filename","status");
-        refreshComplete();
+        state.remove("contentURL","downloadFile","status");
+        state.commit();
     }
     
     /**
      * End of refresh process.
      */
     protected void refreshComplete() {
-        // Clear the refresh listener list and notify all listeners on the list.
-        List<ContentListener> listeners = refreshListeners;
-        refreshListeners = null;
-        for(ContentListener listener : listeners) {
-            listener.onContentRefresh();
+        // Notify all queued listeners, removing each from the queue as it is notified.
+        ContentListener listener;
+        while( (listener = refreshListeners.poll()) != null ) {
+            try {
+                listener.onContentRefresh();
+            }
+            catch(RuntimeException e) {
+                Log.e( Tag, String.format("Refresh listener failed for %s", name ), e );
+            }
+        }
+        refreshState.set( RefreshState.Idle );
+        // Listeners queued after the queue was emptied but before the state returned to idle had
+        // their requests coalesced with this refresh, but weren't notified by it; so start a new
+        // refresh for them, or for a pending recheck, unless another request has already done so.
+        // A pending install of initial content goes first, and is followed by a refresh.
+        boolean recheck = recheckPending.getAndSet( false );
+        if( initialContentPending.get() != null && refreshState.compareAndSet( RefreshState.Idle, RefreshState.Unpacking ) ) {
+            installInitialContent();
+        }
+        else if( (recheck || !refreshListeners.isEmpty()) && refreshState.compareAndSet( RefreshState.Idle, RefreshState.Checking ) ) {
+            startRefresh();
         }
     }
     
@@ -378,5 +620,58 @@ public class Subscription {
     public void unpackContent(File sourceZipFile, boolean resume) {
         unpacker.unpackContent( this, sourceZipFile, resume );
     }
+    
+    /**
+     * Install a zip file of initial content as the base layer of the subscription's content view.
+     * The zip's files are read in place, so this takes no longer than reading the zip's directory
+     * and content manifest; only files later updated are written to the content directory.
+     * @param zipFile   A content zip file, bundled with the app.
+     * @return true if the content was installed; false if it should be unpacked instead.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean installBaseContent(File zipFile) {
+        ContentOverlay view = new ContentOverlay( contentDir, zipFile );
+        try {
+            Map<String,Object> manifest;
+            Reader reader = new InputStreamReader( view.open(".semo/manifest.json"), ContentUnpacker.ContentTextEncoding );
+            try {
+                manifest = (Map<String,Object>)JSONValue.parseWithException( reader );
+            }
+            finally {
+                reader.close();
+            }
+            if( !name.equals( manifest.get("name") ) ) {
+                throw new IOException( String.format("Name in manifest doesn't match subscription: %s", manifest.get("name") ) );
+            }
+            String version = (String)manifest.get("version");
+            if( version == null ) {
+                throw new IOException("Content version not found in manifest");
+            }
+            if( !(contentDir.exists() || contentDir.mkdirs()) ) {
+                throw new IOException( String.format("Unable to create content directory %s", contentDir ) );
+            }
+            SubscriptionState.Transaction tx = subsState.begin();
+            tx.setString("baseContent", zipFile.getAbsolutePath() );
+            tx.setString("baseVersion", version );
+            tx.setString("version", version );
+            tx.commit();
+            contentView.close();
+            contentView = view;
+        }
+        catch(Exception e) {
+            Log.w( Tag, String.format("Failed to install base content from %s", zipFile ), e );
+            view.close();
+            return false;
+        }
+        // Notify post-update listeners, as after unpacking content.
+        List<ContentUnpackListener> contentUnpackListeners = manager.getContentUnpackListeners();
+        if( contentUnpackListeners != null ) {
+            for( ContentUnpackListener listener : contentUnpackListeners ) {
+                listener.onContentUnpack( this );
+            }
+        }
+        Log.i( Tag, String.format("Installed base content for %s from %s", name, zipFile ) );
+        return true;
+    }
 
 }
@@ -0,0 +1,194 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.util.Log;
+
+/**
+ * Reader/writer locks on subscription content.
+ * Readers of a subscription's content share its lock; a writer replacing the content holds the
+ * lock exclusively. Within a process, each subscription is locked using its own read/write lock,
+ * so locks on different subscriptions are independent of each other. Across processes (e.g. an
+ * app's UI and push service processes) each subscription is locked using a file lock on a lock
+ * file named after the subscription; a shared file lock is held for as long as any thread in the
+ * process holds the subscription's read lock, and an exclusive file lock while a thread holds its
+ * write lock.
+ * A read lock can't be upgraded to a write lock: a thread holding a subscription's read lock
+ * mustn't request its write lock, and an IllegalStateException is thrown if it does.
+ * If a lock file can't be locked then a warning is logged and the in-process lock alone is used.
+ * @author juliangoacher
+ *
+ */
+public class SubscriptionLocks {
+
+    static final String Tag = SubscriptionLocks.class.getSimpleName();
+
+    /** The directory containing the lock files. */
+    private File lockDir;
+    /** Subscription locks, keyed by subscription name. */
+    private Map<String,SubscriptionLock> locks = new HashMap<String,SubscriptionLock>();
+
+    /**
+     * Create a set of subscription locks.
+     * @param lockDir   The directory to create lock files in.
+     */
+    public SubscriptionLocks(File lockDir) {
+        this.lockDir = lockDir;
+    }
+
+    /**
+     * Acquire a subscription's read lock, blocking while a writer holds the lock.
+     */
+    public void lockRead(String name) {
+        SubscriptionLock lock = getLock( name );
+        lock.rwLock.readLock().lock();
+        lock.processLock.acquire( true );
+    }
+
+    /**
+     * Release a subscription's read lock.
+     */
+    public void unlockRead(String name) {
+        SubscriptionLock lock = getLock( name );
+        lock.processLock.release();
+        lock.rwLock.readLock().unlock();
+    }
+
+    /**
+     * Acquire a subscription's write lock, blocking while any reader or writer holds the lock.
+     * @throws IllegalStateException If the current thread holds the subscription's read lock.
+     */
+    public void lockWrite(String name) {
+        SubscriptionLock lock = getLock( name );
+        if( lock.rwLock.getReadHoldCount() > 0 ) {
+            throw new IllegalStateException( String.format("Write lock on %s requested while holding its read lock", name ) );
+        }
+        lock.rwLock.writeLock().lock();
+        lock.processLock.acquire( false );
+    }
+
+    /**
+     * Release a subscription's write lock.
+     */
+    public void unlockWrite(String name) {
+        SubscriptionLock lock = getLock( name );
+        lock.processLock.release();
+        lock.rwLock.writeLock().unlock();
+    }
+
+    /**
+     * Get the lock for a subscription.
+     */
+    private synchronized SubscriptionLock getLock(String name) {
+        SubscriptionLock lock = locks.get( name );
+        if( lock == null ) {
+            lock = new SubscriptionLock( new File( lockDir, name+".lock") );
+            locks.put( name, lock );
+        }
+        return lock;
+    }
+
+    /** A subscription's in-process and cross-process locks. */
+    static class SubscriptionLock {
+
+        ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+        ProcessLock processLock;
+
+        SubscriptionLock(File file) {
+            processLock = new ProcessLock( file );
+        }
+    }
+
+    /**
+     * A subscription's cross-process lock.
+     * Only one file lock can be held on a file by each process, so the lock counts the threads in
+     * the process holding the subscription's lock; the file is locked by the first and unlocked by
+     * the last. The in-process lock ensures that all holders are on the same side.
+     * Acquiring the file lock may block for as long as another process holds a conflicting lock,
+     * so the file is locked without holding the monitor; other threads wait for the result.
+     */
+    static class ProcessLock {
+
+        /** The lock file. */
+        private File file;
+        /** The lock file, when open. Kept open once opened. */
+        private RandomAccessFile raf;
+        /** The file lock, when held. */
+        private FileLock fileLock;
+        /** The number of threads in this process holding the lock. */
+        private int holders;
+        /** Flag indicating that a thread is acquiring the file lock. */
+        private boolean locking;
+
+        ProcessLock(File file) {
+            this.file = file;
+        }
+
+        void acquire(boolean shared) {
+            synchronized( this ) {
+                boolean interrupted = false;
+                while( locking ) {
+                    try {
+                        wait();
+                    }
+                    catch(InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if( interrupted ) {
+                    Thread.currentThread().interrupt();
+                }
+                if( holders++ > 0 ) {
+                    return;
+                }
+                locking = true;
+            }
+            FileLock lock = null;
+            try {
+                if( raf == null ) {
+                    File dir = file.getParentFile();
+                    if( !(dir.exists() || dir.mkdirs()) ) {
+                        throw new IOException( String.format("Unable to create directory %s", dir ) );
+                    }
+                    raf = new RandomAccessFile( file, "rw");
+                }
+                lock = raf.getChannel().lock( 0, Long.MAX_VALUE, shared );
+            }
+            catch(IOException e) {
+                Log.w( Tag, String.format("Unable to lock %s", file ), e );
+                // The channel is closed if the thread was interrupted, so reopen it next time.
+                if( raf != null && !raf.getChannel().isOpen() ) {
+                    raf = null;
+                }
+            }
+            finally {
+                synchronized( this ) {
+                    fileLock = lock;
+                    locking = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized void release() {
+            if( --holders > 0 ) {
+                return;
+            }
+            if( fileLock != null ) {
+                try {
+                    fileLock.release();
+                }
+                catch(IOException e) {
+                    Log.w( Tag, String.format("Unable to unlock %s", file ), e );
+                }
+                fileLock = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.innerfunction.semo.content;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.innerfunction.util.Locals;
+
+/**
+ * Transactional access to a subscription's persistent state.
+ * State is read directly from the underlying persistent store, and written through
+ * transactions: each caller begins its own {@link Transaction}, whose values are held in an
+ * in-memory write-back view and are only written to the store when the transaction is committed.
+ * A transaction's reads see its own uncommitted values; other callers only see them once
+ * committed. This allows the many state updates made during a refresh to be written as a single
+ * batch at each stage boundary, instead of as a storm of small synchronous writes; and callers
+ * on different threads (e.g. the unpacker and the scrubber) to commit or roll back their own
+ * updates without affecting each other's.
+ * Callers must commit before any point which a resumed process needs to be able to recover to.
+ * The state of all subscriptions is persisted in a single shared {@link ContentStateFile}, with
+ * one section per subscription.
+ * @author juliangoacher
+ *
+ */
+public class SubscriptionState {
+
+    static final String Tag = SubscriptionState.class.getSimpleName();
+
+    /** The names of string values migrated from a subscription's Locals. */
+    static final String[] LocalsStringKeys = new String[]{
+        "version", "sourceZip", "unpackStatus", "contentURL", "downloadFile", "status"
+    };
+    /** The names of int values migrated from a subscription's Locals. */
+    static final String[] LocalsIntKeys = new String[]{ "patchIndex", "postUnpackIndex" };
+    /** The names of boolean values migrated from a subscription's Locals. */
+    static final String[] LocalsBooleanKeys = new String[]{ "initialized" };
+
+    /** The shared state file. */
+    protected ContentStateFile stateFile;
+    /** The subscription name; names the subscription's section in the state file. */
+    protected String name;
+
+    public SubscriptionState(ContentStateFile stateFile, String name) {
+        this.stateFile = stateFile;
+        this.name = name;
+    }
+
+    /**
+     * Begin a transaction on the state.
+     */
+    public Transaction begin() {
+        return new Transaction( stateFile, name );
+    }
+
+    /**
+     * Migrate the subscription's state from its Locals, if not already in the state file.
+     */
+    public synchronized void migrate(Locals locals) throws IOException {
+        if( stateFile.hasSection( name ) ) {
+            return;
+        }
+        Transaction tx = begin();
+        for( String key : LocalsStringKeys ) {
+            String value = locals.getString( key, null );
+            if( value != null ) {
+                tx.setString( key, value );
+            }
+        }
+        for( String key : LocalsIntKeys ) {
+            int value = locals.getInt( key, -1 );
+            if( value != -1 ) {
+                tx.setInt( key, value );
+            }
+        }
+        for( String key : LocalsBooleanKeys ) {
+            if( locals.getBoolean( key, false ) ) {
+                tx.setBoolean( key, true );
+            }
+        }
+        // Write even if nothing was migrated, so that the section is created.
+        stateFile.update( name, tx.pending );
+    }
+
+    protected String get(String key) {
+        return stateFile.get( name, key );
+    }
+
+    public String getString(String key) {
+        return get( key );
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = get( key );
+        return value == null ? defaultValue : value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = get( key );
+        if( value != null ) {
+            try {
+                return Integer.parseInt( value );
+            }
+            catch(NumberFormatException e) {
+                Log.w( Tag, String.format("Bad int value for %s.%s: %s", name, key, value ) );
+            }
+        }
+        return defaultValue;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = get( key );
+        if( value != null ) {
+            try {
+                return Long.parseLong( value );
+            }
+            catch(NumberFormatException e) {
+                Log.w( Tag, String.format("Bad long value for %s.%s: %s", name, key, value ) );
+            }
+        }
+        return defaultValue;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = get( key );
+        return value == null ? defaultValue : Boolean.parseBoolean( value );
+    }
+
+    /**
+     * A batch of updates to a subscription's state, committed or rolled back as one.
+     * A transaction can be reused after being committed or rolled back. Transactions are thread
+     * safe, but each is intended for the use of a single caller.
+     */
+    public static class Transaction extends SubscriptionState {
+
+        /** Uncommitted values, keyed by name. Removed values are mapped to null. */
+        private Map<String,String> pending = new HashMap<String,String>();
+
+        Transaction(ContentStateFile stateFile, String name) {
+            super( stateFile, name );
+        }
+
+        @Override
+        protected synchronized String get(String key) {
+            if( pending.containsKey( key ) ) {
+                return pending.get( key );
+            }
+            return super.get( key );
+        }
+
+        public synchronized String setString(String key, String value) {
+            pending.put( key, value );
+            return value;
+        }
+
+        public synchronized int setInt(String key, int value) {
+            pending.put( key, Integer.toString( value ) );
+            return value;
+        }
+
+        public synchronized boolean setBoolean(String key, boolean value) {
+            pending.put( key, Boolean.toString( value ) );
+            return value;
+        }
+
+        public synchronized void remove(String... keys) {
+            for( String key : keys ) {
+                pending.put( key, null );
+            }
+        }
+
+        /**
+         * Write the transaction's uncommitted values to the state file.
+         */
+        public synchronized void commit() {
+            if( pending.isEmpty() ) {
+                return;
+            }
+            try {
+                stateFile.update( name, pending );
+            }
+            catch(IOException e) {
+                Log.e( Tag, String.format("Failed to commit state for %s", name ), e );
+            }
+            pending.clear();
+        }
+
+        /**
+         * Discard the transaction's uncommitted values.
+         */
+        public synchronized void rollback() {
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.innerfunction.semo.content;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+import android.util.Log;
+
+/**
+ * A record of the zip entries completed by an unzip operation.
+ * Allows an interrupted unzip to resume from the first incomplete entry rather than from the
+ * start of the archive. Completed entries are recorded in memory and written to the checkpoint
+ * file in batches, so that there isn't one durable write per entry; if the process dies then
+ * at most one batch of entries is extracted again on resume.
+ * The checkpoint records the size and modification time of the zip file it applies to, and is
+ * ignored if used with a different zip file.
+ * @author juliangoacher
+ *
+ */
+public class UnzipCheckpoint {
+
+    static final String Tag = UnzipCheckpoint.class.getSimpleName();
+
+    /** The number of completed entries after which the checkpoint is written. */
+    static final int BatchSize = 100;
+    /** The maximum time after which pending completions are written, in ms. */
+    static final long BatchInterval = 2000;
+
+    /** The file the checkpoint is stored in. */
+    private File checkpointFile;
+    /** The size of the zip file being unzipped. */
+    private long zipSize;
+    /** The modification time of the zip file being unzipped. */
+    private long zipModified;
+    /** The indices of completed entries. */
+    private BitSet completed = new BitSet();
+    /** The number of completions not yet written to the checkpoint file. */
+    private int pending;
+    /** The time the checkpoint was last written. */
+    private long lastWrite = System.currentTimeMillis();
+
+    public UnzipCheckpoint(File checkpointFile, File zipFile) {
+        this.checkpointFile = checkpointFile;
+        this.zipSize = zipFile.length();
+        this.zipModified = zipFile.lastModified();
+        load();
+    }
+
+    /**
+     * Load a previously written checkpoint.
+     */
+    private void load() {
+        if( !checkpointFile.exists() ) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( checkpointFile ) ) );
+            try {
+                if( in.readLong() == zipSize && in.readLong() == zipModified ) {
+                    int wordCount = in.readInt();
+                    for( int i = 0; i < wordCount; i++ ) {
+                        long word = in.readLong();
+                        for( int bit = 0; word != 0; bit++, word >>>= 1 ) {
+                            if( (word & 1) != 0 ) {
+                                completed.set( i * 64 + bit );
+                            }
+                        }
+                    }
+                }
+                else {
+                    Log.d( Tag, String.format("Ignoring checkpoint for different zip file: %s", checkpointFile ) );
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch(IOException e) {
+            Log.w( Tag, String.format("Failed to read unzip checkpoint %s", checkpointFile ), e );
+            completed.clear();
+        }
+    }
+
+    /**
+     * Test whether an entry was completed by a previous unzip.
+     * @param index The entry's index in the zip's central directory.
+     */
+    public synchronized boolean isComplete(int index) {
+        return completed.get( index );
+    }
+
+    /**
+     * Record an entry as completed.
+     * The checkpoint file is written once enough completions are pending, or once enough
+     * time has passed since it was last written.
+     * @param index The entry's index in the zip's central directory.
+     */
+    public synchronized void complete(int index) throws IOException {
+        completed.set( index );
+        pending++;
+        if( pending >= BatchSize || System.currentTimeMillis() - lastWrite > BatchInterval ) {
+            write();
+        }
+    }
+
+    /**
+     * Write all pending completions to the checkpoint file.
+     */
+    public synchronized void flush() throws IOException {
+        if( pending > 0 ) {
+            write();
+        }
+    }
+
+    /**
+     * Remove the checkpoint. Called once the unzip has completed.
+     */
+    public synchronized void clear() {
+        completed.clear();
+        pending = 0;
+        if( checkpointFile.exists() && !checkpointFile.delete() ) {
+            Log.w( Tag, String.format("Failed to delete unzip checkpoint %s", checkpointFile ) );
+        }
+    }
+
+    /**
+     * Write the checkpoint file.
+     * The file is written under a temporary name, synced and then moved into place, so a crash
+     * during the write leaves the previous checkpoint intact.
+     */
+    private void write() throws IOException {
+        File checkpointDir = checkpointFile.getParentFile();
+        if( !(checkpointDir.exists() || checkpointDir.mkdirs()) ) {
+            throw new IOException( String.format("Unable to create directory %s", checkpointDir ) );
+        }
+        File tempFile = new File( checkpointDir, checkpointFile.getName()+".temp");
+        FileOutputStream fout = new FileOutputStream( tempFile );
+        try {
+            DataOutputStream out = new DataOutputStream( fout );
+            out.writeLong( zipSize );
+            out.writeLong( zipModified );
+            long[] words = toWords( completed );
+            out.writeInt( words.length );
+            for( long word : words ) {
+                out.writeLong( word );
+            }
+            out.flush();
+            fout.getFD().sync();
+        }
+        finally {
+            fout.close();
+        }
+        if( !tempFile.renameTo( checkpointFile ) ) {
+            throw new IOException( String.format("Failed to move unzip checkpoint into place at %s", checkpointFile ) );
+        }
+        pending = 0;
+        lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Convert a bit set to an array of 64 bit words, with bit n in bit (n % 64) of word (n / 64).
+     * Equivalent to BitSet.toLongArray(), which needs API level 19.
+     */
+    private static long[] toWords(BitSet bits) {
+        long[] words = new long[(bits.length() + 63) / 64];
+        for( int i = bits.nextSetBit( 0 ); i >= 0; i = bits.nextSetBit( i + 1 ) ) {
+            words[i / 64] |= 1L << (i % 64);
+        }
+        return words;
+    }
+}
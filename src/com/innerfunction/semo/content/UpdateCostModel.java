@@ -0,0 +1,149 @@
+package com.innerfunction.semo.content;
+
+import android.util.Log;
+
+/**
+ * A model of the cost of downloading and applying content updates.
+ * Used to choose between a delta update (a patch against the current content version) and a
+ * full content package. A delta update is smaller, but applying its patches takes CPU time; on
+ * a slow device with a fast network it can be quicker to download the full package, whilst on a
+ * metered network the smaller download is usually preferable.
+ * The model keeps exponentially weighted moving averages of the measured download bandwidth and
+ * of the device's patch throughput (the rate at which content is patched, in bytes of patched
+ * content per second), and uses these to estimate the cost of each update variant in seconds.
+ * The cost of downloaded bytes is multiplied by a weight when the network is metered.
+ * Measurements are persisted in the shared content state file.
+ * @author juliangoacher
+ *
+ */
+public class UpdateCostModel {
+
+    static final String Tag = UpdateCostModel.class.getSimpleName();
+
+    /** The name of the state file section the model is persisted in. */
+    static final String StateSection = "semo.costModel";
+    /** The weight given to each new measurement in the moving averages. */
+    static final double Alpha = 0.3;
+    /** The initial bandwidth estimate, in bytes per second. */
+    static final double DefaultBandwidth = 256 * 1024;
+    /** The initial patch throughput estimate, in bytes per second. */
+    static final double DefaultPatchThroughput = 1024 * 1024;
+    /** The default weight of download costs on metered networks. */
+    static final double DefaultMeteredWeight = 4;
+    /** The minimum download size measured; smaller downloads are dominated by latency. */
+    static final long MinMeasuredBytes = 16 * 1024;
+    /** The minimum duration measured, in ms. */
+    static final long MinMeasuredTime = 100;
+
+    /** The delta update variant. */
+    public static final String Delta = "delta";
+    /** The full content package variant. */
+    public static final String Full = "full";
+
+    /** The model's persistent state. Each measurement is committed as it is recorded. */
+    private SubscriptionState.Transaction state;
+    /** The weight of download costs on metered networks. */
+    private double meteredWeight = DefaultMeteredWeight;
+
+    public UpdateCostModel(ContentStateFile stateFile) {
+        this.state = new SubscriptionState( stateFile, StateSection ).begin();
+    }
+
+    public void setMeteredWeight(double weight) {
+        meteredWeight = weight;
+    }
+
+    /**
+     * Get the current bandwidth estimate, in bytes per second.
+     */
+    public synchronized double getBandwidth() {
+        return getDouble("bandwidth", DefaultBandwidth );
+    }
+
+    /**
+     * Get the current patch throughput estimate, in bytes per second.
+     */
+    public synchronized double getPatchThroughput() {
+        return getDouble("patchThroughput", DefaultPatchThroughput );
+    }
+
+    /**
+     * Record a download measurement.
+     * @param bytes The number of bytes downloaded.
+     * @param time  The download time, in ms.
+     */
+    public synchronized void recordDownload(long bytes, long time) {
+        if( bytes >= MinMeasuredBytes && time >= MinMeasuredTime ) {
+            record("bandwidth", DefaultBandwidth, bytes * 1000.0 / time );
+        }
+    }
+
+    /**
+     * Record a patching measurement.
+     * @param bytes The number of bytes of content patched.
+     * @param time  The time taken to patch the content, in ms.
+     */
+    public synchronized void recordPatching(long bytes, long time) {
+        if( time >= MinMeasuredTime ) {
+            record("patchThroughput", DefaultPatchThroughput, bytes * 1000.0 / time );
+        }
+    }
+
+    /**
+     * Estimate the cost of a delta update, in seconds.
+     * @param patchSize     The download size of the update.
+     * @param patchBytes    The total size of the content files the update patches.
+     * @param metered       Whether the network is metered.
+     */
+    public synchronized double estimateDeltaCost(long patchSize, long patchBytes, boolean metered) {
+        double downloadCost = patchSize / getBandwidth();
+        if( metered ) {
+            downloadCost *= meteredWeight;
+        }
+        return downloadCost + patchBytes / getPatchThroughput();
+    }
+
+    /**
+     * Estimate the cost of a full content update, in seconds.
+     * @param fullSize  The download size of the full content package.
+     * @param metered   Whether the network is metered.
+     */
+    public synchronized double estimateFullCost(long fullSize, boolean metered) {
+        double downloadCost = fullSize / getBandwidth();
+        if( metered ) {
+            downloadCost *= meteredWeight;
+        }
+        return downloadCost;
+    }
+
+    /**
+     * Choose the cheaper update variant.
+     * @return Either {@link #Delta} or {@link #Full}.
+     */
+    public String chooseVariant(long patchSize, long patchBytes, long fullSize, boolean metered) {
+        double deltaCost = estimateDeltaCost( patchSize, patchBytes, metered );
+        double fullCost = estimateFullCost( fullSize, metered );
+        Log.d( Tag, String.format("Estimated update costs: delta=%.1fs full=%.1fs", deltaCost, fullCost ) );
+        return fullCost < deltaCost ? Full : Delta;
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        String value = state.getString( key );
+        if( value != null ) {
+            try {
+                return Double.parseDouble( value );
+            }
+            catch(NumberFormatException e) {
+                Log.w( Tag, String.format("Bad %s value: %s", key, value ) );
+            }
+        }
+        return defaultValue;
+    }
+
+    private void record(String key, double defaultValue, double measurement) {
+        double estimate = state.getString( key ) == null ? measurement
+                                                          : Alpha * measurement + (1 - Alpha) * getDouble( key, defaultValue );
+        state.setString( key, Double.toString( estimate ) );
+        state.commit();
+    }
+}
@@ -0,0 +1,226 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A chain of successive version manifests, applied as a single update.
+ * When a device is several versions behind then a content update can include the manifests of
+ * all versions since the device's current version. Rather than patching each file once per
+ * version, the chain groups the patches for each file across all versions, so that they can be
+ * applied in sequence in memory and the file written once in its final state.
+ * The chain is built by reading just the file name of each patch, and the patches themselves are
+ * read from the manifests on demand; so the chain's memory use doesn't depend on the size of the
+ * patches. Files are ordered by path, so the index of a file in the chain is stable and can be
+ * used to resume an interrupted update.
+ * If a file is deleted by a version in the chain then patches to the file from earlier versions
+ * are discarded; if a file is deleted by the last version to affect it then it is included in
+ * the chain's deletes instead of its patches. A file deleted by one version may be added again
+ * by a later one; files added by the chain are in the update's content package, in their final
+ * state, so a delete of a file in the package is discarded.
+ * Each manifest may declare the algorithm used for its file hashes (see {@link ContentHash}), so
+ * patches and chunked files read from the chain are given a "hash" field naming the algorithm of
+ * the manifest they were read from.
+ * @author juliangoacher
+ *
+ */
+public class VersionChain {
+
+    /** The version manifests, in version order. */
+    private List<VersionManifestReader> manifests = new ArrayList<VersionManifestReader>();
+    /** The paths of patched files, in sorted order. */
+    private String[] patchPaths;
+    /**
+     * The patches to each file, indexed as patchPaths. Each patch is encoded as the index of its
+     * manifest in the upper 32 bits, and the index of the patch within the manifest in the lower.
+     */
+    private long[][] patchRefs;
+    /** The paths of deleted files, in sorted order. */
+    private String[] deletePaths;
+    /** The hash algorithm of each manifest. */
+    private List<String> hashAlgorithms = new ArrayList<String>();
+
+    /**
+     * Create a chain.
+     * @param semoDir   The directory containing the version manifests.
+     * @param versions  The versions in the chain, in version order.
+     * @param packagePaths The paths of the files in the update's content package.
+     */
+    public VersionChain(File semoDir, List<String> versions, Set<String> packagePaths) throws IOException {
+        try {
+            for( String version : versions ) {
+                File manifestFile = new File( semoDir, String.format("%s-manifest.json", version ) );
+                VersionManifestReader manifest = new VersionManifestReader( manifestFile );
+                manifests.add( manifest );
+                Object algorithm = manifest.get("hash");
+                if( algorithm == null ) {
+                    algorithm = ContentHash.DefaultAlgorithm;
+                }
+                if( !(algorithm instanceof String && ContentHash.isSupported( (String)algorithm )) ) {
+                    throw new IOException( String.format("Unsupported hash algorithm in %s: %s", manifestFile, algorithm ) );
+                }
+                hashAlgorithms.add( (String)algorithm );
+            }
+            build( packagePaths );
+        }
+        catch(IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Group the patches in the chain by file.
+     */
+    private void build(Set<String> packagePaths) throws IOException {
+        // Map of file path to its patches; a null value indicates a deleted file.
+        TreeMap<String,long[]> refs = new TreeMap<String,long[]>();
+        for( int m = 0; m < manifests.size(); m++ ) {
+            VersionManifestReader manifest = manifests.get( m );
+            int patchCount = manifest.getCount("patches");
+            for( int i = 0; i < patchCount; i++ ) {
+                String path = (String)manifest.getItemField("patches", i, "file");
+                if( path == null ) {
+                    throw new IOException( String.format("File name missing from patch %d", i ) );
+                }
+                long[] fileRefs = refs.get( path );
+                if( fileRefs == null ) {
+                    fileRefs = new long[1];
+                }
+                else {
+                    long[] newRefs = new long[fileRefs.length + 1];
+                    System.arraycopy( fileRefs, 0, newRefs, 0, fileRefs.length );
+                    fileRefs = newRefs;
+                }
+                fileRefs[fileRefs.length - 1] = ((long)m << 32) | i;
+                refs.put( path, fileRefs );
+            }
+            int deleteCount = manifest.getCount("deletes");
+            for( int i = 0; i < deleteCount; i++ ) {
+                refs.put( (String)manifest.getItem("deletes", i ), null );
+            }
+        }
+        List<String> patched = new ArrayList<String>();
+        List<long[]> patches = new ArrayList<long[]>();
+        List<String> deleted = new ArrayList<String>();
+        for( Map.Entry<String,long[]> entry : refs.entrySet() ) {
+            if( entry.getValue() == null ) {
+                if( !packagePaths.contains( entry.getKey() ) ) {
+                    deleted.add( entry.getKey() );
+                }
+            }
+            else {
+                patched.add( entry.getKey() );
+                patches.add( entry.getValue() );
+            }
+        }
+        patchPaths = patched.toArray( new String[patched.size()] );
+        patchRefs = patches.toArray( new long[patches.size()][] );
+        deletePaths = deleted.toArray( new String[deleted.size()] );
+    }
+
+    /**
+     * Get the number of patched files.
+     */
+    public int getPatchedFileCount() {
+        return patchPaths.length;
+    }
+
+    /**
+     * Get the path of a patched file.
+     */
+    public String getPatchedFile(int index) {
+        return patchPaths[index];
+    }
+
+    /**
+     * Read the patches to a file.
+     * @param index The index of the patched file.
+     * @return A list of the file's patches in version order, as read from the version manifests.
+     * Each patch's "hash" field names the algorithm of its before and after hashes.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Map<String,Object>> getPatches(int index) throws IOException {
+        long[] refs = patchRefs[index];
+        List<Map<String,Object>> patches = new ArrayList<Map<String,Object>>( refs.length );
+        for( long ref : refs ) {
+            int m = (int)(ref >>> 32);
+            Map<String,Object> patch = (Map<String,Object>)manifests.get( m ).getItem("patches", (int)ref );
+            patch.put("hash", hashAlgorithms.get( m ) );
+            patches.add( patch );
+        }
+        return patches;
+    }
+
+    /**
+     * Read the hash of a patched file's contents after all of its patches have been applied.
+     * @param index The index of the patched file.
+     */
+    public String getFinalHash(int index) throws IOException {
+        long[] refs = patchRefs[index];
+        long ref = refs[refs.length - 1];
+        VersionManifestReader manifest = manifests.get( (int)(ref >>> 32) );
+        return (String)manifest.getItemField("patches", (int)ref, "after");
+    }
+
+    /**
+     * Get the algorithm of the hash returned by {@link #getFinalHash(int)}.
+     * @param index The index of the patched file.
+     */
+    public String getFinalHashAlgorithm(int index) {
+        long[] refs = patchRefs[index];
+        return hashAlgorithms.get( (int)(refs[refs.length - 1] >>> 32) );
+    }
+
+    /**
+     * Get the number of chunked files in the last version of the chain.
+     * Chunked files are described by their state in a particular version, so only the chunked
+     * files in the last version are needed.
+     */
+    public int getChunkedFileCount() {
+        return manifests.get( manifests.size() - 1 ).getCount("chunked");
+    }
+
+    /**
+     * Read a chunked file's description from the last version of the chain.
+     * The description's "hash" field names the algorithm of its file and chunk hashes.
+     * @see ContentChunker
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String,Object> getChunkedFile(int index) throws IOException {
+        int m = manifests.size() - 1;
+        Map<String,Object> chunked = (Map<String,Object>)manifests.get( m ).getItem("chunked", index );
+        chunked.put("hash", hashAlgorithms.get( m ) );
+        return chunked;
+    }
+
+    /**
+     * Get the paths of all deleted files.
+     */
+    public String[] getDeletedFiles() {
+        return deletePaths;
+    }
+
+    /**
+     * Close all version manifests.
+     */
+    public void close() throws IOException {
+        IOException error = null;
+        for( VersionManifestReader manifest : manifests ) {
+            try {
+                manifest.close();
+            }
+            catch(IOException e) {
+                error = e;
+            }
+        }
+        if( error != null ) {
+            throw error;
+        }
+    }
+}
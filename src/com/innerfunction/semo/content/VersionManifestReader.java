@@ -0,0 +1,455 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A streaming reader for version manifests.
+ * Version manifests can be very large - they contain the full text of every file patch in an
+ * update - so rather than parsing the whole manifest into memory, this class scans the manifest
+ * once and records the file position of each item in each top-level array (e.g. the patches and
+ * deletes lists). Items are then parsed one at a time, on demand, by seeking to their position.
+ * This gives random access by index (e.g. for resuming an interrupted patch process) whilst
+ * keeping memory use flat regardless of the size of the update.
+ * Top-level values which aren't arrays are parsed during the scan and held in memory. Parsed
+ * values use the same types as json-simple: Map, List, String, Long, Double, Boolean or null.
+ * @author juliangoacher
+ *
+ */
+public class VersionManifestReader {
+
+    /** The manifest file. */
+    private Reader reader;
+    /** Top-level scalar and object values, keyed by name. */
+    private Map<String,Object> values = new HashMap<String,Object>();
+    /** The positions of the items in each top-level array, keyed by array name. */
+    private Map<String,long[]> arrayItems = new HashMap<String,long[]>();
+
+    public VersionManifestReader(File manifestFile) throws IOException {
+        reader = new Reader( manifestFile );
+        try {
+            scan();
+        }
+        catch(IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get a top-level, non-array, value.
+     */
+    public Object get(String name) {
+        return values.get( name );
+    }
+
+    /**
+     * Get the number of items in a top-level array.
+     * @return The number of items, or zero if the array isn't in the manifest.
+     */
+    public int getCount(String arrayName) {
+        long[] positions = arrayItems.get( arrayName );
+        return positions == null ? 0 : positions.length;
+    }
+
+    /**
+     * Read an item from a top-level array.
+     * @param arrayName The array name.
+     * @param index     The index of the item to read.
+     */
+    public Object getItem(String arrayName, int index) throws IOException {
+        long[] positions = arrayItems.get( arrayName );
+        if( positions == null || index < 0 || index >= positions.length ) {
+            throw new IndexOutOfBoundsException( String.format("%s[%d]", arrayName, index ) );
+        }
+        reader.seek( positions[index] );
+        return parseValue();
+    }
+
+    /**
+     * Read a single field of an object item in a top-level array.
+     * Only the named field's value is parsed; other field values are skipped.
+     * @param arrayName The array name.
+     * @param index     The index of the item to read.
+     * @param field     The name of the field to read.
+     * @return The field value, or null if the item doesn't have the field.
+     */
+    public Object getItemField(String arrayName, int index, String field) throws IOException {
+        long[] positions = arrayItems.get( arrayName );
+        if( positions == null || index < 0 || index >= positions.length ) {
+            throw new IndexOutOfBoundsException( String.format("%s[%d]", arrayName, index ) );
+        }
+        reader.seek( positions[index] );
+        expect('{');
+        if( peek() == '}' ) {
+            return null;
+        }
+        do {
+            String key = parseString();
+            expect(':');
+            if( field.equals( key ) ) {
+                return parseValue();
+            }
+            skipValue();
+        }
+        while( next() == ',' );
+        return null;
+    }
+
+    /**
+     * Close the manifest file.
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Scan the manifest and build the index of array items.
+     */
+    private void scan() throws IOException {
+        expect('{');
+        if( peek() == '}' ) {
+            return;
+        }
+        do {
+            String name = parseString();
+            expect(':');
+            if( peek() == '[' ) {
+                reader.read();
+                long[] positions = new long[16];
+                int count = 0;
+                if( peek() != ']' ) {
+                    do {
+                        skipWhitespace();
+                        if( count == positions.length ) {
+                            positions = resize( positions, count * 2 );
+                        }
+                        positions[count++] = reader.position();
+                        skipValue();
+                    }
+                    while( next() == ',' );
+                    reader.unread();
+                }
+                expect(']');
+                arrayItems.put( name, resize( positions, count ) );
+            }
+            else {
+                values.put( name, parseValue() );
+            }
+        }
+        while( next() == ',' );
+        reader.unread();
+        expect('}');
+    }
+
+    /**
+     * Parse a JSON value.
+     */
+    private Object parseValue() throws IOException {
+        int ch = peek();
+        switch( ch ) {
+        case '{':
+            reader.read();
+            Map<String,Object> map = new HashMap<String,Object>();
+            if( peek() == '}' ) {
+                reader.read();
+                return map;
+            }
+            do {
+                String key = parseString();
+                expect(':');
+                map.put( key, parseValue() );
+            }
+            while( next() == ',' );
+            reader.unread();
+            expect('}');
+            return map;
+        case '[':
+            reader.read();
+            List<Object> list = new ArrayList<Object>();
+            if( peek() == ']' ) {
+                reader.read();
+                return list;
+            }
+            do {
+                list.add( parseValue() );
+            }
+            while( next() == ',' );
+            reader.unread();
+            expect(']');
+            return list;
+        case '"':
+            return parseString();
+        case 't':
+            expectLiteral("true");
+            return Boolean.TRUE;
+        case 'f':
+            expectLiteral("false");
+            return Boolean.FALSE;
+        case 'n':
+            expectLiteral("null");
+            return null;
+        default:
+            return parseNumber();
+        }
+    }
+
+    /**
+     * Skip over a JSON value without parsing it.
+     */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int ch = next();
+            switch( ch ) {
+            case '{':
+            case '[':
+                depth++;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                break;
+            case '"':
+                // Skip the string's contents.
+                for( ch = reader.read(); ch != '"'; ch = reader.read() ) {
+                    if( ch == '\\' ) {
+                        reader.read();
+                    }
+                    else if( ch == -1 ) {
+                        throw new IOException("Unterminated string in manifest");
+                    }
+                }
+                break;
+            case -1:
+                throw new IOException("Unexpected end of manifest");
+            default:
+                // Skip a literal or number.
+                while( (ch = reader.read()) != -1 && ch != ',' && ch != '}' && ch != ']' && !isWhitespace( ch ) ) {
+                    continue;
+                }
+                reader.unread();
+            }
+            // Skip any separators within a container.
+            if( depth > 0 ) {
+                while( peek() == ',' || peek() == ':' ) {
+                    reader.read();
+                }
+            }
+        }
+        while( depth > 0 );
+    }
+
+    /**
+     * Parse a JSON string. Decodes UTF-8 byte sequences and escape sequences.
+     */
+    private String parseString() throws IOException {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while( true ) {
+            int ch = reader.read();
+            if( ch == '"' ) {
+                break;
+            }
+            if( ch == -1 ) {
+                throw new IOException("Unterminated string in manifest");
+            }
+            if( ch == '\\' ) {
+                ch = reader.read();
+                switch( ch ) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    int cp = 0;
+                    for( int i = 0; i < 4; i++ ) {
+                        int digit = Character.digit( reader.read(), 16 );
+                        if( digit < 0 ) {
+                            throw new IOException("Bad unicode escape in manifest");
+                        }
+                        cp = (cp << 4) | digit;
+                    }
+                    sb.append( (char)cp );
+                    break;
+                default:
+                    sb.append( (char)ch );
+                }
+            }
+            else if( ch < 0x80 ) {
+                sb.append( (char)ch );
+            }
+            else {
+                // Decode a multi-byte UTF-8 sequence.
+                int extra;
+                int cp;
+                if( (ch & 0xe0) == 0xc0 ) {
+                    extra = 1;
+                    cp = ch & 0x1f;
+                }
+                else if( (ch & 0xf0) == 0xe0 ) {
+                    extra = 2;
+                    cp = ch & 0x0f;
+                }
+                else if( (ch & 0xf8) == 0xf0 ) {
+                    extra = 3;
+                    cp = ch & 0x07;
+                }
+                else {
+                    throw new IOException("Bad UTF-8 sequence in manifest");
+                }
+                for( int i = 0; i < extra; i++ ) {
+                    int b = reader.read();
+                    if( (b & 0xc0) != 0x80 ) {
+                        throw new IOException("Bad UTF-8 sequence in manifest");
+                    }
+                    cp = (cp << 6) | (b & 0x3f);
+                }
+                sb.appendCodePoint( cp );
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a JSON number.
+     */
+    private Object parseNumber() throws IOException {
+        skipWhitespace();
+        StringBuilder sb = new StringBuilder();
+        boolean isDouble = false;
+        int ch;
+        while( (ch = reader.read()) != -1 && "+-0123456789.eE".indexOf( ch ) > -1 ) {
+            isDouble |= ch == '.' || ch == 'e' || ch == 'E';
+            sb.append( (char)ch );
+        }
+        reader.unread();
+        try {
+            return isDouble ? (Object)Double.valueOf( sb.toString() ) : (Object)Long.valueOf( sb.toString() );
+        }
+        catch(NumberFormatException e) {
+            throw new IOException( String.format("Bad value in manifest at %d", reader.position() ) );
+        }
+    }
+
+    private void expectLiteral(String literal) throws IOException {
+        skipWhitespace();
+        for( int i = 0; i < literal.length(); i++ ) {
+            if( reader.read() != literal.charAt( i ) ) {
+                throw new IOException( String.format("Bad value in manifest at %d", reader.position() ) );
+            }
+        }
+    }
+
+    private void expect(int expected) throws IOException {
+        if( next() != expected ) {
+            throw new IOException( String.format("Expected '%c' in manifest at %d", expected, reader.position() ) );
+        }
+    }
+
+    /** Read the next non-whitespace character. */
+    private int next() throws IOException {
+        int ch;
+        do {
+            ch = reader.read();
+        }
+        while( isWhitespace( ch ) );
+        return ch;
+    }
+
+    /** Return the next non-whitespace character, without consuming it. */
+    private int peek() throws IOException {
+        int ch = next();
+        reader.unread();
+        return ch;
+    }
+
+    private void skipWhitespace() throws IOException {
+        peek();
+    }
+
+    private static boolean isWhitespace(int ch) {
+        return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t';
+    }
+
+    /**
+     * Copy an array into a new array of a different length.
+     * Equivalent to Arrays.copyOf, which needs API level 9.
+     */
+    private static long[] resize(long[] array, int length) {
+        long[] result = new long[length];
+        System.arraycopy( array, 0, result, 0, Math.min( array.length, length ) );
+        return result;
+    }
+
+    /**
+     * A buffered, seekable, byte reader.
+     */
+    static class Reader {
+
+        static final int BufferSize = 8 * 1024;
+
+        private RandomAccessFile file;
+        private byte[] buffer = new byte[BufferSize];
+        /** The file position of the start of the buffer. */
+        private long bufferStart;
+        /** The number of bytes in the buffer. */
+        private int bufferLength;
+        /** The read position within the buffer. */
+        private int pos;
+        /** Flag indicating whether the last read was past the end of the file. */
+        private boolean eof;
+
+        Reader(File file) throws IOException {
+            this.file = new RandomAccessFile( file, "r");
+        }
+
+        int read() throws IOException {
+            if( pos == bufferLength ) {
+                bufferStart += bufferLength;
+                pos = 0;
+                file.seek( bufferStart );
+                bufferLength = Math.max( 0, file.read( buffer ) );
+                if( bufferLength == 0 ) {
+                    eof = true;
+                    return -1;
+                }
+            }
+            eof = false;
+            return buffer[pos++] & 0xff;
+        }
+
+        /** Step back over the last byte read. */
+        void unread() {
+            if( !eof ) {
+                pos--;
+            }
+        }
+
+        long position() {
+            return bufferStart + pos;
+        }
+
+        void seek(long position) {
+            if( position >= bufferStart && position < bufferStart + bufferLength ) {
+                pos = (int)(position - bufferStart);
+            }
+            else {
+                bufferStart = position;
+                bufferLength = 0;
+                pos = 0;
+            }
+            eof = false;
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+    }
+}
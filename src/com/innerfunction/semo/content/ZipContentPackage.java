@@ -0,0 +1,57 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A content package in zip format.
+ * Entries are listed from the zip's central directory.
+ * @author juliangoacher
+ *
+ */
+public class ZipContentPackage extends ContentPackage {
+
+    /** The zip file. */
+    private ZipFile zip;
+    /** The package entries. */
+    private List<Entry> entries = new ArrayList<Entry>();
+
+    public ZipContentPackage(File file) throws IOException {
+        zip = new ZipFile( file );
+        Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+        while( zipEntries.hasMoreElements() ) {
+            ZipEntry zipEntry = zipEntries.nextElement();
+            Entry entry = new Entry();
+            entry.name = zipEntry.getName();
+            entry.directory = zipEntry.isDirectory();
+            entry.size = zipEntry.getSize();
+            entry.crc = zipEntry.getCrc();
+            entries.add( entry );
+        }
+    }
+
+    @Override
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public InputStream openEntry(Entry entry) throws IOException {
+        ZipEntry zipEntry = zip.getEntry( entry.name );
+        if( zipEntry == null ) {
+            throw new IOException( String.format("Zip entry not found: %s", entry.name ) );
+        }
+        return zip.getInputStream( zipEntry );
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+}
@@ -30,7 +30,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,48 +43,95 @@ import java.util.regex.Pattern;
 
 /**
  * Class containing the diff, match and patch methods.
- * Also contains the behaviour settings.
+ * Also contains the behaviour settings, which are fixed when an instance is
+ * created.  Scratch storage is held per thread, so an instance may be shared
+ * by any number of threads.
  */
 @SuppressLint("Assert")
 public class diff_match_patch {
 
-  // Defaults.
-  // Set these on your diff_match_patch instance to override the defaults.
+  // Settings.
+  // Set these on an Options instance and pass it to the constructor to
+  // override the defaults.
 
   /**
    * Number of seconds to map a diff before giving up (0 for infinity).
    */
-  public float Diff_Timeout = 1.0f;
+  public final float Diff_Timeout;
   /**
    * Cost of an empty edit operation in terms of edit characters.
    */
-  public short Diff_EditCost = 4;
+  public final short Diff_EditCost;
   /**
    * At what point is no match declared (0.0 = perfection, 1.0 = very loose).
    */
-  public float Match_Threshold = 0.5f;
+  public final float Match_Threshold;
   /**
    * How far to search for a match (0 = exact location, 1000+ = broad match).
    * A match this many characters away from the expected location will add
    * 1.0 to the score (0.0 is a perfect match).
    */
-  public int Match_Distance = 1000;
+  public final int Match_Distance;
   /**
    * When deleting a large block of text (over ~64 characters), how close do
    * the contents have to be to match the expected contents. (0.0 = perfection,
    * 1.0 = very loose).  Note that Match_Threshold controls how closely the
    * end points of a delete need to match.
    */
-  public float Patch_DeleteThreshold = 0.5f;
+  public final float Patch_DeleteThreshold;
   /**
    * Chunk size for context length.
    */
-  public short Patch_Margin = 4;
+  public final short Patch_Margin;
+  /**
+   * Whether patch_apply indexes the text being patched to locate hunks.
+   * Building the index costs one pass over the text, after which each hunk's
+   * exact match search takes time proportional to the number of candidate
+   * positions, rather than to the distance scanned.  Worthwhile when applying
+   * many patches to a large text.  Results are the same either way.
+   */
+  public final boolean Patch_LocationIndex;
 
   /**
    * The number of bits in an int.
    */
-  private short Match_MaxBits = 32;
+  private final short Match_MaxBits = 32;
+
+  /**
+   * Settings for a diff_match_patch instance, holding the defaults.
+   * See the diff_match_patch fields of the same names.
+   */
+  public static class Options {
+    public float Diff_Timeout = 1.0f;
+    public short Diff_EditCost = 4;
+    public float Match_Threshold = 0.5f;
+    public int Match_Distance = 1000;
+    public float Patch_DeleteThreshold = 0.5f;
+    public short Patch_Margin = 4;
+    public boolean Patch_LocationIndex = false;
+  }
+
+  /**
+   * Create an instance with the default settings.
+   */
+  public diff_match_patch() {
+    this(new Options());
+  }
+
+  /**
+   * Create an instance with the given settings.  Later changes to the
+   * options don't affect the instance.
+   * @param options Settings for the instance.
+   */
+  public diff_match_patch(Options options) {
+    Diff_Timeout = options.Diff_Timeout;
+    Diff_EditCost = options.Diff_EditCost;
+    Match_Threshold = options.Match_Threshold;
+    Match_Distance = options.Match_Distance;
+    Patch_DeleteThreshold = options.Patch_DeleteThreshold;
+    Patch_Margin = options.Patch_Margin;
+    Patch_LocationIndex = options.Patch_LocationIndex;
+  }
 
   /**
    * Internal class for returning results from diff_linesToChars().
@@ -104,6 +150,518 @@ public class diff_match_patch {
     }
   }
 
+  /**
+   * Per-thread scratch storage for computing diffs.
+   */
+  private static final ThreadLocal<DiffArena> DIFF_ARENA =
+      new ThreadLocal<DiffArena>() {
+        @Override
+        protected DiffArena initialValue() {
+          return new DiffArena();
+        }
+      };
+
+  /**
+   * Internal class holding a list of diffs between two texts, as used while
+   * computing a diff.  The texts are held as arrays of codes, one per
+   * character, or one per line for line mode diffs.  Each diff is stored as
+   * an operation and a length rather than as a Diff object: the diff's text
+   * is the next 'length' codes of text1 (for EQUAL and DELETE) or text2 (for
+   * INSERT), so it follows from the lengths of the diffs before it.  This
+   * lets the diff be computed over ranges of the two texts without creating
+   * substrings.
+   */
+  protected static class DiffBuffer {
+    /** The largest text retained for reuse after a diff, in codes. */
+    private static final int MAX_RETAINED_LENGTH = 1 << 20;
+
+    protected final DiffArena arena;
+    /** The texts being diffed, as arrays of character or line codes. */
+    protected int[] text1 = new int[0];
+    protected int[] text2 = new int[0];
+    protected int text1_length;
+    protected int text2_length;
+    /** The texts being diffed, when diffing strings character by character. */
+    protected String source1;
+    protected String source2;
+    protected Operation[] operations = new Operation[16];
+    protected int[] lengths = new int[16];
+    protected int count;
+    /** A copy of diffs being rewritten by a cleanup pass. */
+    protected Operation[] rewriteOperations = new Operation[16];
+    protected int[] rewriteLengths = new int[16];
+    /** Equalities marked to be split into a deletion and an insertion. */
+    protected boolean[] splits = new boolean[16];
+    /** A stack of diff indices, for cleanup passes. */
+    protected int[] stack = new int[16];
+
+    protected DiffBuffer(DiffArena arena) {
+      this.arena = arena;
+    }
+
+    /**
+     * Empty the buffer and copy in the texts to diff.
+     */
+    protected void reset(String text1, String text2) {
+      reset(text1.length(), text2.length());
+      for (int i = 0; i < text1_length; i++) {
+        this.text1[i] = text1.charAt(i);
+      }
+      for (int i = 0; i < text2_length; i++) {
+        this.text2[i] = text2.charAt(i);
+      }
+      source1 = text1;
+      source2 = text2;
+    }
+
+    /**
+     * Empty the buffer and size it for texts of the given lengths, to be
+     * filled in by the caller.
+     */
+    protected void reset(int text1_length, int text2_length) {
+      this.text1_length = text1_length;
+      this.text2_length = text2_length;
+      if (text1.length < text1_length) {
+        text1 = new int[text1_length];
+      }
+      if (text2.length < text2_length) {
+        text2 = new int[text2_length];
+      }
+      source1 = null;
+      source2 = null;
+      count = 0;
+    }
+
+    /**
+     * Release any unusually large arrays, rather than holding on to them
+     * until the thread's next diff.
+     */
+    protected void trim() {
+      if (text1.length > MAX_RETAINED_LENGTH) {
+        text1 = new int[0];
+      }
+      if (text2.length > MAX_RETAINED_LENGTH) {
+        text2 = new int[0];
+      }
+      source1 = null;
+      source2 = null;
+      if (lengths.length > MAX_RETAINED_LENGTH) {
+        operations = new Operation[16];
+        lengths = new int[16];
+        rewriteOperations = new Operation[16];
+        rewriteLengths = new int[16];
+        splits = new boolean[16];
+        stack = new int[16];
+      }
+    }
+
+    /**
+     * Copy the operations and lengths of a list of diffs into the buffer.
+     * The buffer must have been reset with the list's texts.
+     */
+    protected void load(List<Diff> diffs) {
+      for (Diff aDiff : diffs) {
+        add(aDiff.operation, aDiff.text.length());
+      }
+    }
+
+    /**
+     * Replace the contents of a list of diffs with the buffer's diffs.
+     */
+    protected void store(List<Diff> diffs) {
+      diffs.clear();
+      diffs.addAll(toList());
+    }
+
+    /**
+     * Append a diff.
+     */
+    protected void add(Operation operation, int length) {
+      if (count == lengths.length) {
+        operations = resize(operations, count * 2);
+        lengths = resize(lengths, count * 2);
+      }
+      operations[count] = operation;
+      lengths[count] = length;
+      count++;
+    }
+
+    /**
+     * Move the diffs from index 'from' to the end of the buffer into the
+     * rewrite arrays, ready to be rewritten back into the buffer.
+     * @return The number of diffs moved.
+     */
+    protected int beginRewrite(int from) {
+      int n = count - from;
+      if (rewriteLengths.length < n) {
+        rewriteOperations = new Operation[lengths.length];
+        rewriteLengths = new int[lengths.length];
+      }
+      System.arraycopy(operations, from, rewriteOperations, 0, n);
+      System.arraycopy(lengths, from, rewriteLengths, 0, n);
+      count = from;
+      return n;
+    }
+
+    /**
+     * Get the split marks for the diffs in the buffer, all cleared.
+     */
+    protected boolean[] clearSplits() {
+      if (splits.length < count) {
+        splits = new boolean[lengths.length];
+      } else {
+        Arrays.fill(splits, 0, count, false);
+      }
+      return splits;
+    }
+
+    /**
+     * Replace each equality marked to be split, from index 'from' to the end
+     * of the buffer, with a deletion and an insertion of its text.
+     */
+    protected void expandSplits(int from) {
+      int n = 0;
+      for (int i = from; i < count; i++) {
+        if (splits[i]) {
+          n++;
+        }
+      }
+      int j = count + n;
+      if (lengths.length < j) {
+        operations = resize(operations, Math.max(j, count * 2));
+        lengths = resize(lengths, operations.length);
+      }
+      for (int i = count - 1; i >= from; i--) {
+        if (splits[i]) {
+          operations[--j] = Operation.INSERT;
+          lengths[j] = lengths[i];
+          operations[--j] = Operation.DELETE;
+          lengths[j] = lengths[i];
+        } else {
+          operations[--j] = operations[i];
+          lengths[j] = lengths[i];
+        }
+      }
+      count += n;
+    }
+
+    /**
+     * Get an array with room for a stack of the given size.
+     */
+    protected int[] stack(int size) {
+      if (stack.length < size) {
+        stack = resize(stack, size);
+      }
+      return stack;
+    }
+
+    /**
+     * Remove the diffs marked as removed by a length of -1, from index
+     * 'from' to the end of the buffer.
+     */
+    protected void compact(int from) {
+      int j = from;
+      for (int i = from; i < count; i++) {
+        if (lengths[i] != -1) {
+          operations[j] = operations[i];
+          lengths[j] = lengths[i];
+          j++;
+        }
+      }
+      count = j;
+    }
+
+    /**
+     * Convert the buffer to a list of Diff objects.
+     */
+    protected LinkedList<Diff> toList() {
+      LinkedList<Diff> diffs = new LinkedList<Diff>();
+      int pointer1 = 0;
+      int pointer2 = 0;
+      for (int i = 0; i < count; i++) {
+        int length = lengths[i];
+        switch (operations[i]) {
+        case INSERT:
+          diffs.add(new Diff(Operation.INSERT,
+                             source2.substring(pointer2, pointer2 + length)));
+          pointer2 += length;
+          break;
+        case DELETE:
+          diffs.add(new Diff(Operation.DELETE,
+                             source1.substring(pointer1, pointer1 + length)));
+          pointer1 += length;
+          break;
+        case EQUAL:
+          diffs.add(new Diff(Operation.EQUAL,
+                             source1.substring(pointer1, pointer1 + length)));
+          pointer1 += length;
+          pointer2 += length;
+          break;
+        }
+      }
+      return diffs;
+    }
+
+    /**
+     * Convert a buffer of line codes to a list of Diff objects.
+     * @param text1 First string.
+     * @param lines1 The start of each line of text1, and its length.
+     * @param text2 Second string.
+     * @param lines2 The start of each line of text2, and its length.
+     */
+    protected LinkedList<Diff> toLineList(String text1, int[] lines1,
+                                          String text2, int[] lines2) {
+      LinkedList<Diff> diffs = new LinkedList<Diff>();
+      int pointer1 = 0;
+      int pointer2 = 0;
+      for (int i = 0; i < count; i++) {
+        int length = lengths[i];
+        // Successive lines are contiguous in the text.
+        switch (operations[i]) {
+        case INSERT:
+          diffs.add(new Diff(Operation.INSERT, text2.substring(
+              lines2[pointer2], lines2[pointer2 + length])));
+          pointer2 += length;
+          break;
+        case DELETE:
+          diffs.add(new Diff(Operation.DELETE, text1.substring(
+              lines1[pointer1], lines1[pointer1 + length])));
+          pointer1 += length;
+          break;
+        case EQUAL:
+          diffs.add(new Diff(Operation.EQUAL, text1.substring(
+              lines1[pointer1], lines1[pointer1 + length])));
+          pointer1 += length;
+          pointer2 += length;
+          break;
+        }
+      }
+      return diffs;
+    }
+
+    /**
+     * Copy an array into a new array of the given length.  Equivalent to
+     * Arrays.copyOf(), which isn't available before Android API level 9.
+     */
+    protected static int[] resize(int[] array, int length) {
+      int[] result = new int[length];
+      System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+      return result;
+    }
+
+    /**
+     * Copy an array into a new array of the given length.  Equivalent to
+     * Arrays.copyOf(), which isn't available before Android API level 9.
+     */
+    protected static Operation[] resize(Operation[] array, int length) {
+      Operation[] result = new Operation[length];
+      System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+      return result;
+    }
+  }
+
+  /**
+   * Internal class holding the scratch storage used to compute diffs on one
+   * thread, so that successive diffs reuse the same arrays.  Holds a diff
+   * buffer for each level of nested diff_main() calls (line mode diffs nest
+   * character mode diffs), the vectors used by diff_bisect(), and the bit
+   * arrays used by match_bitap().
+   */
+  protected static class DiffArena {
+    private final List<DiffBuffer> buffers = new ArrayList<DiffBuffer>();
+    private int depth = 0;
+    private int[] v1 = new int[0];
+    private int[] v2 = new int[0];
+    private int[] bitap1 = new int[0];
+    private int[] bitap2 = new int[0];
+
+    /**
+     * Get an empty diff buffer for the texts to diff.
+     * Must be matched by a call to release().
+     */
+    protected DiffBuffer acquire(String text1, String text2) {
+      DiffBuffer buffer = acquire();
+      buffer.reset(text1, text2);
+      return buffer;
+    }
+
+    /**
+     * Get an empty diff buffer for texts of the given lengths, to be filled
+     * in by the caller.
+     * Must be matched by a call to release().
+     */
+    protected DiffBuffer acquire(int text1_length, int text2_length) {
+      DiffBuffer buffer = acquire();
+      buffer.reset(text1_length, text2_length);
+      return buffer;
+    }
+
+    private DiffBuffer acquire() {
+      if (depth == buffers.size()) {
+        buffers.add(new DiffBuffer(this));
+      }
+      return buffers.get(depth++);
+    }
+
+    /**
+     * Release the diff buffer returned by the last call to acquire().
+     */
+    protected void release() {
+      buffers.get(--depth).trim();
+    }
+
+    protected int[] vector1(int length) {
+      if (v1.length < length) {
+        v1 = new int[length];
+      }
+      return v1;
+    }
+
+    protected int[] vector2(int length) {
+      if (v2.length < length) {
+        v2 = new int[length];
+      }
+      return v2;
+    }
+
+    /**
+     * Get a bit array for a pass of match_bitap(), zeroed up to 'length'.
+     * Successive passes alternate between two arrays, so that each pass can
+     * read the previous pass's array.
+     * @param pass The pass number.
+     * @param length The number of entries needed.
+     */
+    protected int[] bitap(int pass, int length) {
+      int[] rd = (pass & 1) == 0 ? bitap1 : bitap2;
+      if (rd.length < length) {
+        rd = new int[length];
+        if ((pass & 1) == 0) {
+          bitap1 = rd;
+        } else {
+          bitap2 = rd;
+        }
+      } else {
+        Arrays.fill(rd, 0, length, 0);
+      }
+      return rd;
+    }
+  }
+
+  /**
+   * Internal class which codes each unique line of one or more texts as an
+   * int, for line mode diffs.  Lines are hashed and compared where they lie
+   * in their texts, so no string is created for each line, and the number of
+   * unique lines isn't limited to the range of a char.
+   */
+  protected static class LineTable {
+    /** Each unique line's text, start, length and hash, indexed by code. */
+    private String[] lineTexts = new String[64];
+    private int[] lineStarts = new int[64];
+    private int[] lineLengths = new int[64];
+    private int[] lineHashes = new int[64];
+    /** Number of unique lines.  Code 0 isn't used. */
+    private int lineCount = 1;
+    /** Open addressing hash table of line codes; 0 marks an empty slot. */
+    private int[] table = new int[128];
+    /** Shift which reduces a mixed hash to a slot of the table. */
+    private int tableShift = 32 - 7;
+
+    /**
+     * Split a text into lines.
+     * @param text Text to split.
+     * @return The start of each line in the text, followed by the length of
+     *     the text.  Each line includes its newline.
+     */
+    protected int[] lines(String text) {
+      int count = 0;
+      int i = text.indexOf('\n');
+      while (i != -1) {
+        count++;
+        i = text.indexOf('\n', i + 1);
+      }
+      if (text.length() != 0 && text.charAt(text.length() - 1) != '\n') {
+        count++;
+      }
+      int[] lines = new int[count + 1];
+      int line = 0;
+      i = text.indexOf('\n');
+      while (i != -1) {
+        lines[++line] = i + 1;
+        i = text.indexOf('\n', i + 1);
+      }
+      lines[count] = text.length();
+      return lines;
+    }
+
+    /**
+     * Code each line of a text.
+     * @param text Text to code.
+     * @param lines The lines of the text, as returned by lines().
+     * @param codes Array to write each line's code to.
+     */
+    protected void code(String text, int[] lines, int[] codes) {
+      for (int i = 0; i < lines.length - 1; i++) {
+        codes[i] = code(text, lines[i], lines[i + 1] - lines[i]);
+      }
+    }
+
+    /**
+     * Get the code of a line, adding the line to the table if it is new.
+     */
+    private int code(String text, int start, int length) {
+      int hash = 0;
+      for (int i = start; i < start + length; i++) {
+        hash = 31 * hash + text.charAt(i);
+      }
+      int mask = table.length - 1;
+      int slot = (hash * 0x9e3779b9) >>> tableShift;
+      int code;
+      while ((code = table[slot]) != 0) {
+        if (lineHashes[code] == hash && lineLengths[code] == length
+            && text.regionMatches(start, lineTexts[code], lineStarts[code],
+                                  length)) {
+          return code;
+        }
+        slot = (slot + 1) & mask;
+      }
+      // New line.
+      code = lineCount++;
+      if (code == lineHashes.length) {
+        String[] texts = new String[code * 2];
+        System.arraycopy(lineTexts, 0, texts, 0, code);
+        lineTexts = texts;
+        lineStarts = DiffBuffer.resize(lineStarts, code * 2);
+        lineLengths = DiffBuffer.resize(lineLengths, code * 2);
+        lineHashes = DiffBuffer.resize(lineHashes, code * 2);
+      }
+      lineTexts[code] = text;
+      lineStarts[code] = start;
+      lineLengths[code] = length;
+      lineHashes[code] = hash;
+      table[slot] = code;
+      if (lineCount * 2 > table.length) {
+        rehash();
+      }
+      return code;
+    }
+
+    /**
+     * Double the size of the hash table.
+     */
+    private void rehash() {
+      table = new int[table.length * 2];
+      tableShift--;
+      int mask = table.length - 1;
+      for (int code = 1; code < lineCount; code++) {
+        int slot = (lineHashes[code] * 0x9e3779b9) >>> tableShift;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = code;
+      }
+    }
+  }
+
 
   //  DIFF FUNCTIONS
 
@@ -171,117 +729,146 @@ public class diff_match_patch {
       throw new IllegalArgumentException("Null inputs. (diff_main)");
     }
 
+    DiffArena arena = DIFF_ARENA.get();
+    DiffBuffer diffs = arena.acquire(text1, text2);
+    try {
+      diff_main(diffs, 0, text1.length(), 0, text2.length(), checklines,
+          deadline);
+      return diffs.toList();
+    } finally {
+      arena.release();
+    }
+  }
+
+  /**
+   * Find the differences between ranges of the two texts in a diff buffer,
+   * and append them to the buffer.  Simplifies the problem by stripping any
+   * common prefix or suffix off the ranges before diffing.
+   * @param diffs Diff buffer holding the texts.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param checklines Speedup flag.  If false, then don't run a
+   *     line-level diff first to identify the changed areas.
+   *     If true, then run a faster slightly less optimal diff.
+   * @param deadline Time when the diff should be complete by.
+   */
+  private void diff_main(DiffBuffer diffs, int start1, int end1, int start2,
+                         int end2, boolean checklines, long deadline) {
+    int[] text1 = diffs.text1;
+    int[] text2 = diffs.text2;
+    int first = diffs.count;
+
     // Check for equality (speedup).
-    LinkedList<Diff> diffs;
-    if (text1.equals(text2)) {
-      diffs = new LinkedList<Diff>();
-      if (text1.length() != 0) {
-        diffs.add(new Diff(Operation.EQUAL, text1));
+    if (diff_rangeEquals(text1, start1, end1, text2, start2, end2)) {
+      if (end1 != start1) {
+        diffs.add(Operation.EQUAL, end1 - start1);
       }
-      return diffs;
+      return;
     }
 
     // Trim off common prefix (speedup).
-    int commonlength = diff_commonPrefix(text1, text2);
-    String commonprefix = text1.substring(0, commonlength);
-    text1 = text1.substring(commonlength);
-    text2 = text2.substring(commonlength);
+    int commonprefix = diff_commonPrefix(text1, start1, end1,
+                                         text2, start2, end2);
 
     // Trim off common suffix (speedup).
-    commonlength = diff_commonSuffix(text1, text2);
-    String commonsuffix = text1.substring(text1.length() - commonlength);
-    text1 = text1.substring(0, text1.length() - commonlength);
-    text2 = text2.substring(0, text2.length() - commonlength);
+    int commonsuffix = diff_commonSuffix(text1, start1 + commonprefix, end1,
+                                         text2, start2 + commonprefix, end2);
 
-    // Compute the diff on the middle block.
-    diffs = diff_compute(text1, text2, checklines, deadline);
-
-    // Restore the prefix and suffix.
-    if (commonprefix.length() != 0) {
-      diffs.addFirst(new Diff(Operation.EQUAL, commonprefix));
+    // Compute the diff on the middle block, between the prefix and suffix.
+    if (commonprefix != 0) {
+      diffs.add(Operation.EQUAL, commonprefix);
     }
-    if (commonsuffix.length() != 0) {
-      diffs.addLast(new Diff(Operation.EQUAL, commonsuffix));
+    diff_compute(diffs, start1 + commonprefix, end1 - commonsuffix,
+                 start2 + commonprefix, end2 - commonsuffix,
+                 checklines, deadline);
+    if (commonsuffix != 0) {
+      diffs.add(Operation.EQUAL, commonsuffix);
     }
 
-    diff_cleanupMerge(diffs);
-    return diffs;
+    diff_cleanupMerge(diffs, first, start1, start2);
   }
 
   /**
-   * Find the differences between two texts.  Assumes that the texts do not
-   * have any common prefix or suffix.
-   * @param text1 Old string to be diffed.
-   * @param text2 New string to be diffed.
+   * Find the differences between ranges of the two texts in a diff buffer,
+   * and append them to the buffer.  Assumes that the ranges do not have any
+   * common prefix or suffix.
+   * @param diffs Diff buffer holding the texts.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
    * @param checklines Speedup flag.  If false, then don't run a
    *     line-level diff first to identify the changed areas.
    *     If true, then run a faster slightly less optimal diff.
    * @param deadline Time when the diff should be complete by.
-   * @return Linked List of Diff objects.
    */
-  private LinkedList<Diff> diff_compute(String text1, String text2,
-                                        boolean checklines, long deadline) {
-    LinkedList<Diff> diffs = new LinkedList<Diff>();
-
-    if (text1.length() == 0) {
+  private void diff_compute(DiffBuffer diffs, int start1, int end1,
+                            int start2, int end2, boolean checklines,
+                            long deadline) {
+    int[] text1 = diffs.text1;
+    int[] text2 = diffs.text2;
+    int text1_length = end1 - start1;
+    int text2_length = end2 - start2;
+
+    if (text1_length == 0) {
       // Just add some text (speedup).
-      diffs.add(new Diff(Operation.INSERT, text2));
-      return diffs;
+      diffs.add(Operation.INSERT, text2_length);
+      return;
     }
 
-    if (text2.length() == 0) {
+    if (text2_length == 0) {
       // Just delete some text (speedup).
-      diffs.add(new Diff(Operation.DELETE, text1));
-      return diffs;
+      diffs.add(Operation.DELETE, text1_length);
+      return;
     }
 
-    String longtext = text1.length() > text2.length() ? text1 : text2;
-    String shorttext = text1.length() > text2.length() ? text2 : text1;
-    int i = longtext.indexOf(shorttext);
-    if (i != -1) {
+    int longtext_length = Math.max(text1_length, text2_length);
+    int shorttext_length = Math.min(text1_length, text2_length);
+    int i = text1_length > text2_length
+        ? diff_indexOf(text1, start1, end1, text2, start2, end2) - start1
+        : diff_indexOf(text2, start2, end2, text1, start1, end1) - start2;
+    if (i >= 0) {
       // Shorter text is inside the longer text (speedup).
-      Operation op = (text1.length() > text2.length()) ?
+      Operation op = (text1_length > text2_length) ?
                      Operation.DELETE : Operation.INSERT;
-      diffs.add(new Diff(op, longtext.substring(0, i)));
-      diffs.add(new Diff(Operation.EQUAL, shorttext));
-      diffs.add(new Diff(op, longtext.substring(i + shorttext.length())));
-      return diffs;
+      diffs.add(op, i);
+      diffs.add(Operation.EQUAL, shorttext_length);
+      diffs.add(op, longtext_length - i - shorttext_length);
+      return;
     }
 
-    if (shorttext.length() == 1) {
+    if (shorttext_length == 1) {
       // Single character string.
       // After the previous speedup, the character can't be an equality.
-      diffs.add(new Diff(Operation.DELETE, text1));
-      diffs.add(new Diff(Operation.INSERT, text2));
-      return diffs;
+      diffs.add(Operation.DELETE, text1_length);
+      diffs.add(Operation.INSERT, text2_length);
+      return;
     }
 
     // Check to see if the problem can be split in two.
-    String[] hm = diff_halfMatch(text1, text2);
+    int[] hm = diff_halfMatch(text1, start1, end1, text2, start2, end2);
     if (hm != null) {
-      // A half-match was found, sort out the return data.
-      String text1_a = hm[0];
-      String text1_b = hm[1];
-      String text2_a = hm[2];
-      String text2_b = hm[3];
-      String mid_common = hm[4];
-      // Send both pairs off for separate processing.
-      LinkedList<Diff> diffs_a = diff_main(text1_a, text2_a,
-                                           checklines, deadline);
-      LinkedList<Diff> diffs_b = diff_main(text1_b, text2_b,
-                                           checklines, deadline);
-      // Merge the results.
-      diffs = diffs_a;
-      diffs.add(new Diff(Operation.EQUAL, mid_common));
-      diffs.addAll(diffs_b);
-      return diffs;
+      // A half-match was found, send both pairs off for separate processing.
+      diff_main(diffs, start1, hm[0], start2, hm[1], checklines, deadline);
+      diffs.add(Operation.EQUAL, hm[2]);
+      diff_main(diffs, hm[0] + hm[2], end1, hm[1] + hm[2], end2,
+                checklines, deadline);
+      return;
     }
 
-    if (checklines && text1.length() > 100 && text2.length() > 100) {
-      return diff_lineMode(text1, text2, deadline);
+    if (checklines && text1_length > 100 && text2_length > 100) {
+      LinkedList<Diff> lineDiffs = diff_lineMode(
+          diffs.source1.substring(start1, end1),
+          diffs.source2.substring(start2, end2), deadline);
+      for (Diff aDiff : lineDiffs) {
+        diffs.add(aDiff.operation, aDiff.text.length());
+      }
+      return;
     }
 
-    return diff_bisect(text1, text2, deadline);
+    diff_bisect(diffs, start1, end1, start2, end2, deadline);
   }
 
   /**
@@ -295,16 +882,26 @@ public class diff_match_patch {
    */
   private LinkedList<Diff> diff_lineMode(String text1, String text2,
                                          long deadline) {
-    // Scan the text on a line-by-line basis first.
-    LinesToCharsResult b = diff_linesToChars(text1, text2);
-    text1 = b.chars1;
-    text2 = b.chars2;
-    List<String> linearray = b.lineArray;
-
-    LinkedList<Diff> diffs = diff_main(text1, text2, false, deadline);
+    // Scan the text on a line-by-line basis first, coding each unique line
+    // as an int.
+    LineTable lineTable = new LineTable();
+    int[] lines1 = lineTable.lines(text1);
+    int[] lines2 = lineTable.lines(text2);
+    int lines1_count = lines1.length - 1;
+    int lines2_count = lines2.length - 1;
 
-    // Convert the diff back to original text.
-    diff_charsToLines(diffs, linearray);
+    LinkedList<Diff> diffs;
+    DiffArena arena = DIFF_ARENA.get();
+    DiffBuffer lineDiffs = arena.acquire(lines1_count, lines2_count);
+    try {
+      lineTable.code(text1, lines1, lineDiffs.text1);
+      lineTable.code(text2, lines2, lineDiffs.text2);
+      diff_main(lineDiffs, 0, lines1_count, 0, lines2_count, false, deadline);
+      // Convert the diff back to original text.
+      diffs = lineDiffs.toLineList(text1, lines1, text2, lines2);
+    } finally {
+      arena.release();
+    }
     // Eliminate freak matches (e.g. blank lines)
     diff_cleanupSemantic(diffs);
 
@@ -313,19 +910,19 @@ public class diff_match_patch {
     diffs.add(new Diff(Operation.EQUAL, ""));
     int count_delete = 0;
     int count_insert = 0;
-    String text_delete = "";
-    String text_insert = "";
+    StringBuilder text_delete = new StringBuilder();
+    StringBuilder text_insert = new StringBuilder();
     ListIterator<Diff> pointer = diffs.listIterator();
     Diff thisDiff = pointer.next();
     while (thisDiff != null) {
       switch (thisDiff.operation) {
       case INSERT:
         count_insert++;
-        text_insert += thisDiff.text;
+        text_insert.append(thisDiff.text);
         break;
       case DELETE:
         count_delete++;
-        text_delete += thisDiff.text;
+        text_delete.append(thisDiff.text);
         break;
       case EQUAL:
         // Upon reaching an equality, check for prior redundancies.
@@ -336,15 +933,15 @@ public class diff_match_patch {
             pointer.previous();
             pointer.remove();
           }
-          for (Diff newDiff : diff_main(text_delete, text_insert, false,
-              deadline)) {
+          for (Diff newDiff : diff_main(text_delete.toString(),
+              text_insert.toString(), false, deadline)) {
             pointer.add(newDiff);
           }
         }
         count_insert = 0;
         count_delete = 0;
-        text_delete = "";
-        text_insert = "";
+        text_delete.setLength(0);
+        text_insert.setLength(0);
         break;
       }
       thisDiff = pointer.hasNext() ? pointer.next() : null;
@@ -365,18 +962,43 @@ public class diff_match_patch {
    */
   protected LinkedList<Diff> diff_bisect(String text1, String text2,
       long deadline) {
+    DiffArena arena = DIFF_ARENA.get();
+    DiffBuffer diffs = arena.acquire(text1, text2);
+    try {
+      diff_bisect(diffs, 0, text1.length(), 0, text2.length(), deadline);
+      return diffs.toList();
+    } finally {
+      arena.release();
+    }
+  }
+
+  /**
+   * Find the 'middle snake' of a diff between ranges of the two texts in a
+   * diff buffer, split the problem in two and append the recursively
+   * constructed diff to the buffer.
+   * @param diffs Diff buffer holding the texts.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param deadline Time at which to bail if not yet complete.
+   */
+  private void diff_bisect(DiffBuffer diffs, int start1, int end1,
+                           int start2, int end2, long deadline) {
+    int[] text1 = diffs.text1;
+    int[] text2 = diffs.text2;
     // Cache the text lengths to prevent multiple calls.
-    int text1_length = text1.length();
-    int text2_length = text2.length();
+    int text1_length = end1 - start1;
+    int text2_length = end2 - start2;
     int max_d = (text1_length + text2_length + 1) / 2;
     int v_offset = max_d;
     int v_length = 2 * max_d;
-    int[] v1 = new int[v_length];
-    int[] v2 = new int[v_length];
-    for (int x = 0; x < v_length; x++) {
-      v1[x] = -1;
-      v2[x] = -1;
-    }
+    // The vectors are only used until the problem is split, so they can be
+    // shared with the recursive calls.
+    int[] v1 = diffs.arena.vector1(v_length);
+    int[] v2 = diffs.arena.vector2(v_length);
+    Arrays.fill(v1, 0, v_length, -1);
+    Arrays.fill(v2, 0, v_length, -1);
     v1[v_offset + 1] = 0;
     v2[v_offset + 1] = 0;
     int delta = text1_length - text2_length;
@@ -406,7 +1028,7 @@ public class diff_match_patch {
         }
         int y1 = x1 - k1;
         while (x1 < text1_length && y1 < text2_length
-               && text1.charAt(x1) == text2.charAt(y1)) {
+               && text1[start1 + x1] == text2[start2 + y1]) {
           x1++;
           y1++;
         }
@@ -424,7 +1046,9 @@ public class diff_match_patch {
             int x2 = text1_length - v2[k2_offset];
             if (x1 >= x2) {
               // Overlap detected.
-              return diff_bisectSplit(text1, text2, x1, y1, deadline);
+              diff_bisectSplit(diffs, start1, end1, start2, end2, x1, y1,
+                               deadline);
+              return;
             }
           }
         }
@@ -441,8 +1065,7 @@ public class diff_match_patch {
         }
         int y2 = x2 - k2;
         while (x2 < text1_length && y2 < text2_length
-               && text1.charAt(text1_length - x2 - 1)
-               == text2.charAt(text2_length - y2 - 1)) {
+               && text1[end1 - x2 - 1] == text2[end2 - y2 - 1]) {
           x2++;
           y2++;
         }
@@ -462,7 +1085,9 @@ public class diff_match_patch {
             x2 = text1_length - x2;
             if (x1 >= x2) {
               // Overlap detected.
-              return diff_bisectSplit(text1, text2, x1, y1, deadline);
+              diff_bisectSplit(diffs, start1, end1, start2, end2, x1, y1,
+                               deadline);
+              return;
             }
           }
         }
@@ -470,35 +1095,28 @@ public class diff_match_patch {
     }
     // Diff took too long and hit the deadline or
     // number of diffs equals number of characters, no commonality at all.
-    LinkedList<Diff> diffs = new LinkedList<Diff>();
-    diffs.add(new Diff(Operation.DELETE, text1));
-    diffs.add(new Diff(Operation.INSERT, text2));
-    return diffs;
+    diffs.add(Operation.DELETE, text1_length);
+    diffs.add(Operation.INSERT, text2_length);
   }
 
   /**
    * Given the location of the 'middle snake', split the diff in two parts
    * and recurse.
-   * @param text1 Old string to be diffed.
-   * @param text2 New string to be diffed.
-   * @param x Index of split point in text1.
-   * @param y Index of split point in text2.
+   * @param diffs Diff buffer holding the texts.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param x Index of split point in the range of text1.
+   * @param y Index of split point in the range of text2.
    * @param deadline Time at which to bail if not yet complete.
-   * @return LinkedList of Diff objects.
    */
-  private LinkedList<Diff> diff_bisectSplit(String text1, String text2,
-                                            int x, int y, long deadline) {
-    String text1a = text1.substring(0, x);
-    String text2a = text2.substring(0, y);
-    String text1b = text1.substring(x);
-    String text2b = text2.substring(y);
-
+  private void diff_bisectSplit(DiffBuffer diffs, int start1, int end1,
+                                int start2, int end2, int x, int y,
+                                long deadline) {
     // Compute both diffs serially.
-    LinkedList<Diff> diffs = diff_main(text1a, text2a, false, deadline);
-    LinkedList<Diff> diffsb = diff_main(text1b, text2b, false, deadline);
-
-    diffs.addAll(diffsb);
-    return diffs;
+    diff_main(diffs, start1, start1 + x, start2, start2 + y, false, deadline);
+    diff_main(diffs, start1 + x, end1, start2 + y, end2, false, deadline);
   }
 
   /**
@@ -615,6 +1233,91 @@ public class diff_match_patch {
     return n;
   }
 
+  /**
+   * Convert a string to an array of character codes.
+   */
+  private static int[] diff_codes(String text) {
+    int[] codes = new int[text.length()];
+    for (int i = 0; i < codes.length; i++) {
+      codes[i] = text.charAt(i);
+    }
+    return codes;
+  }
+
+  /**
+   * Determine the common prefix of ranges of two code arrays.
+   * @return The number of characters common to the start of each range.
+   */
+  private static int diff_commonPrefix(int[] text1, int start1, int end1,
+                                       int[] text2, int start2, int end2) {
+    int n = Math.min(end1 - start1, end2 - start2);
+    for (int i = 0; i < n; i++) {
+      if (text1[start1 + i] != text2[start2 + i]) {
+        return i;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Determine the common suffix of ranges of two code arrays.
+   * @return The number of characters common to the end of each range.
+   */
+  private static int diff_commonSuffix(int[] text1, int start1, int end1,
+                                       int[] text2, int start2, int end2) {
+    int n = Math.min(end1 - start1, end2 - start2);
+    for (int i = 1; i <= n; i++) {
+      if (text1[end1 - i] != text2[end2 - i]) {
+        return i - 1;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Do ranges of two code arrays hold the same codes?
+   */
+  private static boolean diff_rangeEquals(int[] text1, int start1, int end1,
+                                          int[] text2, int start2, int end2) {
+    return end1 - start1 == end2 - start2
+        && diff_commonPrefix(text1, start1, end1, text2, start2, end2)
+           == end1 - start1;
+  }
+
+  /**
+   * Find the first occurrence of a range of one code array within a
+   * range of another.
+   * @param text Array to search.
+   * @param start Start of the range to search.
+   * @param end End of the range to search.
+   * @param pattern Array holding the codes to search for.
+   * @param patternStart Start of the codes to search for.
+   * @param patternEnd End of the codes to search for.
+   * @return Index of the first match in text, or -1 if not found.
+   */
+  private static int diff_indexOf(int[] text, int start, int end,
+                                  int[] pattern, int patternStart,
+                                  int patternEnd) {
+    int length = patternEnd - patternStart;
+    if (length == 0) {
+      return start <= end ? start : -1;
+    }
+    int first = pattern[patternStart];
+    int last = end - length;
+    for (int i = start; i <= last; i++) {
+      if (text[i] == first) {
+        int k = 1;
+        while (k < length && text[i + k] == pattern[patternStart + k]) {
+          k++;
+        }
+        if (k == length) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
   /**
    * Determine if the suffix of one string is the prefix of another.
    * @param text1 First string.
@@ -623,22 +1326,34 @@ public class diff_match_patch {
    *     string and the start of the second string.
    */
   protected int diff_commonOverlap(String text1, String text2) {
+    return diff_commonOverlap(diff_codes(text1), 0, text1.length(),
+                              diff_codes(text2), 0, text2.length());
+  }
+
+  /**
+   * Determine if the suffix of one range of codes is the prefix of
+   * another.
+   * @return The number of codes common to the end of the first
+   *     range and the start of the second range.
+   */
+  private static int diff_commonOverlap(int[] text1, int start1, int end1,
+                                        int[] text2, int start2, int end2) {
     // Cache the text lengths to prevent multiple calls.
-    int text1_length = text1.length();
-    int text2_length = text2.length();
+    int text1_length = end1 - start1;
+    int text2_length = end2 - start2;
     // Eliminate the null case.
     if (text1_length == 0 || text2_length == 0) {
       return 0;
     }
-    // Truncate the longer string.
+    // Truncate the longer range.
     if (text1_length > text2_length) {
-      text1 = text1.substring(text1_length - text2_length);
+      start1 = end1 - text2_length;
     } else if (text1_length < text2_length) {
-      text2 = text2.substring(0, text1_length);
+      end2 = start2 + text1_length;
     }
     int text_length = Math.min(text1_length, text2_length);
     // Quick check for the worst case.
-    if (text1.equals(text2)) {
+    if (diff_rangeEquals(text1, start1, end1, text2, start2, end2)) {
       return text_length;
     }
 
@@ -648,14 +1363,15 @@ public class diff_match_patch {
     int best = 0;
     int length = 1;
     while (true) {
-      String pattern = text1.substring(text_length - length);
-      int found = text2.indexOf(pattern);
+      int found = diff_indexOf(text2, start2, end2,
+                               text1, end1 - length, end1);
       if (found == -1) {
         return best;
       }
+      found -= start2;
       length += found;
-      if (found == 0 || text1.substring(text_length - length).equals(
-          text2.substring(0, length))) {
+      if (found == 0 || diff_rangeEquals(text1, end1 - length, end1,
+                                         text2, start2, start2 + length)) {
         best = length;
         length++;
       }
@@ -673,23 +1389,54 @@ public class diff_match_patch {
    *     common middle.  Or null if there was no match.
    */
   protected String[] diff_halfMatch(String text1, String text2) {
+    int[] hm = diff_halfMatch(diff_codes(text1), 0, text1.length(),
+                              diff_codes(text2), 0, text2.length());
+    if (hm == null) {
+      return null;
+    }
+    return new String[]{text1.substring(0, hm[0]),
+                        text1.substring(hm[0] + hm[2]),
+                        text2.substring(0, hm[1]),
+                        text2.substring(hm[1] + hm[2]),
+                        text1.substring(hm[0], hm[0] + hm[2])};
+  }
+
+  /**
+   * Do ranges of two texts share a substring which is at least half the
+   * length of the longer range?
+   * This speedup can produce non-minimal diffs.
+   * @return Three element array, containing the start of the common middle
+   *     in text1, its start in text2 and its length.  Or null if there was
+   *     no match.
+   */
+  private int[] diff_halfMatch(int[] text1, int start1, int end1,
+                               int[] text2, int start2, int end2) {
     if (Diff_Timeout <= 0) {
       // Don't risk returning a non-optimal diff if we have unlimited time.
       return null;
     }
-    String longtext = text1.length() > text2.length() ? text1 : text2;
-    String shorttext = text1.length() > text2.length() ? text2 : text1;
-    if (longtext.length() < 4 || shorttext.length() * 2 < longtext.length()) {
+    boolean text1_longer = end1 - start1 > end2 - start2;
+    int[] longtext = text1_longer ? text1 : text2;
+    int longstart = text1_longer ? start1 : start2;
+    int longend = text1_longer ? end1 : end2;
+    int[] shorttext = text1_longer ? text2 : text1;
+    int shortstart = text1_longer ? start2 : start1;
+    int shortend = text1_longer ? end2 : end1;
+    int longtext_length = longend - longstart;
+    if (longtext_length < 4
+        || (shortend - shortstart) * 2 < longtext_length) {
       return null;  // Pointless.
     }
 
     // First check if the second quarter is the seed for a half-match.
-    String[] hm1 = diff_halfMatchI(longtext, shorttext,
-                                   (longtext.length() + 3) / 4);
+    int[] hm1 = diff_halfMatchI(longtext, longstart, longend,
+                                shorttext, shortstart, shortend,
+                                longstart + (longtext_length + 3) / 4);
     // Check again based on the third quarter.
-    String[] hm2 = diff_halfMatchI(longtext, shorttext,
-                                   (longtext.length() + 1) / 2);
-    String[] hm;
+    int[] hm2 = diff_halfMatchI(longtext, longstart, longend,
+                                shorttext, shortstart, shortend,
+                                longstart + (longtext_length + 1) / 2);
+    int[] hm;
     if (hm1 == null && hm2 == null) {
       return null;
     } else if (hm2 == null) {
@@ -698,52 +1445,54 @@ public class diff_match_patch {
       hm = hm2;
     } else {
       // Both matched.  Select the longest.
-      hm = hm1[4].length() > hm2[4].length() ? hm1 : hm2;
+      hm = hm1[2] > hm2[2] ? hm1 : hm2;
     }
 
     // A half-match was found, sort out the return data.
-    if (text1.length() > text2.length()) {
+    if (text1_longer) {
       return hm;
-      //return new String[]{hm[0], hm[1], hm[2], hm[3], hm[4]};
     } else {
-      return new String[]{hm[2], hm[3], hm[0], hm[1], hm[4]};
+      return new int[]{hm[1], hm[0], hm[2]};
     }
   }
 
   /**
    * Does a substring of shorttext exist within longtext such that the
    * substring is at least half the length of longtext?
-   * @param longtext Longer string.
-   * @param shorttext Shorter string.
+   * @param longtext Array holding the longer range.
+   * @param longstart Start of the longer range.
+   * @param longend End of the longer range.
+   * @param shorttext Array holding the shorter range.
+   * @param shortstart Start of the shorter range.
+   * @param shortend End of the shorter range.
    * @param i Start index of quarter length substring within longtext.
-   * @return Five element String array, containing the prefix of longtext, the
-   *     suffix of longtext, the prefix of shorttext, the suffix of shorttext
-   *     and the common middle.  Or null if there was no match.
+   * @return Three element array, containing the start of the common middle
+   *     in longtext, its start in shorttext and its length.  Or null if there
+   *     was no match.
    */
-  private String[] diff_halfMatchI(String longtext, String shorttext, int i) {
+  private int[] diff_halfMatchI(int[] longtext, int longstart, int longend,
+                                int[] shorttext, int shortstart,
+                                int shortend, int i) {
     // Start with a 1/4 length substring at position i as a seed.
-    String seed = longtext.substring(i, i + longtext.length() / 4);
-    int j = -1;
-    String best_common = "";
-    String best_longtext_a = "", best_longtext_b = "";
-    String best_shorttext_a = "", best_shorttext_b = "";
-    while ((j = shorttext.indexOf(seed, j + 1)) != -1) {
-      int prefixLength = diff_commonPrefix(longtext.substring(i),
-                                           shorttext.substring(j));
-      int suffixLength = diff_commonSuffix(longtext.substring(0, i),
-                                           shorttext.substring(0, j));
-      if (best_common.length() < suffixLength + prefixLength) {
-        best_common = shorttext.substring(j - suffixLength, j)
-            + shorttext.substring(j, j + prefixLength);
-        best_longtext_a = longtext.substring(0, i - suffixLength);
-        best_longtext_b = longtext.substring(i + prefixLength);
-        best_shorttext_a = shorttext.substring(0, j - suffixLength);
-        best_shorttext_b = shorttext.substring(j + prefixLength);
-      }
-    }
-    if (best_common.length() * 2 >= longtext.length()) {
-      return new String[]{best_longtext_a, best_longtext_b,
-                          best_shorttext_a, best_shorttext_b, best_common};
+    int seedend = i + (longend - longstart) / 4;
+    int j = shortstart - 1;
+    int best_common = 0;
+    int best_longstart = 0;
+    int best_shortstart = 0;
+    while ((j = diff_indexOf(shorttext, j + 1, shortend,
+                             longtext, i, seedend)) != -1) {
+      int prefixLength = diff_commonPrefix(longtext, i, longend,
+                                           shorttext, j, shortend);
+      int suffixLength = diff_commonSuffix(longtext, longstart, i,
+                                           shorttext, shortstart, j);
+      if (best_common < suffixLength + prefixLength) {
+        best_common = suffixLength + prefixLength;
+        best_longstart = i - suffixLength;
+        best_shortstart = j - suffixLength;
+      }
+    }
+    if (best_common * 2 >= longend - longstart) {
+      return new int[]{best_longstart, best_shortstart, best_common};
     } else {
       return null;
     }
@@ -757,85 +1506,111 @@ public class diff_match_patch {
     if (diffs.isEmpty()) {
       return;
     }
+    DiffArena arena = DIFF_ARENA.get();
+    DiffBuffer buffer = arena.acquire(diff_text1(diffs), diff_text2(diffs));
+    try {
+      buffer.load(diffs);
+      diff_cleanupSemantic(buffer, 0, 0, 0);
+      buffer.store(diffs);
+    } finally {
+      arena.release();
+    }
+  }
+
+  /**
+   * Reduce the number of edits by eliminating semantically trivial equalities,
+   * in a diff buffer.
+   * Equalities are split by marking them, and the marked equalities are
+   * replaced by a deletion and an insertion in a single sweep afterwards; a
+   * marked equality is treated as the deletion followed by the insertion
+   * until then.  Diffs are addressed by virtual position: twice the index of
+   * the diff, plus one for the insertion of a marked equality.
+   * @param diffs Diff buffer.
+   * @param from Index of the first diff to clean up.
+   * @param start1 Position in text1 of the first diff's text.
+   * @param start2 Position in text2 of the first diff's text.
+   */
+  private void diff_cleanupSemantic(DiffBuffer diffs, int from, int start1,
+                                    int start2) {
+    if (diffs.count == from) {
+      return;
+    }
+    Operation[] operations = diffs.operations;
+    int[] lengths = diffs.lengths;
+    boolean[] splits = diffs.clearSplits();
+    int[] equalities = diffs.stack(diffs.count);  // Stack of equalities.
+    int equalities_size = 0;
+    int lastequality = -1;  // Always equal to equalities[equalities_size - 1]
     boolean changes = false;
-    Stack<Diff> equalities = new Stack<Diff>();  // Stack of qualities.
-    String lastequality = null; // Always equal to equalities.lastElement().text
-    ListIterator<Diff> pointer = diffs.listIterator();
     // Number of characters that changed prior to the equality.
     int length_insertions1 = 0;
     int length_deletions1 = 0;
     // Number of characters that changed after the equality.
     int length_insertions2 = 0;
     int length_deletions2 = 0;
-    Diff thisDiff = pointer.next();
-    while (thisDiff != null) {
-      if (thisDiff.operation == Operation.EQUAL) {
+    int pointer = 2 * from;
+    int end = 2 * diffs.count;
+    while (pointer < end) {
+      int thisDiff = pointer >> 1;
+      Operation operation = diff_splitOperation(operations, splits, pointer);
+      if (operation == Operation.EQUAL) {
         // Equality found.
-        equalities.push(thisDiff);
+        if (equalities_size == equalities.length) {
+          equalities = diffs.stack(2 * equalities_size);
+        }
+        equalities[equalities_size++] = thisDiff;
         length_insertions1 = length_insertions2;
         length_deletions1 = length_deletions2;
         length_insertions2 = 0;
         length_deletions2 = 0;
-        lastequality = thisDiff.text;
+        lastequality = thisDiff;
       } else {
         // An insertion or deletion.
-        if (thisDiff.operation == Operation.INSERT) {
-          length_insertions2 += thisDiff.text.length();
+        if (operation == Operation.INSERT) {
+          length_insertions2 += lengths[thisDiff];
         } else {
-          length_deletions2 += thisDiff.text.length();
+          length_deletions2 += lengths[thisDiff];
         }
         // Eliminate an equality that is smaller or equal to the edits on both
         // sides of it.
-        if (lastequality != null && (lastequality.length()
+        if (lastequality != -1 && (lengths[lastequality]
             <= Math.max(length_insertions1, length_deletions1))
-            && (lastequality.length()
+            && (lengths[lastequality]
                 <= Math.max(length_insertions2, length_deletions2))) {
-          //System.out.println("Splitting: '" + lastequality + "'");
-          // Walk back to offending equality.
-          while (thisDiff != equalities.lastElement()) {
-            thisDiff = pointer.previous();
-          }
-          pointer.next();
-
-          // Replace equality with a delete.
-          pointer.set(new Diff(Operation.DELETE, lastequality));
-          // Insert a corresponding an insert.
-          pointer.add(new Diff(Operation.INSERT, lastequality));
+          // Replace equality with a delete and an insert.
+          splits[lastequality] = true;
 
-          equalities.pop();  // Throw away the equality we just deleted.
-          if (!equalities.empty()) {
+          equalities_size--;  // Throw away the equality we just deleted.
+          if (equalities_size != 0) {
             // Throw away the previous equality (it needs to be reevaluated).
-            equalities.pop();
+            equalities_size--;
           }
-          if (equalities.empty()) {
+          if (equalities_size == 0) {
             // There are no previous equalities, walk back to the start.
-            while (pointer.hasPrevious()) {
-              pointer.previous();
-            }
+            pointer = 2 * from;
           } else {
             // There is a safe equality we can fall back to.
-            thisDiff = equalities.lastElement();
-            while (thisDiff != pointer.previous()) {
-              // Intentionally empty loop.
-            }
+            pointer = 2 * equalities[equalities_size - 1];
           }
 
           length_insertions1 = 0;  // Reset the counters.
           length_insertions2 = 0;
           length_deletions1 = 0;
           length_deletions2 = 0;
-          lastequality = null;
+          lastequality = -1;
           changes = true;
+          continue;
         }
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
+      pointer = diff_nextPosition(splits, pointer);
     }
 
     // Normalize the diff.
     if (changes) {
-      diff_cleanupMerge(diffs);
+      diffs.expandSplits(from);
+      diff_cleanupMerge(diffs, from, start1, start2);
     }
-    diff_cleanupSemanticLossless(diffs);
+    diff_cleanupSemanticLossless(diffs, from, start1, start2);
 
     // Find any overlaps between deletions and insertions.
     // e.g: <del>abcxxx</del><ins>xxxdef</ins>
@@ -843,59 +1618,84 @@ public class diff_match_patch {
     // e.g: <del>xxxabc</del><ins>defxxx</ins>
     //   -> <ins>def</ins>xxx<del>abc</del>
     // Only extract an overlap if it is as big as the edit ahead or behind it.
-    pointer = diffs.listIterator();
-    Diff prevDiff = null;
-    thisDiff = null;
-    if (pointer.hasNext()) {
-      prevDiff = pointer.next();
-      if (pointer.hasNext()) {
-        thisDiff = pointer.next();
-      }
-    }
-    while (thisDiff != null) {
-      if (prevDiff.operation == Operation.DELETE &&
-          thisDiff.operation == Operation.INSERT) {
-        String deletion = prevDiff.text;
-        String insertion = thisDiff.text;
-        int overlap_length1 = this.diff_commonOverlap(deletion, insertion);
-        int overlap_length2 = this.diff_commonOverlap(insertion, deletion);
-        if (overlap_length1 >= overlap_length2) {
-          if (overlap_length1 >= deletion.length() / 2.0 ||
-              overlap_length1 >= insertion.length() / 2.0) {
-            // Overlap found. Insert an equality and trim the surrounding edits.
-            pointer.previous();
-            pointer.add(new Diff(Operation.EQUAL,
-                                 insertion.substring(0, overlap_length1)));
-            prevDiff.text =
-                deletion.substring(0, deletion.length() - overlap_length1);
-            thisDiff.text = insertion.substring(overlap_length1);
-            // pointer.add inserts the element before the cursor, so there is
-            // no need to step past the new element.
-          }
+    int[] text1 = diffs.text1;
+    int[] text2 = diffs.text2;
+    // Each insertion is compared with the diff before it in the rewritten
+    // diffs, which may be the trimmed deletion of a reversed overlap.
+    int count = diffs.beginRewrite(from);
+    operations = diffs.rewriteOperations;
+    lengths = diffs.rewriteLengths;
+    // Positions in text1 and text2 after the rewritten diffs.
+    int pointer1 = start1;
+    int pointer2 = start2;
+    for (int i = 0; i < count; i++) {
+      Operation operation = operations[i];
+      int length = lengths[i];
+      if (operation == Operation.INSERT && diffs.count > from
+          && diffs.operations[diffs.count - 1] == Operation.DELETE) {
+        int deletion_length = diffs.lengths[--diffs.count];
+        int deletion = pointer1 - deletion_length;
+        int insertion_length = length;
+        int overlap_length1 = diff_commonOverlap(
+            text1, deletion, pointer1,
+            text2, pointer2, pointer2 + insertion_length);
+        int overlap_length2 = diff_commonOverlap(
+            text2, pointer2, pointer2 + insertion_length,
+            text1, deletion, pointer1);
+        if (overlap_length1 >= overlap_length2
+            && (overlap_length1 >= deletion_length / 2.0 ||
+                overlap_length1 >= insertion_length / 2.0)) {
+          // Overlap found. Insert an equality and trim the surrounding edits.
+          diffs.add(Operation.DELETE, deletion_length - overlap_length1);
+          diffs.add(Operation.EQUAL, overlap_length1);
+          diffs.add(Operation.INSERT, insertion_length - overlap_length1);
+        } else if (overlap_length1 < overlap_length2
+            && (overlap_length2 >= deletion_length / 2.0 ||
+                overlap_length2 >= insertion_length / 2.0)) {
+          // Reverse overlap found.
+          // Insert an equality and swap and trim the surrounding edits.
+          diffs.add(Operation.INSERT, insertion_length - overlap_length2);
+          diffs.add(Operation.EQUAL, overlap_length2);
+          diffs.add(Operation.DELETE, deletion_length - overlap_length2);
         } else {
-          if (overlap_length2 >= deletion.length() / 2.0 ||
-              overlap_length2 >= insertion.length() / 2.0) {
-            // Reverse overlap found.
-            // Insert an equality and swap and trim the surrounding edits.
-            pointer.previous();
-            pointer.add(new Diff(Operation.EQUAL,
-                                 deletion.substring(0, overlap_length2)));
-            prevDiff.operation = Operation.INSERT;
-            prevDiff.text =
-              insertion.substring(0, insertion.length() - overlap_length2);
-            thisDiff.operation = Operation.DELETE;
-            thisDiff.text = deletion.substring(overlap_length2);
-            // pointer.add inserts the element before the cursor, so there is
-            // no need to step past the new element.
-          }
+          diffs.add(Operation.DELETE, deletion_length);
+          diffs.add(Operation.INSERT, insertion_length);
+        }
+      } else {
+        diffs.add(operation, length);
+        if (operation != Operation.INSERT) {
+          pointer1 += length;
         }
-        thisDiff = pointer.hasNext() ? pointer.next() : null;
       }
-      prevDiff = thisDiff;
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
+      if (operation != Operation.DELETE) {
+        pointer2 += length;
+      }
     }
   }
 
+  /**
+   * Get the operation of the diff at a virtual position, in a cleanup pass
+   * which splits equalities by marking them.
+   */
+  private static Operation diff_splitOperation(Operation[] operations,
+      boolean[] splits, int pointer) {
+    if (splits[pointer >> 1]) {
+      return (pointer & 1) == 0 ? Operation.DELETE : Operation.INSERT;
+    }
+    return operations[pointer >> 1];
+  }
+
+  /**
+   * Get the virtual position of the diff after the one at a virtual
+   * position, in a cleanup pass which splits equalities by marking them.
+   */
+  private static int diff_nextPosition(boolean[] splits, int pointer) {
+    if (splits[pointer >> 1] && (pointer & 1) == 0) {
+      return pointer + 1;
+    }
+    return (pointer | 1) + 1;
+  }
+
   /**
    * Look for single edits surrounded on both sides by equalities
    * which can be shifted sideways to align the edit to a word boundary.
@@ -903,94 +1703,131 @@ public class diff_match_patch {
    * @param diffs LinkedList of Diff objects.
    */
   public void diff_cleanupSemanticLossless(LinkedList<Diff> diffs) {
-    String equality1, edit, equality2;
-    String commonString;
-    int commonOffset;
-    int score, bestScore;
-    String bestEquality1, bestEdit, bestEquality2;
-    // Create a new iterator at the start.
-    ListIterator<Diff> pointer = diffs.listIterator();
-    Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-    Diff thisDiff = pointer.hasNext() ? pointer.next() : null;
-    Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
+    DiffArena arena = DIFF_ARENA.get();
+    DiffBuffer buffer = arena.acquire(diff_text1(diffs), diff_text2(diffs));
+    try {
+      buffer.load(diffs);
+      diff_cleanupSemanticLossless(buffer, 0, 0, 0);
+      buffer.store(diffs);
+    } finally {
+      arena.release();
+    }
+  }
+
+  /**
+   * Look for single edits surrounded on both sides by equalities in a diff
+   * buffer, which can be shifted sideways to align the edit to a word
+   * boundary.
+   * The two equalities and the edit lie next to each other in the edit's
+   * text, so shifting the edit only moves the boundaries between them.
+   * Removed equalities are marked with a length of -1, and compacted after
+   * the pass.
+   * @param diffs Diff buffer.
+   * @param from Index of the first diff to clean up.
+   * @param start1 Position in text1 of the first diff's text.
+   * @param start2 Position in text2 of the first diff's text.
+   */
+  private void diff_cleanupSemanticLossless(DiffBuffer diffs, int from,
+                                            int start1, int start2) {
+    Operation[] operations = diffs.operations;
+    int[] lengths = diffs.lengths;
+    int count = diffs.count;
+    boolean changes = false;
+    // Positions of the previous diff's text in text1 and text2.
+    int pointer1 = start1;
+    int pointer2 = start2;
+    int prevDiff = from;
+    int thisDiff = from + 1;
+    int nextDiff = from + 2;
     // Intentionally ignore the first and last element (don't need checking).
-    while (nextDiff != null) {
-      if (prevDiff.operation == Operation.EQUAL &&
-          nextDiff.operation == Operation.EQUAL) {
+    while (nextDiff < count) {
+      if (operations[prevDiff] == Operation.EQUAL &&
+          operations[nextDiff] == Operation.EQUAL) {
         // This is a single edit surrounded by equalities.
-        equality1 = prevDiff.text;
-        edit = thisDiff.text;
-        equality2 = nextDiff.text;
+        int[] text;
+        int equality1;
+        if (operations[thisDiff] == Operation.INSERT) {
+          text = diffs.text2;
+          equality1 = pointer2;
+        } else {
+          text = diffs.text1;
+          equality1 = pointer1;
+        }
+        int edit = equality1 + lengths[prevDiff];
+        int equality2 = edit + lengths[thisDiff];
+        int end = equality2 + lengths[nextDiff];
 
         // First, shift the edit as far left as possible.
-        commonOffset = diff_commonSuffix(equality1, edit);
-        if (commonOffset != 0) {
-          commonString = edit.substring(edit.length() - commonOffset);
-          equality1 = equality1.substring(0, equality1.length() - commonOffset);
-          edit = commonString + edit.substring(0, edit.length() - commonOffset);
-          equality2 = commonString + equality2;
-        }
+        int commonOffset = diff_commonSuffix(text, equality1, edit,
+                                             text, edit, equality2);
+        edit -= commonOffset;
+        equality2 -= commonOffset;
 
         // Second, step character by character right, looking for the best fit.
-        bestEquality1 = equality1;
-        bestEdit = edit;
-        bestEquality2 = equality2;
-        bestScore = diff_cleanupSemanticScore(equality1, edit)
-            + diff_cleanupSemanticScore(edit, equality2);
-        while (edit.length() != 0 && equality2.length() != 0
-            && edit.charAt(0) == equality2.charAt(0)) {
-          equality1 += edit.charAt(0);
-          edit = edit.substring(1) + equality2.charAt(0);
-          equality2 = equality2.substring(1);
-          score = diff_cleanupSemanticScore(equality1, edit)
-              + diff_cleanupSemanticScore(edit, equality2);
+        int bestEdit = edit;
+        int bestEquality2 = equality2;
+        int bestScore = diff_cleanupSemanticScore(text, equality1, edit,
+                                                  equality2)
+            + diff_cleanupSemanticScore(text, edit, equality2, end);
+        while (edit != equality2 && equality2 != end
+            && text[edit] == text[equality2]) {
+          edit++;
+          equality2++;
+          int score = diff_cleanupSemanticScore(text, equality1, edit,
+                                                equality2)
+              + diff_cleanupSemanticScore(text, edit, equality2, end);
           // The >= encourages trailing rather than leading whitespace on edits.
           if (score >= bestScore) {
             bestScore = score;
-            bestEquality1 = equality1;
             bestEdit = edit;
             bestEquality2 = equality2;
           }
         }
 
-        if (!prevDiff.text.equals(bestEquality1)) {
+        if (bestEdit - equality1 != lengths[prevDiff]) {
           // We have an improvement, save it back to the diff.
-          if (bestEquality1.length() != 0) {
-            prevDiff.text = bestEquality1;
-          } else {
-            pointer.previous(); // Walk past nextDiff.
-            pointer.previous(); // Walk past thisDiff.
-            pointer.previous(); // Walk past prevDiff.
-            pointer.remove(); // Delete prevDiff.
-            pointer.next(); // Walk past thisDiff.
-            pointer.next(); // Walk past nextDiff.
-          }
-          thisDiff.text = bestEdit;
-          if (bestEquality2.length() != 0) {
-            nextDiff.text = bestEquality2;
+          changes = true;
+          lengths[prevDiff] = bestEdit != equality1 ? bestEdit - equality1 : -1;
+          if (bestEquality2 != end) {
+            lengths[nextDiff] = end - bestEquality2;
           } else {
-            pointer.remove(); // Delete nextDiff.
-            nextDiff = thisDiff;
-            thisDiff = prevDiff;
+            lengths[nextDiff] = -1;
+            // Carry on with the same equality and edit.
+            nextDiff++;
+            continue;
           }
         }
       }
+      if (lengths[prevDiff] != -1) {
+        if (operations[prevDiff] != Operation.INSERT) {
+          pointer1 += lengths[prevDiff];
+        }
+        if (operations[prevDiff] != Operation.DELETE) {
+          pointer2 += lengths[prevDiff];
+        }
+      }
       prevDiff = thisDiff;
       thisDiff = nextDiff;
-      nextDiff = pointer.hasNext() ? pointer.next() : null;
+      nextDiff++;
+    }
+    if (changes) {
+      diffs.compact(from);
     }
   }
 
   /**
-   * Given two strings, compute a score representing whether the internal
-   * boundary falls on logical boundaries.
+   * Given a range of text split in two, compute and return a score
+   * representing whether the split falls on logical boundaries.
    * Scores range from 6 (best) to 0 (worst).
-   * @param one First string.
-   * @param two Second string.
+   * @param text Array of character codes.
+   * @param start Start of the first part.
+   * @param boundary End of the first part, and start of the second part.
+   * @param end End of the second part.
    * @return The score.
    */
-  private int diff_cleanupSemanticScore(String one, String two) {
-    if (one.length() == 0 || two.length() == 0) {
+  private int diff_cleanupSemanticScore(int[] text, int start, int boundary,
+                                        int end) {
+    if (boundary == start || boundary == end) {
       // Edges are the best.
       return 6;
     }
@@ -1000,8 +1837,8 @@ public class diff_match_patch {
     // 'whitespace'.  Since this function's purpose is largely cosmetic,
     // the choice has been made to use each language's native features
     // rather than force total conformity.
-    char char1 = one.charAt(one.length() - 1);
-    char char2 = two.charAt(0);
+    char char1 = (char) text[boundary - 1];
+    char char2 = (char) text[boundary];
     boolean nonAlphaNumeric1 = !Character.isLetterOrDigit(char1);
     boolean nonAlphaNumeric2 = !Character.isLetterOrDigit(char2);
     boolean whitespace1 = nonAlphaNumeric1 && Character.isWhitespace(char1);
@@ -1010,8 +1847,13 @@ public class diff_match_patch {
         && Character.getType(char1) == Character.CONTROL;
     boolean lineBreak2 = whitespace2
         && Character.getType(char2) == Character.CONTROL;
-    boolean blankLine1 = lineBreak1 && BLANKLINEEND.matcher(one).find();
-    boolean blankLine2 = lineBreak2 && BLANKLINESTART.matcher(two).find();
+    // A blank line match needs at most the last five characters of the first
+    // part (including a final line terminator), or the first four of the
+    // second.
+    boolean blankLine1 = lineBreak1 && BLANKLINEEND.matcher(
+        diff_string(text, Math.max(start, boundary - 5), boundary)).find();
+    boolean blankLine2 = lineBreak2 && BLANKLINESTART.matcher(
+        diff_string(text, boundary, Math.min(end, boundary + 4))).find();
 
     if (blankLine1 || blankLine2) {
       // Five points for blank lines.
@@ -1032,10 +1874,21 @@ public class diff_match_patch {
     return 0;
   }
 
+  /**
+   * Convert a range of character codes to a string.
+   */
+  private static String diff_string(int[] text, int start, int end) {
+    StringBuilder string = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      string.append((char) text[i]);
+    }
+    return string.toString();
+  }
+
   // Define some regex patterns for matching boundaries.
-  private Pattern BLANKLINEEND
+  private static final Pattern BLANKLINEEND
       = Pattern.compile("\\n\\r?\\n\\Z", Pattern.DOTALL);
-  private Pattern BLANKLINESTART
+  private static final Pattern BLANKLINESTART
       = Pattern.compile("\\A\\r?\\n\\r?\\n", Pattern.DOTALL);
 
   /**
@@ -1046,10 +1899,38 @@ public class diff_match_patch {
     if (diffs.isEmpty()) {
       return;
     }
+    DiffArena arena = DIFF_ARENA.get();
+    DiffBuffer buffer = arena.acquire(diff_text1(diffs), diff_text2(diffs));
+    try {
+      buffer.load(diffs);
+      diff_cleanupEfficiency(buffer, 0, 0, 0);
+      buffer.store(diffs);
+    } finally {
+      arena.release();
+    }
+  }
+
+  /**
+   * Reduce the number of edits by eliminating operationally trivial
+   * equalities, in a diff buffer.
+   * Equalities are split by marking them, as in diff_cleanupSemantic().
+   * @param diffs Diff buffer.
+   * @param from Index of the first diff to clean up.
+   * @param start1 Position in text1 of the first diff's text.
+   * @param start2 Position in text2 of the first diff's text.
+   */
+  private void diff_cleanupEfficiency(DiffBuffer diffs, int from, int start1,
+                                      int start2) {
+    if (diffs.count == from) {
+      return;
+    }
+    Operation[] operations = diffs.operations;
+    int[] lengths = diffs.lengths;
+    boolean[] splits = diffs.clearSplits();
+    int[] equalities = diffs.stack(diffs.count);  // Stack of equalities.
+    int equalities_size = 0;
+    int lastequality = -1;  // Always equal to equalities[equalities_size - 1]
     boolean changes = false;
-    Stack<Diff> equalities = new Stack<Diff>();  // Stack of equalities.
-    String lastequality = null; // Always equal to equalities.lastElement().text
-    ListIterator<Diff> pointer = diffs.listIterator();
     // Is there an insertion operation before the last equality.
     boolean pre_ins = false;
     // Is there a deletion operation before the last equality.
@@ -1058,27 +1939,33 @@ public class diff_match_patch {
     boolean post_ins = false;
     // Is there a deletion operation after the last equality.
     boolean post_del = false;
-    Diff thisDiff = pointer.next();
-    Diff safeDiff = thisDiff;  // The last Diff that is known to be unsplitable.
-    while (thisDiff != null) {
-      if (thisDiff.operation == Operation.EQUAL) {
+    int pointer = 2 * from;
+    int safeDiff = pointer;  // The last diff that is known to be unsplitable.
+    int end = 2 * diffs.count;
+    while (pointer < end) {
+      int thisDiff = pointer >> 1;
+      Operation operation = diff_splitOperation(operations, splits, pointer);
+      if (operation == Operation.EQUAL) {
         // Equality found.
-        if (thisDiff.text.length() < Diff_EditCost && (post_ins || post_del)) {
+        if (lengths[thisDiff] < Diff_EditCost && (post_ins || post_del)) {
           // Candidate found.
-          equalities.push(thisDiff);
+          if (equalities_size == equalities.length) {
+            equalities = diffs.stack(2 * equalities_size);
+          }
+          equalities[equalities_size++] = thisDiff;
           pre_ins = post_ins;
           pre_del = post_del;
-          lastequality = thisDiff.text;
+          lastequality = thisDiff;
         } else {
           // Not a candidate, and can never become one.
-          equalities.clear();
-          lastequality = null;
-          safeDiff = thisDiff;
+          equalities_size = 0;
+          lastequality = -1;
+          safeDiff = pointer;
         }
         post_ins = post_del = false;
       } else {
         // An insertion or deletion.
-        if (thisDiff.operation == Operation.DELETE) {
+        if (operation == Operation.DELETE) {
           post_del = true;
         } else {
           post_ins = true;
@@ -1091,208 +1978,258 @@ public class diff_match_patch {
          * <ins>A</del>X<ins>C</ins><del>D</del>
          * <ins>A</ins><del>B</del>X<del>C</del>
          */
-        if (lastequality != null
+        if (lastequality != -1
             && ((pre_ins && pre_del && post_ins && post_del)
-                || ((lastequality.length() < Diff_EditCost / 2)
+                || ((lengths[lastequality] < Diff_EditCost / 2)
                     && ((pre_ins ? 1 : 0) + (pre_del ? 1 : 0)
                         + (post_ins ? 1 : 0) + (post_del ? 1 : 0)) == 3))) {
-          //System.out.println("Splitting: '" + lastequality + "'");
-          // Walk back to offending equality.
-          while (thisDiff != equalities.lastElement()) {
-            thisDiff = pointer.previous();
-          }
-          pointer.next();
-
-          // Replace equality with a delete.
-          pointer.set(new Diff(Operation.DELETE, lastequality));
-          // Insert a corresponding an insert.
-          pointer.add(thisDiff = new Diff(Operation.INSERT, lastequality));
+          // Replace equality with a delete and an insert.
+          splits[lastequality] = true;
 
-          equalities.pop();  // Throw away the equality we just deleted.
-          lastequality = null;
+          equalities_size--;  // Throw away the equality we just deleted.
           if (pre_ins && pre_del) {
-            // No changes made which could affect previous entry, keep going.
+            // No changes made which could affect previous entry, keep going
+            // from the diff after the equality.
             post_ins = post_del = true;
-            equalities.clear();
-            safeDiff = thisDiff;
+            equalities_size = 0;
+            safeDiff = 2 * lastequality + 1;
+            pointer = 2 * lastequality + 2;
           } else {
-            if (!equalities.empty()) {
+            if (equalities_size != 0) {
               // Throw away the previous equality (it needs to be reevaluated).
-              equalities.pop();
+              equalities_size--;
             }
-            if (equalities.empty()) {
+            if (equalities_size == 0) {
               // There are no previous questionable equalities,
               // walk back to the last known safe diff.
-              thisDiff = safeDiff;
+              pointer = safeDiff;
             } else {
               // There is an equality we can fall back to.
-              thisDiff = equalities.lastElement();
-            }
-            while (thisDiff != pointer.previous()) {
-              // Intentionally empty loop.
+              pointer = 2 * equalities[equalities_size - 1];
             }
             post_ins = post_del = false;
           }
+          lastequality = -1;
 
           changes = true;
+          continue;
         }
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
+      pointer = diff_nextPosition(splits, pointer);
     }
 
     if (changes) {
-      diff_cleanupMerge(diffs);
+      diffs.expandSplits(from);
+      diff_cleanupMerge(diffs, from, start1, start2);
+    }
+  }
+
+  /**
+   * Reorder and merge like edit sections.  Merge equalities.
+   * Any edit section can move as long as it doesn't cross an equality.
+   * @param diffs LinkedList of Diff objects.
+   */
+  public void diff_cleanupMerge(LinkedList<Diff> diffs) {
+    DiffArena arena = DIFF_ARENA.get();
+    DiffBuffer buffer = arena.acquire(diff_text1(diffs), diff_text2(diffs));
+    try {
+      buffer.load(diffs);
+      diff_cleanupMerge(buffer, 0, 0, 0);
+      buffer.store(diffs);
+    } finally {
+      arena.release();
     }
   }
 
   /**
-   * Reorder and merge like edit sections.  Merge equalities.
+   * Reorder and merge like edit sections in a diff buffer.  Merge equalities.
    * Any edit section can move as long as it doesn't cross an equality.
-   * @param diffs LinkedList of Diff objects.
+   * @param diffs Diff buffer.
+   * @param from Index of the first diff to clean up.
+   * @param start1 Position in text1 of the first diff's text.
+   * @param start2 Position in text2 of the first diff's text.
    */
-  public void diff_cleanupMerge(LinkedList<Diff> diffs) {
-    diffs.add(new Diff(Operation.EQUAL, ""));  // Add a dummy entry at the end.
-    ListIterator<Diff> pointer = diffs.listIterator();
-    int count_delete = 0;
-    int count_insert = 0;
-    String text_delete = "";
-    String text_insert = "";
-    Diff thisDiff = pointer.next();
-    Diff prevEqual = null;
-    int commonlength;
-    while (thisDiff != null) {
-      switch (thisDiff.operation) {
-      case INSERT:
-        count_insert++;
-        text_insert += thisDiff.text;
-        prevEqual = null;
-        break;
-      case DELETE:
-        count_delete++;
-        text_delete += thisDiff.text;
-        prevEqual = null;
-        break;
-      case EQUAL:
+  private void diff_cleanupMerge(DiffBuffer diffs, int from, int start1,
+                                 int start2) {
+    int[] text1 = diffs.text1;
+    int[] text2 = diffs.text2;
+    boolean changes;
+    do {
+      // First pass: merge runs of edits and equalities, rewriting the diffs
+      // from a copy.
+      int count = diffs.beginRewrite(from);
+      Operation[] operations = diffs.rewriteOperations;
+      int[] lengths = diffs.rewriteLengths;
+      // Positions of the current diff's text in text1 and text2.
+      int pointer1 = start1;
+      int pointer2 = start2;
+      // Positions of the current run of edits.
+      int edit1 = start1;
+      int edit2 = start2;
+      int count_delete = 0;
+      int count_insert = 0;
+      int length_delete = 0;
+      int length_insert = 0;
+      int prevEqual = -1;
+      // Finish with a dummy equality.
+      for (int i = 0; i <= count; i++) {
+        Operation operation = i < count ? operations[i] : Operation.EQUAL;
+        int length = i < count ? lengths[i] : 0;
+        if (operation != Operation.EQUAL) {
+          if (count_delete + count_insert == 0) {
+            edit1 = pointer1;
+            edit2 = pointer2;
+          }
+          if (operation == Operation.INSERT) {
+            count_insert++;
+            length_insert += length;
+            pointer2 += length;
+          } else {
+            count_delete++;
+            length_delete += length;
+            pointer1 += length;
+          }
+          diffs.add(operation, length);
+          prevEqual = -1;
+          continue;
+        }
+        int equality_length = length;
         if (count_delete + count_insert > 1) {
           boolean both_types = count_delete != 0 && count_insert != 0;
           // Delete the offending records.
-          pointer.previous();  // Reverse direction.
-          while (count_delete-- > 0) {
-            pointer.previous();
-            pointer.remove();
-          }
-          while (count_insert-- > 0) {
-            pointer.previous();
-            pointer.remove();
-          }
+          diffs.count -= count_delete + count_insert;
           if (both_types) {
             // Factor out any common prefixies.
-            commonlength = diff_commonPrefix(text_insert, text_delete);
+            int commonlength = diff_commonPrefix(
+                text2, edit2, edit2 + length_insert,
+                text1, edit1, edit1 + length_delete);
             if (commonlength != 0) {
-              if (pointer.hasPrevious()) {
-                thisDiff = pointer.previous();
-                assert thisDiff.operation == Operation.EQUAL
+              if (diffs.count > from) {
+                assert diffs.operations[diffs.count - 1] == Operation.EQUAL
                        : "Previous diff should have been an equality.";
-                thisDiff.text += text_insert.substring(0, commonlength);
-                pointer.next();
+                diffs.lengths[diffs.count - 1] += commonlength;
               } else {
-                pointer.add(new Diff(Operation.EQUAL,
-                    text_insert.substring(0, commonlength)));
+                diffs.add(Operation.EQUAL, commonlength);
               }
-              text_insert = text_insert.substring(commonlength);
-              text_delete = text_delete.substring(commonlength);
+              edit1 += commonlength;
+              edit2 += commonlength;
+              length_insert -= commonlength;
+              length_delete -= commonlength;
             }
             // Factor out any common suffixies.
-            commonlength = diff_commonSuffix(text_insert, text_delete);
+            commonlength = diff_commonSuffix(
+                text2, edit2, edit2 + length_insert,
+                text1, edit1, edit1 + length_delete);
             if (commonlength != 0) {
-              thisDiff = pointer.next();
-              thisDiff.text = text_insert.substring(text_insert.length()
-                  - commonlength) + thisDiff.text;
-              text_insert = text_insert.substring(0, text_insert.length()
-                  - commonlength);
-              text_delete = text_delete.substring(0, text_delete.length()
-                  - commonlength);
-              pointer.previous();
+              length += commonlength;
+              length_insert -= commonlength;
+              length_delete -= commonlength;
             }
           }
           // Insert the merged records.
-          if (text_delete.length() != 0) {
-            pointer.add(new Diff(Operation.DELETE, text_delete));
+          if (length_delete != 0) {
+            diffs.add(Operation.DELETE, length_delete);
           }
-          if (text_insert.length() != 0) {
-            pointer.add(new Diff(Operation.INSERT, text_insert));
+          if (length_insert != 0) {
+            diffs.add(Operation.INSERT, length_insert);
           }
-          // Step forward to the equality.
-          thisDiff = pointer.hasNext() ? pointer.next() : null;
-        } else if (prevEqual != null) {
+          diffs.add(Operation.EQUAL, length);
+          prevEqual = diffs.count - 1;
+        } else if (prevEqual != -1) {
           // Merge this equality with the previous one.
-          prevEqual.text += thisDiff.text;
-          pointer.remove();
-          thisDiff = pointer.previous();
-          pointer.next();  // Forward direction
+          diffs.lengths[prevEqual] += length;
+        } else {
+          diffs.add(Operation.EQUAL, length);
+          prevEqual = diffs.count - 1;
         }
+        pointer1 += equality_length;
+        pointer2 += equality_length;
         count_insert = 0;
         count_delete = 0;
-        text_delete = "";
-        text_insert = "";
-        prevEqual = thisDiff;
-        break;
+        length_delete = 0;
+        length_insert = 0;
+      }
+      if (diffs.count > from && diffs.lengths[diffs.count - 1] == 0) {
+        diffs.count--;  // Remove the dummy entry at the end.
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
-    }
-    if (diffs.getLast().text.length() == 0) {
-      diffs.removeLast();  // Remove the dummy entry at the end.
-    }
 
-    /*
-     * Second pass: look for single edits surrounded on both sides by equalities
-     * which can be shifted sideways to eliminate an equality.
-     * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
-     */
-    boolean changes = false;
-    // Create a new iterator at the start.
-    // (As opposed to walking the current one back.)
-    pointer = diffs.listIterator();
-    Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-    thisDiff = pointer.hasNext() ? pointer.next() : null;
-    Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
-    // Intentionally ignore the first and last element (don't need checking).
-    while (nextDiff != null) {
-      if (prevDiff.operation == Operation.EQUAL &&
-          nextDiff.operation == Operation.EQUAL) {
-        // This is a single edit surrounded by equalities.
-        if (thisDiff.text.endsWith(prevDiff.text)) {
-          // Shift the edit over the previous equality.
-          thisDiff.text = prevDiff.text
-              + thisDiff.text.substring(0, thisDiff.text.length()
-                                           - prevDiff.text.length());
-          nextDiff.text = prevDiff.text + nextDiff.text;
-          pointer.previous(); // Walk past nextDiff.
-          pointer.previous(); // Walk past thisDiff.
-          pointer.previous(); // Walk past prevDiff.
-          pointer.remove(); // Delete prevDiff.
-          pointer.next(); // Walk past thisDiff.
-          thisDiff = pointer.next(); // Walk past nextDiff.
-          nextDiff = pointer.hasNext() ? pointer.next() : null;
-          changes = true;
-        } else if (thisDiff.text.startsWith(nextDiff.text)) {
-          // Shift the edit over the next equality.
-          prevDiff.text += nextDiff.text;
-          thisDiff.text = thisDiff.text.substring(nextDiff.text.length())
-              + nextDiff.text;
-          pointer.remove(); // Delete nextDiff.
-          nextDiff = pointer.hasNext() ? pointer.next() : null;
-          changes = true;
+      /*
+       * Second pass: look for single edits surrounded on both sides by
+       * equalities which can be shifted sideways to eliminate an equality.
+       * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
+       * Removed diffs are marked with a length of -1, and compacted after
+       * the pass.
+       */
+      changes = false;
+      operations = diffs.operations;
+      lengths = diffs.lengths;
+      count = diffs.count;
+      // Positions of the previous diff's text in text1 and text2.
+      pointer1 = start1;
+      pointer2 = start2;
+      int prevDiff = from;
+      int thisDiff = from + 1;
+      int nextDiff = from + 2;
+      // Intentionally ignore the first and last element (don't need checking).
+      while (nextDiff < count) {
+        Operation operation = operations[thisDiff];
+        if (operations[prevDiff] == Operation.EQUAL
+            && operations[nextDiff] == Operation.EQUAL) {
+          // This is a single edit surrounded by equalities.
+          int prevLength = lengths[prevDiff];
+          int thisLength = lengths[thisDiff];
+          int nextLength = lengths[nextDiff];
+          int[] thisText = operation == Operation.INSERT ? text2 : text1;
+          int thisStart = (operation == Operation.INSERT ? pointer2 : pointer1)
+              + prevLength;
+          int nextStart = pointer1 + prevLength
+              + (operation == Operation.DELETE ? thisLength : 0);
+          if (thisLength >= prevLength && diff_rangeEquals(
+              thisText, thisStart + thisLength - prevLength,
+              thisStart + thisLength, text1, pointer1, pointer1 + prevLength)) {
+            // Shift the edit over the previous equality.
+            lengths[nextDiff] += prevLength;
+            lengths[prevDiff] = -1;
+            if (operation == Operation.INSERT) {
+              pointer2 += thisLength;
+            } else {
+              pointer1 += thisLength;
+            }
+            prevDiff = nextDiff;
+            thisDiff = nextDiff + 1;
+            nextDiff = nextDiff + 2;
+            changes = true;
+            continue;
+          } else if (thisLength >= nextLength && diff_rangeEquals(
+              thisText, thisStart, thisStart + nextLength,
+              text1, nextStart, nextStart + nextLength)) {
+            // Shift the edit over the next equality.
+            lengths[prevDiff] += nextLength;
+            lengths[nextDiff] = -1;
+            pointer1 += prevLength + nextLength;
+            pointer2 += prevLength + nextLength;
+            prevDiff = thisDiff;
+            thisDiff = nextDiff + 1;
+            nextDiff = nextDiff + 2;
+            changes = true;
+            continue;
+          }
+        }
+        Operation prevOperation = operations[prevDiff];
+        if (prevOperation != Operation.INSERT) {
+          pointer1 += lengths[prevDiff];
+        }
+        if (prevOperation != Operation.DELETE) {
+          pointer2 += lengths[prevDiff];
         }
+        prevDiff = thisDiff;
+        thisDiff = nextDiff;
+        nextDiff++;
       }
-      prevDiff = thisDiff;
-      thisDiff = nextDiff;
-      nextDiff = pointer.hasNext() ? pointer.next() : null;
-    }
-    // If shifts were made, the diff needs reordering and another shift sweep.
-    if (changes) {
-      diff_cleanupMerge(diffs);
-    }
+      if (changes) {
+        diffs.compact(from);
+      }
+    } while (changes);
   }
 
   /**
@@ -1537,6 +2474,246 @@ public class diff_match_patch {
     return diffs;
   }
 
+  /**
+   * Given the original text1, and an encoded string which describes the
+   * operations required to transform text1 into text2, compute text2.
+   * Equivalent to diff_text2(diff_fromDelta(text1, delta)), but streams the
+   * delta into the result without building the diffs.  The delta must have
+   * been made against exactly this text1; no fuzzy matching is attempted.
+   * @param text1 Source string for the diff.
+   * @param delta Delta text.
+   * @return The target text.
+   * @throws IllegalArgumentException If invalid input.
+   */
+  public String diff_applyDelta(String text1, String delta)
+      throws IllegalArgumentException {
+    StringBuilder text2 = new StringBuilder(text1.length());
+    int pointer = 0;  // Cursor in text1
+    int tokenStart = 0;
+    int length = delta.length();
+    while (tokenStart < length) {
+      int tokenEnd = delta.indexOf('\t', tokenStart);
+      if (tokenEnd == -1) {
+        tokenEnd = length;
+      }
+      if (tokenEnd == tokenStart) {
+        // Blank tokens are ok (from a trailing \t).
+        tokenStart++;
+        continue;
+      }
+      String param = delta.substring(tokenStart + 1, tokenEnd);
+      switch (delta.charAt(tokenStart)) {
+      case '+':
+        if (param.indexOf('%') == -1) {
+          // Nothing to decode; "+" is literal.
+          text2.append(param);
+          break;
+        }
+        // decode would change all "+" to " "
+        param = param.replace("+", "%2B");
+        try {
+          text2.append(URLDecoder.decode(param, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+          // Not likely on modern system.
+          throw new Error("This system does not support UTF-8.", e);
+        } catch (IllegalArgumentException e) {
+          // Malformed URI sequence.
+          throw new IllegalArgumentException(
+              "Illegal escape in diff_applyDelta: " + param, e);
+        }
+        break;
+      case '-':
+        // Fall through.
+      case '=':
+        int n;
+        try {
+          n = Integer.parseInt(param);
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(
+              "Invalid number in diff_applyDelta: " + param, e);
+        }
+        if (n < 0) {
+          throw new IllegalArgumentException(
+              "Negative number in diff_applyDelta: " + param);
+        }
+        if (n > text1.length() - pointer) {
+          throw new IllegalArgumentException("Delta length ("
+              + ((long) pointer + n) + ") larger than source text length ("
+              + text1.length() + ").");
+        }
+        if (delta.charAt(tokenStart) == '=') {
+          text2.append(text1, pointer, pointer + n);
+        }
+        pointer += n;
+        break;
+      default:
+        // Anything else is an error.
+        throw new IllegalArgumentException(
+            "Invalid diff operation in diff_applyDelta: "
+            + delta.charAt(tokenStart));
+      }
+      tokenStart = tokenEnd + 1;
+    }
+    if (pointer != text1.length()) {
+      throw new IllegalArgumentException("Delta length (" + pointer
+          + ") smaller than source text length (" + text1.length() + ").");
+    }
+    return text2.toString();
+  }
+
+  /**
+   * Given the UTF-8 encoding of the original text1, and an encoded string
+   * which describes the operations required to transform text1 into text2,
+   * compute the UTF-8 encoding of text2.  The delta has the format produced
+   * by diff_toDelta, except that lengths are counts of bytes rather than of
+   * chars, and inserted text is percent-encoded bytes; so it may be computed
+   * from a diff of the encoded texts, and needn't respect char boundaries.
+   * The texts are never decoded.  The delta must have been made against
+   * exactly this text1; no fuzzy matching is attempted.
+   * @param text1 UTF-8 encoded source text for the diff.
+   * @param delta Byte delta text.
+   * @return The UTF-8 encoded target text.
+   * @throws IllegalArgumentException If invalid input.
+   */
+  public byte[] diff_applyByteDelta(byte[] text1, String delta)
+      throws IllegalArgumentException {
+    // Validate and measure the result, then fill it in.
+    byte[] text2 = new byte[diff_applyByteDelta(text1, delta, null)];
+    diff_applyByteDelta(text1, delta, text2);
+    return text2;
+  }
+
+  /**
+   * Apply a byte delta.
+   * @param text1 UTF-8 encoded source text for the diff.
+   * @param delta Byte delta text.
+   * @param text2 Array to write the target text to, or null to only
+   *     validate the delta.
+   * @return The length of the target text.
+   * @throws IllegalArgumentException If invalid input.
+   */
+  private int diff_applyByteDelta(byte[] text1, String delta, byte[] text2)
+      throws IllegalArgumentException {
+    int pointer1 = 0;  // Cursor in text1
+    int pointer2 = 0;  // Cursor in text2
+    int tokenStart = 0;
+    int length = delta.length();
+    while (tokenStart < length) {
+      int tokenEnd = delta.indexOf('\t', tokenStart);
+      if (tokenEnd == -1) {
+        tokenEnd = length;
+      }
+      if (tokenEnd == tokenStart) {
+        // Blank tokens are ok (from a trailing \t).
+        tokenStart++;
+        continue;
+      }
+      char operation = delta.charAt(tokenStart);
+      switch (operation) {
+      case '+':
+        pointer2 = diff_decodeBytes(delta, tokenStart + 1, tokenEnd,
+            text2, pointer2);
+        break;
+      case '-':
+        // Fall through.
+      case '=':
+        String param = delta.substring(tokenStart + 1, tokenEnd);
+        int n;
+        try {
+          n = Integer.parseInt(param);
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(
+              "Invalid number in diff_applyByteDelta: " + param, e);
+        }
+        if (n < 0) {
+          throw new IllegalArgumentException(
+              "Negative number in diff_applyByteDelta: " + param);
+        }
+        if (n > text1.length - pointer1) {
+          throw new IllegalArgumentException("Delta length ("
+              + ((long) pointer1 + n) + ") larger than source text length ("
+              + text1.length + ").");
+        }
+        if (operation == '=') {
+          if (text2 != null) {
+            System.arraycopy(text1, pointer1, text2, pointer2, n);
+          }
+          pointer2 += n;
+        }
+        pointer1 += n;
+        break;
+      default:
+        // Anything else is an error.
+        throw new IllegalArgumentException(
+            "Invalid diff operation in diff_applyByteDelta: " + operation);
+      }
+      tokenStart = tokenEnd + 1;
+    }
+    if (pointer1 != text1.length) {
+      throw new IllegalArgumentException("Delta length (" + pointer1
+          + ") smaller than source text length (" + text1.length + ").");
+    }
+    return pointer2;
+  }
+
+  /**
+   * Decode percent-encoded bytes.  Characters other than escapes stand for
+   * their own UTF-8 encoding; "+" is literal.
+   * @param text Encoded text.
+   * @param start Start of the encoded bytes in text.
+   * @param end End of the encoded bytes in text.
+   * @param bytes Array to write the decoded bytes to, or null to only count
+   *     them.
+   * @param offset Position in bytes to write to.
+   * @return The position in bytes after the decoded bytes.
+   * @throws IllegalArgumentException If the text has a malformed escape.
+   */
+  private static int diff_decodeBytes(String text, int start, int end,
+      byte[] bytes, int offset) throws IllegalArgumentException {
+    int i = start;
+    while (i < end) {
+      char c = text.charAt(i++);
+      if (c == '%') {
+        int hi = i + 1 < end ? Character.digit(text.charAt(i), 16) : -1;
+        int lo = i + 1 < end ? Character.digit(text.charAt(i + 1), 16) : -1;
+        if (hi == -1 || lo == -1) {
+          throw new IllegalArgumentException(
+              "Illegal escape in diff_applyByteDelta: "
+              + text.substring(i - 1, Math.min(i + 2, end)));
+        }
+        if (bytes != null) {
+          bytes[offset] = (byte) (hi << 4 | lo);
+        }
+        offset++;
+        i += 2;
+      } else if (c < 0x80) {
+        if (bytes != null) {
+          bytes[offset] = (byte) c;
+        }
+        offset++;
+      } else {
+        // Unescaped non-ASCII text.
+        int j = i;
+        while (j < end && text.charAt(j) >= 0x80) {
+          j++;
+        }
+        byte[] encoded;
+        try {
+          encoded = text.substring(i - 1, j).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          // Not likely on modern system.
+          throw new Error("This system does not support UTF-8.", e);
+        }
+        if (bytes != null) {
+          System.arraycopy(encoded, 0, bytes, offset, encoded.length);
+        }
+        offset += encoded.length;
+        i = j;
+      }
+    }
+    return offset;
+  }
+
 
   //  MATCH FUNCTIONS
 
@@ -1550,6 +2727,20 @@ public class diff_match_patch {
    * @return Best match index or -1.
    */
   public int match_main(String text, String pattern, int loc) {
+    return match_main(text, pattern, loc, null);
+  }
+
+  /**
+   * Locate the best instance of 'pattern' in 'text' near 'loc'.
+   * Returns -1 if no match found.
+   * @param text The text to search.
+   * @param pattern The pattern to search for.
+   * @param loc The location to search around.
+   * @param index A location index of the text, or null.
+   * @return Best match index or -1.
+   */
+  protected int match_main(String text, String pattern, int loc,
+      LocationIndex index) {
     // Check for null inputs.
     if (text == null || pattern == null) {
       throw new IllegalArgumentException("Null inputs. (match_main)");
@@ -1568,7 +2759,7 @@ public class diff_match_patch {
       return loc;
     } else {
       // Do a fuzzy compare.
-      return match_bitap(text, pattern, loc);
+      return match_bitap(text, pattern, loc, index);
     }
   }
 
@@ -1581,6 +2772,20 @@ public class diff_match_patch {
    * @return Best match index or -1.
    */
   protected int match_bitap(String text, String pattern, int loc) {
+    return match_bitap(text, pattern, loc, null);
+  }
+
+  /**
+   * Locate the best instance of 'pattern' in 'text' near 'loc' using the
+   * Bitap algorithm.  Returns -1 if no match found.
+   * @param text The text to search.
+   * @param pattern The pattern to search for.
+   * @param loc The location to search around.
+   * @param index A location index of the text, or null.
+   * @return Best match index or -1.
+   */
+  protected int match_bitap(String text, String pattern, int loc,
+      LocationIndex index) {
     assert (Match_MaxBits == 0 || pattern.length() <= Match_MaxBits)
         : "Pattern too long for this application.";
 
@@ -1590,12 +2795,15 @@ public class diff_match_patch {
     // Highest score beyond which we give up.
     double score_threshold = Match_Threshold;
     // Is there a nearby exact match? (speedup)
-    int best_loc = text.indexOf(pattern, loc);
+    int best_loc = index == null ? text.indexOf(pattern, loc)
+        : index.indexOf(text, pattern, loc);
     if (best_loc != -1) {
       score_threshold = Math.min(match_bitapScore(0, best_loc, loc, pattern),
           score_threshold);
       // What about in the other direction? (speedup)
-      best_loc = text.lastIndexOf(pattern, loc + pattern.length());
+      best_loc = index == null
+          ? text.lastIndexOf(pattern, loc + pattern.length())
+          : index.lastIndexOf(text, pattern, loc + pattern.length());
       if (best_loc != -1) {
         score_threshold = Math.min(match_bitapScore(0, best_loc, loc, pattern),
             score_threshold);
@@ -1608,8 +2816,13 @@ public class diff_match_patch {
 
     int bin_min, bin_mid;
     int bin_max = pattern.length() + text.length();
-    // Empty initialization added to appease Java compiler.
-    int[] last_rd = new int[0];
+    // The bit arrays are reused per thread, and only cover the range scanned
+    // in each pass; rd[j - rd_base] holds the value for text position j.
+    // Positions outside a pass's range are zero.
+    DiffArena arena = DIFF_ARENA.get();
+    int[] last_rd = null;
+    int last_rd_base = 0;
+    int last_rd_length = 0;
     for (int d = 0; d < pattern.length(); d++) {
       // Scan for the best match; each iteration allows for one more error.
       // Run a binary search to determine how far from 'loc' we can stray at
@@ -1630,8 +2843,12 @@ public class diff_match_patch {
       int start = Math.max(1, loc - bin_mid + 1);
       int finish = Math.min(loc + bin_mid, text.length()) + pattern.length();
 
-      int[] rd = new int[finish + 2];
-      rd[finish + 1] = (1 << d) - 1;
+      // A match past loc can move start back, to no less than
+      // 2 * loc - finish + 1.
+      int rd_base = Math.max(1, Math.min(start, 2 * loc - finish + 1));
+      int rd_length = finish + 2 - rd_base;
+      int[] rd = arena.bitap(d, rd_length);
+      rd[finish + 1 - rd_base] = (1 << d) - 1;
       for (int j = finish; j >= start; j--) {
         int charMatch;
         if (text.length() <= j - 1 || !s.containsKey(text.charAt(j - 1))) {
@@ -1640,15 +2857,20 @@ public class diff_match_patch {
         } else {
           charMatch = s.get(text.charAt(j - 1));
         }
+        int rd_j;
         if (d == 0) {
           // First pass: exact match.
-          rd[j] = ((rd[j + 1] << 1) | 1) & charMatch;
+          rd_j = ((rd[j + 1 - rd_base] << 1) | 1) & charMatch;
         } else {
           // Subsequent passes: fuzzy match.
-          rd[j] = (((rd[j + 1] << 1) | 1) & charMatch)
-              | (((last_rd[j + 1] | last_rd[j]) << 1) | 1) | last_rd[j + 1];
+          int last_rd_j = bitap_get(last_rd, last_rd_length, j - last_rd_base);
+          int last_rd_j1 =
+              bitap_get(last_rd, last_rd_length, j + 1 - last_rd_base);
+          rd_j = (((rd[j + 1 - rd_base] << 1) | 1) & charMatch)
+              | (((last_rd_j1 | last_rd_j) << 1) | 1) | last_rd_j1;
         }
-        if ((rd[j] & matchmask) != 0) {
+        rd[j - rd_base] = rd_j;
+        if ((rd_j & matchmask) != 0) {
           double score = match_bitapScore(d, j - 1, loc, pattern);
           // This match will almost certainly be better than any existing
           // match.  But check anyway.
@@ -1671,10 +2893,20 @@ public class diff_match_patch {
         break;
       }
       last_rd = rd;
+      last_rd_base = rd_base;
+      last_rd_length = rd_length;
     }
     return best_loc;
   }
 
+  /**
+   * Read a value from a bitap bit array; positions outside the array's
+   * length are zero.
+   */
+  private static int bitap_get(int[] rd, int length, int i) {
+    return i >= 0 && i < length ? rd[i] : 0;
+  }
+
   /**
    * Compute and return the score for a match with e errors and x location.
    * @param e Number of errors in match.
@@ -1938,6 +3170,7 @@ public class diff_match_patch {
     String nullPadding = patch_addPadding(patches);
     text = nullPadding + text + nullPadding;
     patch_splitMax(patches);
+    LocationIndex index = Patch_LocationIndex ? new LocationIndex(text) : null;
 
     int x = 0;
     // delta keeps track of the offset between the expected and actual location
@@ -1955,18 +3188,18 @@ public class diff_match_patch {
         // patch_splitMax will only provide an oversized pattern in the case of
         // a monster delete.
         start_loc = match_main(text,
-            text1.substring(0, this.Match_MaxBits), expected_loc);
+            text1.substring(0, this.Match_MaxBits), expected_loc, index);
         if (start_loc != -1) {
           end_loc = match_main(text,
               text1.substring(text1.length() - this.Match_MaxBits),
-              expected_loc + text1.length() - this.Match_MaxBits);
+              expected_loc + text1.length() - this.Match_MaxBits, index);
           if (end_loc == -1 || start_loc >= end_loc) {
             // Can't find valid trailing context.  Drop this patch.
             start_loc = -1;
           }
         }
       } else {
-        start_loc = match_main(text, text1, expected_loc);
+        start_loc = match_main(text, text1, expected_loc, index);
       }
       if (start_loc == -1) {
         // No match found.  :(
@@ -1987,8 +3220,12 @@ public class diff_match_patch {
         }
         if (text1.equals(text2)) {
           // Perfect match, just shove the replacement text in.
-          text = text.substring(0, start_loc) + diff_text2(aPatch.diffs)
+          String replacement = diff_text2(aPatch.diffs);
+          text = text.substring(0, start_loc) + replacement
               + text.substring(start_loc + text1.length());
+          if (index != null) {
+            index.edit(start_loc, text1.length(), replacement.length());
+          }
         } else {
           // Imperfect match.  Run a diff to get a framework of equivalent
           // indices.
@@ -2008,11 +3245,17 @@ public class diff_match_patch {
                   // Insertion
                   text = text.substring(0, start_loc + index2) + aDiff.text
                       + text.substring(start_loc + index2);
+                  if (index != null) {
+                    index.edit(start_loc + index2, 0, aDiff.text.length());
+                  }
                 } else if (aDiff.operation == Operation.DELETE) {
                   // Deletion
+                  int index3 = diff_xIndex(diffs, index1 + aDiff.text.length());
                   text = text.substring(0, start_loc + index2)
-                      + text.substring(start_loc + diff_xIndex(diffs,
-                      index1 + aDiff.text.length()));
+                      + text.substring(start_loc + index3);
+                  if (index != null) {
+                    index.edit(start_loc + index2, index3 - index2, 0);
+                  }
                 }
               }
               if (aDiff.operation != Operation.DELETE) {
@@ -2382,6 +3625,240 @@ public class diff_match_patch {
   }
 
 
+  /**
+   * An index of the positions of q-grams in a text, used to find exact
+   * matches of patterns without scanning the text.
+   * The index is built once from the text's initial state.  The text may then
+   * be edited, provided each edit is reported to the index; the index tracks
+   * the window of the text affected by edits, and outside of that window maps
+   * positions in the current text back to the initial text.  Matches which
+   * overlap the edited window are found by scanning the window directly, so
+   * results are always identical to String.indexOf() and lastIndexOf().
+   */
+  protected static class LocationIndex {
+    /** The q-gram length.  Shorter patterns aren't indexed. */
+    static final int Q = 8;
+    /** The text's initial state. */
+    private final String base;
+    /** The number of bits in a bucket number. */
+    private final int bits;
+    /** The start of each bucket's positions in 'positions'. */
+    private final int[] bucketStarts;
+    /** Q-gram positions, grouped by bucket and ascending within each bucket. */
+    private final int[] positions;
+    /** Whether the text has been edited. */
+    private boolean edited = false;
+    /** The edited window of the current text. */
+    private int editStart;
+    private int editEnd;
+    /** The offset of the current text after the edited window from base. */
+    private int shift = 0;
+
+    /**
+     * Constructor.  Indexes the text.
+     * @param text The text to index.
+     */
+    protected LocationIndex(String text) {
+      this.base = text;
+      int count = Math.max(0, text.length() - Q + 1);
+      this.bits = Math.max(4, Math.min(24,
+          32 - Integer.numberOfLeadingZeros(count)));
+      int[] buckets = new int[count];
+      bucketStarts = new int[(1 << bits) + 1];
+      if (count > 0) {
+        int hash = hash(text, 0);
+        int pow = 1;
+        for (int i = 1; i < Q; i++) {
+          pow *= 31;
+        }
+        for (int i = 0; i < count; i++) {
+          if (i > 0) {
+            // Roll the hash along by one character.
+            hash = (hash - text.charAt(i - 1) * pow) * 31
+                + text.charAt(i + Q - 1);
+          }
+          buckets[i] = bucket(hash);
+          bucketStarts[buckets[i] + 1]++;
+        }
+      }
+      for (int b = 0; b < (1 << bits); b++) {
+        bucketStarts[b + 1] += bucketStarts[b];
+      }
+      positions = new int[count];
+      int[] fill = new int[1 << bits];
+      System.arraycopy(bucketStarts, 0, fill, 0, fill.length);
+      for (int i = 0; i < count; i++) {
+        positions[fill[buckets[i]]++] = i;
+      }
+    }
+
+    private static int hash(String text, int start) {
+      int hash = 0;
+      for (int i = start; i < start + Q; i++) {
+        hash = hash * 31 + text.charAt(i);
+      }
+      return hash;
+    }
+
+    private int bucket(int hash) {
+      return (hash * 0x9e3779b9) >>> (32 - bits);
+    }
+
+    /**
+     * Record an edit to the text.
+     * @param start The position of the edit in the current text.
+     * @param oldLength The length of the text replaced.
+     * @param newLength The length of the replacement text.
+     */
+    protected void edit(int start, int oldLength, int newLength) {
+      int delta = newLength - oldLength;
+      if (!edited) {
+        editStart = start;
+        editEnd = start + newLength;
+        edited = true;
+      } else {
+        editStart = Math.min(editStart, start);
+        editEnd = Math.max(editEnd, start + oldLength) + delta;
+      }
+      shift += delta;
+    }
+
+    /**
+     * Find the first occurrence of a pattern in the current text.
+     * Equivalent to text.indexOf(pattern, from).
+     * @param text The current text.
+     */
+    protected int indexOf(String text, String pattern, int from) {
+      int length = pattern.length();
+      if (length < Q) {
+        return text.indexOf(pattern, from);
+      }
+      from = Math.max(0, from);
+      if (!edited) {
+        return baseIndexOf(pattern, from, base.length() - length);
+      }
+      // Matches before the edited window.
+      int loc = baseIndexOf(pattern, from, editStart - length);
+      if (loc != -1) {
+        return loc;
+      }
+      // Matches overlapping the edited window.
+      int end = Math.min(editEnd - 1, text.length() - length);
+      for (loc = Math.max(from, editStart - length + 1); loc <= end; loc++) {
+        if (text.regionMatches(loc, pattern, 0, length)) {
+          return loc;
+        }
+      }
+      // Matches after the edited window.
+      loc = baseIndexOf(pattern, Math.max(from, editEnd) - shift,
+          base.length() - length);
+      return loc == -1 ? -1 : loc + shift;
+    }
+
+    /**
+     * Find the last occurrence of a pattern in the current text.
+     * Equivalent to text.lastIndexOf(pattern, from).
+     * @param text The current text.
+     */
+    protected int lastIndexOf(String text, String pattern, int from) {
+      int length = pattern.length();
+      if (length < Q) {
+        return text.lastIndexOf(pattern, from);
+      }
+      from = Math.min(from, text.length() - length);
+      if (!edited) {
+        return baseLastIndexOf(pattern, 0, from);
+      }
+      // Matches after the edited window.
+      int loc = baseLastIndexOf(pattern, editEnd - shift, from - shift);
+      if (loc != -1) {
+        return loc + shift;
+      }
+      // Matches overlapping the edited window.
+      int end = Math.max(0, editStart - length + 1);
+      for (loc = Math.min(from, editEnd - 1); loc >= end; loc--) {
+        if (text.regionMatches(loc, pattern, 0, length)) {
+          return loc;
+        }
+      }
+      // Matches before the edited window.
+      return baseLastIndexOf(pattern, 0, Math.min(from, editStart - length));
+    }
+
+    /**
+     * Find the first match of a pattern in the initial text, starting between
+     * lo and hi inclusive.
+     */
+    private int baseIndexOf(String pattern, int lo, int hi) {
+      lo = Math.max(0, lo);
+      hi = Math.min(hi, base.length() - pattern.length());
+      if (lo > hi) {
+        return -1;
+      }
+      int b = bucket(hash(pattern, 0));
+      int i = binarySearch(positions, bucketStarts[b],
+          bucketStarts[b + 1], lo);
+      for (i = i < 0 ? -(i + 1) : i; i < bucketStarts[b + 1]; i++) {
+        int loc = positions[i];
+        if (loc > hi) {
+          break;
+        }
+        if (base.regionMatches(loc, pattern, 0, pattern.length())) {
+          return loc;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Find the last match of a pattern in the initial text, starting between
+     * lo and hi inclusive.
+     */
+    private int baseLastIndexOf(String pattern, int lo, int hi) {
+      lo = Math.max(0, lo);
+      hi = Math.min(hi, base.length() - pattern.length());
+      if (lo > hi) {
+        return -1;
+      }
+      int b = bucket(hash(pattern, 0));
+      int i = binarySearch(positions, bucketStarts[b],
+          bucketStarts[b + 1], hi);
+      for (i = i < 0 ? -(i + 1) - 1 : i; i >= bucketStarts[b]; i--) {
+        int loc = positions[i];
+        if (loc < lo) {
+          break;
+        }
+        if (base.regionMatches(loc, pattern, 0, pattern.length())) {
+          return loc;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Search a sorted range of an array for a key.  Equivalent to
+     * Arrays.binarySearch(int[], int, int, int), which isn't available before
+     * Android API level 9.
+     * @return The key's index, or -(insertion point) - 1 if not found.
+     */
+    private static int binarySearch(int[] array, int from, int to, int key) {
+      int lo = from;
+      int hi = to - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (array[mid] < key) {
+          lo = mid + 1;
+        } else if (array[mid] > key) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(lo + 1);
+    }
+  }
+
+
   /**
    * Class representing one patch operation.
    */
@@ -0,0 +1,81 @@
+package com.innerfunction.semo.content;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of {@link ContentHash}.
+ * The xxHash64 vectors are those output by the xxhsum tool, with a seed of zero.
+ * @author juliangoacher
+ *
+ */
+public class ContentHashTest {
+
+    @Test
+    public void testXXH64ShortInputs() throws IOException {
+        Assert.assertEquals("ef46db3751d8e999", hash( ContentHash.XXH64, "") );
+        Assert.assertEquals("d24ec4f1a98c6e5b", hash( ContentHash.XXH64, "a") );
+        Assert.assertEquals("44bc2cf5ad770999", hash( ContentHash.XXH64, "abc") );
+    }
+
+    @Test
+    public void testXXH64Stripes() throws IOException {
+        // Longer than one 32 byte stripe, with a tail of 8, 4 and 1 byte lanes.
+        Assert.assertEquals("fbcea83c8a378bf1", hash( ContentHash.XXH64, "Nobody inspects the spammish repetition") );
+        Assert.assertEquals("f306f04aa88b54d3", hash( ContentHash.XXH64, sequence( 1000 ) ) );
+    }
+
+    @Test
+    public void testXXH64IncrementalUpdates() throws IOException {
+        // Updates split at every offset give the same digest as a single update.
+        byte[] data = sequence( 1000 );
+        ContentHash hash = ContentHash.getInstance( ContentHash.XXH64 );
+        for( int split = 0; split <= 100; split++ ) {
+            hash.reset();
+            hash.update( data, 0, split );
+            hash.update( data, split, data.length - split );
+            Assert.assertEquals("f306f04aa88b54d3", hash.digest() );
+        }
+    }
+
+    @Test
+    public void testDigestAlgorithms() throws IOException {
+        Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", hash( ContentHash.MD5, "abc") );
+        Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", hash( null, "abc") );
+        Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash( ContentHash.SHA256, "abc") );
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        ContentHash md5 = ContentHash.getInstance( ContentHash.MD5 );
+        Assert.assertSame( md5, ContentHash.getInstance( null, md5 ) );
+        Assert.assertNotSame( md5, ContentHash.getInstance( ContentHash.XXH64, md5 ) );
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedAlgorithm() throws IOException {
+        Assert.assertFalse( ContentHash.isSupported("crc64") );
+        ContentHash.getInstance("crc64");
+    }
+
+    private static String hash(String algorithm, String text) throws IOException {
+        return hash( algorithm, text.getBytes("UTF-8") );
+    }
+
+    private static String hash(String algorithm, byte[] data) throws IOException {
+        ContentHash hash = ContentHash.getInstance( algorithm );
+        hash.update( data );
+        return hash.digest();
+    }
+
+    /** Bytes 0, 1, 2... modulo 251. */
+    private static byte[] sequence(int length) {
+        byte[] data = new byte[length];
+        for( int i = 0; i < length; i++ ) {
+            data[i] = (byte)(i % 251);
+        }
+        return data;
+    }
+}
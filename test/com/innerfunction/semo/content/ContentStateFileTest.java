@@ -0,0 +1,138 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link ContentStateFile}.
+ * @author juliangoacher
+ *
+ */
+public class ContentStateFileTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("state", "test");
+        dir.delete();
+        dir.mkdirs();
+        file = new File( dir, "state.dat");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ContentSnapshot.removeDir( dir );
+    }
+
+    @Test
+    public void testUpdateAndReload() throws IOException {
+        ContentStateFile state = new ContentStateFile( file );
+        Assert.assertFalse( state.hasSection("subs") );
+        state.update("subs", values("version", "1.0", "initialized", "true") );
+        state.update("subs", values("version", "1.1") );
+        state.update("subs", values("initialized", null ) );
+
+        ContentStateFile reloaded = new ContentStateFile( file );
+        Assert.assertTrue( reloaded.hasSection("subs") );
+        Assert.assertEquals("1.1", reloaded.get("subs", "version") );
+        Assert.assertNull( reloaded.get("subs", "initialized") );
+    }
+
+    @Test
+    public void testNewestRecordIsUsed() throws IOException {
+        ContentStateFile state = new ContentStateFile( file );
+        for( int i = 0; i < 5; i++ ) {
+            state.update("subs", values("count", Integer.toString( i ) ) );
+        }
+        Assert.assertEquals("4", new ContentStateFile( file ).get("subs", "count") );
+    }
+
+    @Test
+    public void testCorruptRecordFallsBackToPrevious() throws IOException {
+        ContentStateFile state = new ContentStateFile( file );
+        state.update("subs", values("version", "1.0") );
+        state.update("subs", values("version", "2.0") );
+        // Corrupt the data of the newest record, as if a write was interrupted.
+        RandomAccessFile raf = new RandomAccessFile( file, "rw");
+        try {
+            int slotSize = readInt( raf, ContentStateFile.Magic.length );
+            long offset = newestSlot( raf, slotSize );
+            long dataPos = offset + ContentStateFile.RecordHeaderSize;
+            raf.seek( dataPos );
+            int b = raf.read();
+            raf.seek( dataPos );
+            raf.write( b ^ 0xff );
+        }
+        finally {
+            raf.close();
+        }
+        Assert.assertEquals("1.0", new ContentStateFile( file ).get("subs", "version") );
+    }
+
+    @Test
+    public void testUpdatesSeenByOtherInstance() throws IOException {
+        ContentStateFile state = new ContentStateFile( file );
+        state.update("a", values("key", "1") );
+        // A second instance on the same file, as in another process. File locks are per process,
+        // so the two instances are used in turn.
+        ContentStateFile other = new ContentStateFile( file );
+        Assert.assertEquals("1", other.get("a", "key") );
+        state.update("a", values("key", "2") );
+        Assert.assertEquals("2", other.get("a", "key") );
+    }
+
+    @Test
+    public void testLargeValuesGrowTheFile() throws IOException {
+        StringBuilder large = new StringBuilder();
+        while( large.length() < 100 * 1024 ) {
+            large.append("patch-");
+        }
+        ContentStateFile state = new ContentStateFile( file );
+        state.update("subs", values("version", "1.0") );
+        state.update("subs", values("repairPatches", large.toString() ) );
+        Assert.assertTrue( file.length() > 2 * ContentStateFile.InitialSlotSize );
+
+        ContentStateFile reloaded = new ContentStateFile( file );
+        Assert.assertEquals( large.toString(), reloaded.get("subs", "repairPatches") );
+        Assert.assertEquals("1.0", reloaded.get("subs", "version") );
+    }
+
+    /**
+     * Find the offset of the slot containing the record with the highest sequence number.
+     */
+    private static long newestSlot(RandomAccessFile raf, int slotSize) throws IOException {
+        long slot0 = ContentStateFile.HeaderSize;
+        long slot1 = ContentStateFile.HeaderSize + slotSize;
+        raf.seek( slot0 );
+        long sequence0 = raf.readLong();
+        raf.seek( slot1 );
+        long sequence1 = raf.readLong();
+        return sequence0 > sequence1 ? slot0 : slot1;
+    }
+
+    private static int readInt(RandomAccessFile raf, long position) throws IOException {
+        raf.seek( position );
+        return raf.readInt();
+    }
+
+    /**
+     * Make a map of values from a list of keys and values.
+     */
+    private static Map<String,String> values(String... keysAndValues) {
+        Map<String,String> values = new HashMap<String,String>();
+        for( int i = 0; i < keysAndValues.length; i += 2 ) {
+            values.put( keysAndValues[i], keysAndValues[i + 1] );
+        }
+        return values;
+    }
+}
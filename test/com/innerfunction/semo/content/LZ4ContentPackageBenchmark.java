@@ -0,0 +1,180 @@
+package com.innerfunction.semo.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A benchmark comparing the time taken to read all entries of a zip content package with a semo
+ * pack of the same content.
+ * Generates a reproducible set of JSON-like content files (from a fixed random seed), packs it
+ * as a zip (default deflate level) and as semo packs with and without a shared dictionary, then
+ * reports the size of each package and the median time taken to read and CRC check all of its
+ * entries. Run from the command line, with the library's classes and this class on the class path:
+ * <pre>
+ *   java com.innerfunction.semo.content.LZ4ContentPackageBenchmark [fileCount] [rounds]
+ * </pre>
+ * Results depend on the JVM and device; the benchmark is intended for comparing formats on the
+ * same machine, not as an absolute measure.
+ * @author juliangoacher
+ *
+ */
+public class LZ4ContentPackageBenchmark {
+
+    /** The random seed used to generate content. */
+    static final long Seed = 20140301L;
+
+    public static void main(String[] args) throws IOException {
+        int fileCount = args.length > 0 ? Integer.parseInt( args[0] ) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt( args[1] ) : 7;
+        File dir = File.createTempFile("semopack", "bench");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            byte[][] files = generateContent( fileCount );
+            byte[] dictionary = generateDictionary();
+            long total = 0;
+            for( byte[] file : files ) {
+                total += file.length;
+            }
+            System.out.println( String.format("%d files, %d bytes", files.length, total ) );
+            File zipFile = new File( dir, "content.zip");
+            writeZip( zipFile, files );
+            File packFile = new File( dir, "content.pack");
+            writePack( packFile, files, null );
+            File dictPackFile = new File( dir, "content-dict.pack");
+            writePack( dictPackFile, files, dictionary );
+            report("zip", zipFile, rounds );
+            report("semo pack", packFile, rounds );
+            report("semo pack + dictionary", dictPackFile, rounds );
+        }
+        finally {
+            ContentSnapshot.removeDir( dir );
+        }
+    }
+
+    /**
+     * Generate a set of content files resembling JSON data files.
+     */
+    static byte[][] generateContent(int fileCount) {
+        Random random = new Random( Seed );
+        String[] words = new String[512];
+        for( int i = 0; i < words.length; i++ ) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt( 8 );
+            for( int j = 0; j < length; j++ ) {
+                word.append( (char)('a' + random.nextInt( 26 )) );
+            }
+            words[i] = word.toString();
+        }
+        byte[][] files = new byte[fileCount][];
+        for( int i = 0; i < fileCount; i++ ) {
+            StringBuilder json = new StringBuilder("{\"type\":\"article\",\"id\":");
+            json.append( i ).append(",\"items\":[");
+            int items = 1 + random.nextInt( 40 );
+            for( int j = 0; j < items; j++ ) {
+                if( j > 0 ) {
+                    json.append(',');
+                }
+                json.append("{\"title\":\"");
+                for( int k = 1 + random.nextInt( 6 ); k > 0; k-- ) {
+                    json.append( words[random.nextInt( words.length )] ).append(' ');
+                }
+                json.append("\",\"created\":").append( 1390000000000L + random.nextInt( 1 << 30 ) );
+                json.append(",\"published\":").append( random.nextBoolean() );
+                json.append(",\"body\":\"");
+                for( int k = 20 + random.nextInt( 200 ); k > 0; k-- ) {
+                    json.append( words[random.nextInt( words.length )] ).append(' ');
+                }
+                json.append("\"}");
+            }
+            json.append("]}");
+            files[i] = json.toString().getBytes();
+        }
+        return files;
+    }
+
+    /**
+     * Generate a dictionary of the fixed strings common to the content files.
+     */
+    static byte[] generateDictionary() {
+        return ("{\"type\":\"article\",\"id\":,\"items\":[{\"title\":\"\",\"created\":139,\"published\":false"
+              + ",\"body\":\"\"},{\"title\":\"\",\"created\":139,\"published\":true,\"body\":\"\"}]}").getBytes();
+    }
+
+    static void writeZip(File zipFile, byte[][] files) throws IOException {
+        ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zipFile ) );
+        try {
+            for( int i = 0; i < files.length; i++ ) {
+                out.putNextEntry( new ZipEntry( String.format("data/%05d.json", i ) ) );
+                out.write( files[i] );
+                out.closeEntry();
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    static void writePack(File packFile, byte[][] files, byte[] dictionary) throws IOException {
+        LZ4ContentPackageWriter writer = new LZ4ContentPackageWriter( packFile, dictionary );
+        writer.addDirectory("data/");
+        for( int i = 0; i < files.length; i++ ) {
+            writer.addFile( String.format("data/%05d.json", i ), new ByteArrayInputStream( files[i] ) );
+        }
+        writer.write();
+    }
+
+    /**
+     * Read a package's entries repeatedly, and report the median read time.
+     */
+    static void report(String name, File packageFile, int rounds) throws IOException {
+        byte[] buffer = new byte[ContentBlobStore.CopyBufferSize];
+        long[] times = new long[rounds];
+        // Warm up.
+        readAll( packageFile, buffer );
+        for( int i = 0; i < rounds; i++ ) {
+            long start = System.nanoTime();
+            readAll( packageFile, buffer );
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort( times );
+        System.out.println( String.format("%-24s %10d bytes %8.1f ms", name, packageFile.length(), times[rounds / 2] / 1e6 ) );
+    }
+
+    static void readAll(File packageFile, byte[] buffer) throws IOException {
+        ContentPackage pkg = ContentPackage.open( packageFile );
+        try {
+            CRC32 crc = new CRC32();
+            for( ContentPackage.Entry entry : pkg.getEntries() ) {
+                if( entry.isDirectory() ) {
+                    continue;
+                }
+                crc.reset();
+                InputStream in = pkg.openEntry( entry );
+                try {
+                    int read;
+                    while( (read = in.read( buffer )) != -1 ) {
+                        crc.update( buffer, 0, read );
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                if( crc.getValue() != entry.getCrc() ) {
+                    throw new IOException( String.format("CRC mismatch on %s in %s", entry.getName(), packageFile ) );
+                }
+            }
+        }
+        finally {
+            pkg.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link UnzipCheckpoint}.
+ * @author juliangoacher
+ *
+ */
+public class UnzipCheckpointTest {
+
+    private File dir;
+    private File zipFile;
+    private File checkpointFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("checkpoint", "test");
+        dir.delete();
+        dir.mkdirs();
+        zipFile = new File( dir, "content.zip");
+        FileOutputStream out = new FileOutputStream( zipFile );
+        out.write( new byte[100] );
+        out.close();
+        checkpointFile = new File( dir, ".semo/unzip.checkpoint");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ContentSnapshot.removeDir( dir );
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        // Entries either side of the 64 bit word boundaries.
+        int[] completed = new int[]{ 0, 1, 63, 64, 65, 127, 128, 1000 };
+        UnzipCheckpoint checkpoint = new UnzipCheckpoint( checkpointFile, zipFile );
+        for( int index : completed ) {
+            checkpoint.complete( index );
+        }
+        checkpoint.flush();
+        Assert.assertTrue( checkpointFile.exists() );
+
+        UnzipCheckpoint resumed = new UnzipCheckpoint( checkpointFile, zipFile );
+        int count = 0;
+        for( int i = 0; i <= 1100; i++ ) {
+            if( resumed.isComplete( i ) ) {
+                Assert.assertEquals( completed[count++], i );
+            }
+        }
+        Assert.assertEquals( completed.length, count );
+    }
+
+    @Test
+    public void testBatchedWrites() throws IOException {
+        UnzipCheckpoint checkpoint = new UnzipCheckpoint( checkpointFile, zipFile );
+        for( int i = 0; i < UnzipCheckpoint.BatchSize - 1; i++ ) {
+            checkpoint.complete( i );
+        }
+        // No write until a batch is complete (assuming the batch interval hasn't passed).
+        Assert.assertFalse( checkpointFile.exists() );
+        checkpoint.complete( UnzipCheckpoint.BatchSize - 1 );
+        Assert.assertTrue( checkpointFile.exists() );
+        Assert.assertTrue( new UnzipCheckpoint( checkpointFile, zipFile ).isComplete( UnzipCheckpoint.BatchSize - 1 ) );
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        UnzipCheckpoint checkpoint = new UnzipCheckpoint( checkpointFile, zipFile );
+        checkpoint.complete( 5 );
+        checkpoint.flush();
+        checkpoint.clear();
+        Assert.assertFalse( checkpointFile.exists() );
+        Assert.assertFalse( checkpoint.isComplete( 5 ) );
+        Assert.assertFalse( new UnzipCheckpoint( checkpointFile, zipFile ).isComplete( 5 ) );
+    }
+}
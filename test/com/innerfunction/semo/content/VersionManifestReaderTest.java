@@ -0,0 +1,117 @@
+package com.innerfunction.semo.content;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link VersionManifestReader}.
+ * @author juliangoacher
+ *
+ */
+public class VersionManifestReaderTest {
+
+    /** The number of items in the test manifest's array; more than the reader's initial index capacity. */
+    static final int ItemCount = 50;
+
+    private File manifestFile;
+    private VersionManifestReader reader;
+
+    @Before
+    public void setUp() throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"version\": \"2.1\",\n");
+        json.append("  \"size\": 1234567890123,\n");
+        json.append("  \"ratio\": -0.5e1,\n");
+        json.append("  \"complete\": true,\n");
+        json.append("  \"parent\": null,\n");
+        json.append("  \"empty\": [],\n");
+        json.append("  \"meta\": { \"tags\": [\"a\", \"b\"], \"nested\": { \"x\": [ { \"y\": \"]}\" } ] } },\n");
+        json.append("  \"files\": [\n");
+        for( int i = 0; i < ItemCount; i++ ) {
+            if( i > 0 ) {
+                json.append(",\n");
+            }
+            json.append("    { \"skip\": { \"a\": [1, 2, \"}\"] }, ");
+            json.append("\"path\": \"dir/file-").append( i ).append(".json\", ");
+            json.append("\"note\": \"tab\\tquote\\\" slash\\/ \\u00e9\u00e8\", ");
+            json.append("\"size\": ").append( i * 100 ).append(" }");
+        }
+        json.append("\n  ]\n}\n");
+        manifestFile = File.createTempFile("manifest", ".json");
+        FileOutputStream out = new FileOutputStream( manifestFile );
+        try {
+            out.write( json.toString().getBytes("UTF-8") );
+        }
+        finally {
+            out.close();
+        }
+        reader = new VersionManifestReader( manifestFile );
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        manifestFile.delete();
+    }
+
+    @Test
+    public void testTopLevelValues() {
+        Assert.assertEquals("2.1", reader.get("version") );
+        Assert.assertEquals( Long.valueOf( 1234567890123L ), reader.get("size") );
+        Assert.assertEquals( Double.valueOf( -5.0 ), reader.get("ratio") );
+        Assert.assertEquals( Boolean.TRUE, reader.get("complete") );
+        Assert.assertNull( reader.get("parent") );
+        Assert.assertNull( reader.get("missing") );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNestedObject() {
+        Map<String,Object> meta = (Map<String,Object>)reader.get("meta");
+        List<Object> tags = (List<Object>)meta.get("tags");
+        Assert.assertEquals( 2, tags.size() );
+        Assert.assertEquals("b", tags.get( 1 ) );
+        Map<String,Object> nested = (Map<String,Object>)meta.get("nested");
+        List<Object> x = (List<Object>)nested.get("x");
+        Assert.assertEquals("]}", ((Map<String,Object>)x.get( 0 )).get("y") );
+    }
+
+    @Test
+    public void testArrayCounts() {
+        Assert.assertEquals( ItemCount, reader.getCount("files") );
+        Assert.assertEquals( 0, reader.getCount("empty") );
+        Assert.assertEquals( 0, reader.getCount("missing") );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetItem() throws IOException {
+        // Read in reverse order, to check that items are read by position and not sequentially.
+        for( int i = ItemCount - 1; i >= 0; i-- ) {
+            Map<String,Object> item = (Map<String,Object>)reader.getItem("files", i );
+            Assert.assertEquals("dir/file-"+i+".json", item.get("path") );
+            Assert.assertEquals( Long.valueOf( i * 100 ), item.get("size") );
+            Assert.assertEquals("tab\tquote\" slash/ \u00e9\u00e8", item.get("note") );
+        }
+    }
+
+    @Test
+    public void testGetItemField() throws IOException {
+        Assert.assertEquals("dir/file-17.json", reader.getItemField("files", 17, "path") );
+        Assert.assertEquals( Long.valueOf( 4900 ), reader.getItemField("files", 49, "size") );
+        Assert.assertNull( reader.getItemField("files", 0, "missing") );
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testItemOutOfRange() throws IOException {
+        reader.getItem("files", ItemCount );
+    }
+}